@@ -0,0 +1,366 @@
+package kr.co.sevencore.blefotalib;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * BflAdvertisement.java
+ * BLE FOTA Library advertisement record.
+ * Advertising data & scan response are parsed once into a compact record,
+ * and scan filters use the record instead of parsing the raw data again.
+ *
+ * AD structure: length(1 byte) | AD type(1 byte) | AD data(length - 1 bytes)
+ *
+ * Advertised firmware version (optional):
+ *  - Service data of Firmware Upgrade Service (0x18FF) starting with the version, or
+ *  - Manufacturer specific data including the version at the offset defined by the product.
+ *  - The version is 3 bytes binary (AA, BB, CC) or 8 bytes string "AA-BB-CC".
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-10
+ * @see kr.co.sevencore.blefotalib.BflScanFilter
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflAdvertisement {
+    private final static String BLE_FOTA_TAG = BflAdvertisement.class.getSimpleName();
+
+    // AD types defined by Bluetooth SIG assigned numbers.
+    private final static int AD_TYPE_INCOMPLETE_16BIT_UUIDS = 0x02;
+    private final static int AD_TYPE_COMPLETE_16BIT_UUIDS = 0x03;
+    private final static int AD_TYPE_INCOMPLETE_32BIT_UUIDS = 0x04;
+    private final static int AD_TYPE_COMPLETE_32BIT_UUIDS = 0x05;
+    private final static int AD_TYPE_INCOMPLETE_128BIT_UUIDS = 0x06;
+    private final static int AD_TYPE_COMPLETE_128BIT_UUIDS = 0x07;
+    private final static int AD_TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    private final static int AD_TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    private final static int AD_TYPE_16BIT_SERVICE_DATA = 0x16;
+    private final static int AD_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // Bluetooth base UUID: 0000xxxx-0000-1000-8000-00805f9b34fb
+    private final static long BASE_UUID_MSB = 0x0000000000001000L;
+    private final static long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static UUID FIRMWARE_UPGRADE_SERVICE_UUID = UUID.fromString(BflAttributes.FIRMWARE_UPGRADE_SERVICE);
+    private final static int VERSION_LENGTH = 8;         // "AA-BB-CC"
+    private final static int BINARY_VERSION_LENGTH = 3;  // AA | BB | CC
+
+    private int[] mShortUuids = new int[0];          // 16-bit & 32-bit service UUIDs.
+    private UUID[] mLongUuids = new UUID[0];         // 128-bit service UUIDs.
+    private String mLocalName;
+    private int mManufacturerId = -1;                // Company identifier. -1: No manufacturer specific data.
+    private byte[] mManufacturerData;                // Manufacturer specific data except company identifier.
+    private int[] mServiceDataUuids = new int[0];    // 16-bit UUIDs of service data.
+    private byte[][] mServiceData = new byte[0][];   // Service data except UUID.
+
+
+    private BflAdvertisement() {}
+
+    /**
+     * Parse advertising data & scan response.
+     * A malformed AD structure stops parsing, and the AD structures before it are kept.
+     *
+     * @param scanRecord is the raw advertising data & scan response.
+     * @return The advertisement record. Empty record if scanRecord is null.
+     */
+    public static BflAdvertisement parse(byte[] scanRecord) {
+        BflAdvertisement advertisement = new BflAdvertisement();
+
+        if (scanRecord == null) {
+            return advertisement;
+        }
+
+        int[] shortUuids = new int[8];
+        int shortUuidCnt = 0;
+        ArrayList<UUID> longUuids = null;
+        ArrayList<byte[]> serviceData = null;
+        int[] serviceDataUuids = new int[2];
+        int index = 0;
+
+        while (index < scanRecord.length) {
+            final int length = scanRecord[index] & 0xFF;
+
+            // Zero length means the rest of the data is padding.
+            if (length == 0 || index + length >= scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[index + 1] & 0xFF;
+            final int dataStart = index + 2;
+            final int dataLength = length - 1;
+
+            switch (type) {
+                case AD_TYPE_INCOMPLETE_16BIT_UUIDS:
+                case AD_TYPE_COMPLETE_16BIT_UUIDS:
+                    for (int i = 0; i + 1 < dataLength; i += 2) {
+                        if (shortUuidCnt == shortUuids.length) {
+                            shortUuids = Arrays.copyOf(shortUuids, shortUuids.length * 2);
+                        }
+                        shortUuids[shortUuidCnt++] = readLittleEndian(scanRecord, dataStart + i, 2);
+                    }
+                    break;
+
+                case AD_TYPE_INCOMPLETE_32BIT_UUIDS:
+                case AD_TYPE_COMPLETE_32BIT_UUIDS:
+                    for (int i = 0; i + 3 < dataLength; i += 4) {
+                        if (shortUuidCnt == shortUuids.length) {
+                            shortUuids = Arrays.copyOf(shortUuids, shortUuids.length * 2);
+                        }
+                        shortUuids[shortUuidCnt++] = readLittleEndian(scanRecord, dataStart + i, 4);
+                    }
+                    break;
+
+                case AD_TYPE_INCOMPLETE_128BIT_UUIDS:
+                case AD_TYPE_COMPLETE_128BIT_UUIDS:
+                    if (longUuids == null) {
+                        longUuids = new ArrayList<UUID>();
+                    }
+
+                    for (int i = 0; i + 15 < dataLength; i += 16) {
+                        // 128-bit UUID is transmitted in little endian.
+                        long lsb = 0;
+                        long msb = 0;
+
+                        for (int j = 7; j >= 0; j--) {
+                            lsb = (lsb << 8) | (scanRecord[dataStart + i + j] & 0xFF);
+                            msb = (msb << 8) | (scanRecord[dataStart + i + 8 + j] & 0xFF);
+                        }
+                        longUuids.add(new UUID(msb, lsb));
+                    }
+                    break;
+
+                case AD_TYPE_SHORTENED_LOCAL_NAME:
+                case AD_TYPE_COMPLETE_LOCAL_NAME:
+                    // Complete local name takes precedence over shortened local name.
+                    if (advertisement.mLocalName == null || type == AD_TYPE_COMPLETE_LOCAL_NAME) {
+                        advertisement.mLocalName = new String(scanRecord, dataStart, dataLength, UTF_8);
+                    }
+                    break;
+
+                case AD_TYPE_16BIT_SERVICE_DATA:
+                    if (dataLength >= 2) {
+                        if (serviceData == null) {
+                            serviceData = new ArrayList<byte[]>();
+                        }
+
+                        if (serviceData.size() == serviceDataUuids.length) {
+                            serviceDataUuids = Arrays.copyOf(serviceDataUuids, serviceDataUuids.length * 2);
+                        }
+                        serviceDataUuids[serviceData.size()] = readLittleEndian(scanRecord, dataStart, 2);
+                        serviceData.add(Arrays.copyOfRange(scanRecord, dataStart + 2, dataStart + dataLength));
+                    }
+                    break;
+
+                case AD_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength >= 2 && advertisement.mManufacturerId < 0) {
+                        advertisement.mManufacturerId = readLittleEndian(scanRecord, dataStart, 2);
+                        advertisement.mManufacturerData = Arrays.copyOfRange(scanRecord, dataStart + 2, dataStart + dataLength);
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            index += length + 1;
+        }
+
+        advertisement.mShortUuids = Arrays.copyOf(shortUuids, shortUuidCnt);
+
+        if (longUuids != null) {
+            advertisement.mLongUuids = longUuids.toArray(new UUID[longUuids.size()]);
+        }
+
+        if (serviceData != null) {
+            advertisement.mServiceDataUuids = Arrays.copyOf(serviceDataUuids, serviceData.size());
+            advertisement.mServiceData = serviceData.toArray(new byte[serviceData.size()][]);
+        }
+        return advertisement;
+    }
+
+    /**
+     * Check the service UUID is advertised.
+     *
+     * @param uuid is the service UUID. 16-bit & 32-bit UUIDs are compared in the base UUID form.
+     * @return true, if the service UUID is included in the advertisement.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        final int shortUuid = toShortUuid(uuid);
+
+        if (shortUuid != -1) {
+            for (int i = 0; i < mShortUuids.length; i++) {
+                if (mShortUuids[i] == shortUuid) {
+                    return true;
+                }
+            }
+        }
+
+        for (int i = 0; i < mLongUuids.length; i++) {
+            if (mLongUuids[i].equals(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check the manufacturer specific data starts with the prefix.
+     *
+     * @param manufacturerId is the company identifier.
+     * @param prefix is the expected leading data except company identifier. null: Any data.
+     * @return true, if the manufacturer specific data matches.
+     */
+    public boolean hasManufacturerData(int manufacturerId, byte[] prefix) {
+        if (mManufacturerId != manufacturerId) {
+            return false;
+        }
+
+        if (prefix == null) {
+            return true;
+        }
+
+        if (mManufacturerData.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (mManufacturerData[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the local name in the advertisement.
+     *
+     * @return The local name, or null if the name is not advertised.
+     */
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    /**
+     * Get the company identifier of manufacturer specific data.
+     *
+     * @return The company identifier, or -1 if manufacturer specific data is not advertised.
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * Get manufacturer specific data.
+     *
+     * @return Manufacturer specific data except company identifier, or null if it is not advertised.
+     */
+    public byte[] getManufacturerData() {
+        return mManufacturerData;
+    }
+
+    /**
+     * Get service data of the 16-bit service UUID.
+     *
+     * @param uuid is the service UUID.
+     * @return Service data except UUID, or null if service data is not advertised.
+     */
+    public byte[] getServiceData(UUID uuid) {
+        final int shortUuid = toShortUuid(uuid);
+
+        for (int i = 0; i < mServiceDataUuids.length; i++) {
+            if (mServiceDataUuids[i] == shortUuid) {
+                return mServiceData[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the advertised firmware version.
+     * Service data of Firmware Upgrade Service takes precedence over manufacturer specific data.
+     *
+     * @param manufacturerDataOffset is the version offset in manufacturer specific data. -1: Not advertised.
+     * @return The firmware version formed into "AA-BB-CC", or null if the version is not advertised.
+     */
+    public String getFirmwareVersion(int manufacturerDataOffset) {
+        String version = decodeVersion(getServiceData(FIRMWARE_UPGRADE_SERVICE_UUID), 0);
+
+        if (version == null && manufacturerDataOffset >= 0) {
+            version = decodeVersion(mManufacturerData, manufacturerDataOffset);
+        }
+        return version;
+    }
+
+    /**
+     * Decode the firmware version of the string form or the binary form.
+     *
+     * @param bytes is service data or manufacturer specific data.
+     * @param offset is the start of the version.
+     * @return The firmware version formed into "AA-BB-CC", or null if the data is too short or out of range.
+     */
+    private static String decodeVersion(byte[] bytes, int offset) {
+        if (bytes == null) {
+            return null;
+        }
+
+        if (bytes.length - offset >= VERSION_LENGTH && bytes[offset + 2] == '-' && bytes[offset + 5] == '-') {
+            String version = new String(bytes, offset, VERSION_LENGTH, UTF_8);
+            return BflUtil.checkFileName(version) ? version : null;
+        }
+
+        if (bytes.length - offset >= BINARY_VERSION_LENGTH) {
+            char[] versionChars = new char[VERSION_LENGTH];
+
+            for (int i = 0; i < BINARY_VERSION_LENGTH; i++) {
+                int number = bytes[offset + i] & 0xFF;
+
+                if (number > 99) {
+                    return null;
+                }
+                versionChars[i * 3] = (char) ('0' + (number / 10));
+                versionChars[i * 3 + 1] = (char) ('0' + (number % 10));
+
+                if (i < BINARY_VERSION_LENGTH - 1) {
+                    versionChars[i * 3 + 2] = '-';
+                }
+            }
+            return new String(versionChars);
+        }
+        return null;
+    }
+
+    /**
+     * Convert the UUID in the base UUID form into 16-bit or 32-bit UUID.
+     *
+     * @param uuid is the UUID.
+     * @return 16-bit or 32-bit UUID, or -1 if the UUID is not in the base UUID form.
+     */
+    private static int toShortUuid(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB ||
+                (uuid.getMostSignificantBits() & 0xFFFFFFFFL) != BASE_UUID_MSB) {
+            return -1;
+        }
+        return (int) (uuid.getMostSignificantBits() >>> 32);
+    }
+
+    /**
+     * Read the unsigned little endian value of the AD data.
+     *
+     * @param bytes is the raw advertising data.
+     * @param offset is the start of the value.
+     * @param size is 2 or 4 bytes.
+     * @return The value.
+     */
+    private static int readLittleEndian(byte[] bytes, int offset, int size) {
+        int value = 0;
+
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -27,6 +27,7 @@ public class BflAttributes {
     public static String SERVICE_CHANGED = "00001801-0000-1000-8000-00805f9b34fb";
 
     // PRIMARY SERVICE: FIRMWARE UPGRADE - INCLUDE: DEVICE INFORMATION
+    public static String FIRMWARE_UPGRADE_SERVICE = "000018ff-0000-1000-8000-00805f9b34fb";
     // CHARACTERISTIC: FIRMWARE VERSION | FIRMWARE NEW VERSION | FIRMWARE DATA | SEQUENCE NUMBER | CHECKSUM DATA | FIRMWARE DATA CHECK | FIRMWARE UPGRADE TYPE | FIRMWARE STATUS | RESET
     public static String FIRMWARE_VERSION = "00002af0-0000-1000-8000-00805f9b34fb";         // READ
     public static String FIRMWARE_NEW_VERSION = "00002af1-0000-1000-8000-00805f9b34fb";     // READ | WRITE
@@ -52,7 +53,7 @@ public class BflAttributes {
         // FIRMWARE UPGRADE RELATED SERVICES
         attributes.put("00001800-0000-1000-8000-00805f9b34fb", "Generic Access");
         attributes.put("00001801-0000-1000-8000-00805f9b34fb", "Generic Attributes");
-        attributes.put("000018ff-0000-1000-8000-00805f9b34fb", "Firmware Upgrade Service");
+        attributes.put(FIRMWARE_UPGRADE_SERVICE, "Firmware Upgrade Service");
         attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
 
         // GENERIC ACCESS SERVICE
@@ -0,0 +1,60 @@
+package kr.co.sevencore.blefotalib;
+
+import java.util.ArrayDeque;
+
+/**
+ * BflBufferPool.java
+ * BLE FOTA Library pool of fixed-size I/O buffers.
+ * Downloads & hashing stream through pooled buffers,
+ * so heap use does not depend on the firmware size and buffers are not allocated per request.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-24
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflBufferPool {
+    private final static String BLE_FOTA_TAG = BflBufferPool.class.getSimpleName();
+
+    public final static int BUFFER_SIZE = 16 * 1024;
+    private final static int MAX_POOLED_BUFFERS = 8;
+
+    private final static ArrayDeque<byte[]> sBuffers = new ArrayDeque<byte[]>();
+
+
+    /**
+     * Get a buffer from the pool.
+     * Every acquired buffer has to be returned by release method.
+     *
+     * @return The buffer of BUFFER_SIZE bytes.
+     */
+    public static byte[] acquire() {
+        synchronized (sBuffers) {
+            byte[] buffer = sBuffers.pollFirst();
+
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Return the buffer acquired by acquire method.
+     *
+     * @param buffer is the buffer. It is not used by the caller after it is returned.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.addFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package kr.co.sevencore.blefotalib;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * BflCampaignQueue.java
+ * BLE FOTA Library campaign device queue.
+ * Devices of a firmware upgrade campaign are ordered by scanned RSSI and transfer history.
+ * Strong and historically fast devices are taken first, marginal devices are deferred
+ * and devices which are not visible are skipped until they are scanned again.
+ * When the target version is given, updated devices are added to the done filter
+ * and they are dropped by the scan service.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-03
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanner
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflCampaignQueue {
+    private final static String BLE_FOTA_TAG = BflCampaignQueue.class.getSimpleName();
+
+    public final static int DEFAULT_MARGINAL_RSSI = -85;             // Devices weaker than this value are deferred.
+    public final static long DEFAULT_VISIBILITY_TIMEOUT = 30000;     // Devices not scanned during 30 seconds are skipped.
+    public final static int DEFAULT_MAX_ATTEMPTS = 3;                // Maximum transfer attempts of each device.
+
+    private final static int RSSI_FLOOR = -100;                      // RSSI regarded as no link.
+    private final static int RSSI_CEIL = -40;                        // RSSI regarded as the best link.
+    private final static float THROUGHPUT_SMOOTHING = 0.5f;          // Weight of the latest throughput sample.
+
+    private int mMarginalRssi = DEFAULT_MARGINAL_RSSI;
+    private long mVisibilityTimeout = DEFAULT_VISIBILITY_TIMEOUT;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private HashMap<String, CampaignDevice> mDevices;     // Campaign target devices by MAC address.
+    private PriorityQueue<CampaignDevice> mQueue;         // Devices waiting for a connection slot.
+    private BflDoneFilter mDoneFilter;                    // Updated devices. null: No target version.
+    private float mThroughputSum = 0;                     // Sum of throughput of devices which have the history.
+    private int mThroughputCnt = 0;                       // Count of devices which have the history.
+    private boolean mRescoreNeeded = false;               // true: Scores of queued devices are out of date.
+
+
+    public BflCampaignQueue() {
+        this(null);
+    }
+
+    /**
+     * Create the campaign queue of the target version.
+     *
+     * @param targetVersion is the target firmware version formed into "AA-BB-CC". null: Done filter is not used.
+     */
+    public BflCampaignQueue(String targetVersion) {
+        if (targetVersion != null) {
+            mDoneFilter = new BflDoneFilter(targetVersion, BflDoneFilter.DEFAULT_EXPECTED_DEVICES);
+        }
+        mDevices = new HashMap<String, CampaignDevice>();
+        mQueue = new PriorityQueue<CampaignDevice>(16, new Comparator<CampaignDevice>() {
+            @Override
+            public int compare(CampaignDevice lhs, CampaignDevice rhs) {
+                // Strong devices go ahead of marginal devices, and higher score goes first in each group.
+                if (lhs.deferred != rhs.deferred) {
+                    return lhs.deferred ? 1 : -1;
+                }
+                return Float.compare(rhs.score, lhs.score);
+            }
+        });
+    }
+
+    /**
+     * Campaign state of each target device.
+     */
+    public class CampaignDevice {
+        public String macAddress;
+        public int rssi = RSSI_FLOOR;
+        public long lastSeen = -1;          // Elapsed realtime of the last scan. -1: never scanned.
+        public float throughput = 0;        // Smoothed transfer throughput (bytes per second). 0: no history.
+        public int attempts = 0;
+        public int failures = 0;
+        public boolean finished = false;
+        public boolean failed = false;      // true: Finished without success after the maximum attempts.
+
+        private boolean queued = false;
+        private boolean inProgress = false;
+        private boolean deferred = false;
+        private float score = 0;
+
+        public CampaignDevice(String macAddress) {
+            this.macAddress = macAddress;
+        }
+    }
+
+    /**
+     * Customize the RSSI threshold of marginal devices.
+     *
+     * @param rssi is the threshold. Devices weaker than the threshold are deferred.
+     */
+    public synchronized void setMarginalRssi(int rssi) {
+        mMarginalRssi = rssi;
+        mRescoreNeeded = true;
+    }
+
+    /**
+     * Customize the period used to decide a device is visible.
+     *
+     * @param timeout is the period from the last scan in milliseconds.
+     */
+    public synchronized void setVisibilityTimeout(long timeout) {
+        mVisibilityTimeout = timeout;
+    }
+
+    /**
+     * Customize the maximum transfer attempts of each device.
+     *
+     * @param attempts is the maximum count including the first attempt.
+     */
+    public synchronized void setMaxAttempts(int attempts) {
+        mMaxAttempts = attempts;
+    }
+
+    /**
+     * Add the target device of the campaign.
+     *
+     * @param macAddress is MAC address of the device.
+     */
+    public synchronized void addDevice(String macAddress) {
+        if (macAddress != null && !mDevices.containsKey(macAddress)) {
+            mDevices.put(macAddress, new CampaignDevice(macAddress));
+        }
+    }
+
+    /**
+     * Update the scanned information of the device.
+     * Scan information of devices which are not a campaign target is ignored.
+     *
+     * @param macAddress is MAC address of the device.
+     * @param rssi is RSSI value, when the device is scanned.
+     * @see kr.co.sevencore.blefotalib.BflDeviceScanner
+     */
+    public synchronized void updateScanInfo(String macAddress, int rssi) {
+        CampaignDevice device = mDevices.get(macAddress);
+
+        if (device == null || device.finished) {
+            return;
+        }
+
+        device.rssi = rssi;
+        device.lastSeen = SystemClock.elapsedRealtime();
+
+        // The queued device is scored again when the next device is taken.
+        if (device.queued) {
+            mRescoreNeeded = true;
+        } else if (!device.inProgress) {
+            enqueue(device);
+        }
+    }
+
+    /**
+     * Take the best device to be upgraded next.
+     * Devices which are not visible are skipped, and they are queued again when they are scanned.
+     * Scores changed by scans & transfer results are applied here, instead of for each scan.
+     *
+     * @return MAC address of the device, or null if no visible device is waiting.
+     */
+    public synchronized String poll() {
+        final long now = SystemClock.elapsedRealtime();
+        CampaignDevice device;
+
+        if (mRescoreNeeded) {
+            rescore();
+        }
+
+        while ((device = mQueue.poll()) != null) {
+            device.queued = false;
+
+            if (now - device.lastSeen > mVisibilityTimeout) {
+                Log.d(BLE_FOTA_TAG, "Skip the device which is not visible: " + device.macAddress);
+                continue;
+            }
+            device.inProgress = true;
+            device.attempts++;
+            return device.macAddress;
+        }
+        return null;
+    }
+
+    /**
+     * Report the transfer result of the device which is taken by poll method.
+     * A failed device is queued again until it reaches the maximum attempts.
+     *
+     * @param macAddress is MAC address of the device.
+     * @param bytes is the transmitted firmware data size.
+     * @param millis is the transfer time in milliseconds.
+     * @param success is the result of the firmware upgrade.
+     */
+    public synchronized void reportResult(String macAddress, long bytes, long millis, boolean success) {
+        CampaignDevice device = mDevices.get(macAddress);
+
+        if (device == null) {
+            return;
+        }
+        device.inProgress = false;
+
+        if (bytes > 0 && millis > 0) {
+            float sample = (bytes * 1000f) / millis;
+            // The campaign throughput average is changed, so every queued device is scored again.
+            mRescoreNeeded = true;
+
+            if (device.throughput == 0) {
+                device.throughput = sample;
+                mThroughputSum += sample;
+                mThroughputCnt++;
+            } else {
+                float delta = THROUGHPUT_SMOOTHING * (sample - device.throughput);
+                device.throughput += delta;
+                mThroughputSum += delta;
+            }
+        }
+
+        if (success) {
+            device.finished = true;
+
+            if (mDoneFilter != null) {
+                mDoneFilter.add(macAddress);
+            }
+        } else {
+            device.failures++;
+
+            if (device.attempts < mMaxAttempts) {
+                enqueue(device);
+            } else {
+                // Later scans of the device do not queue it again.
+                device.finished = true;
+                device.failed = true;
+                Log.w(BLE_FOTA_TAG, "Campaign gave up the device: " + macAddress);
+            }
+        }
+    }
+
+    /**
+     * Get the campaign state of the device.
+     *
+     * @param macAddress is MAC address of the device.
+     * @return the campaign state, or null if the device is not a campaign target.
+     */
+    public synchronized CampaignDevice getDevice(String macAddress) {
+        return mDevices.get(macAddress);
+    }
+
+    /**
+     * Get the set of devices updated to the target version.
+     * Devices known to be updated already can be added by a user app.
+     *
+     * @return The done filter, or null if the target version is not given.
+     */
+    public BflDoneFilter getDoneFilter() {
+        return mDoneFilter;
+    }
+
+    /**
+     * Get the count of devices waiting for a connection slot.
+     *
+     * @return The count of queued devices.
+     */
+    public synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Clear all of the campaign target devices.
+     * Updated devices are removed from the done filter, so the scan service does not drop them anymore.
+     */
+    public synchronized void clear() {
+        mQueue.clear();
+        mDevices.clear();
+        mThroughputSum = 0;
+        mThroughputCnt = 0;
+        mRescoreNeeded = false;
+
+        if (mDoneFilter != null) {
+            mDoneFilter.clear();
+        }
+    }
+
+    /**
+     * Queue the device with its priority.
+     * The score of a queued device is not changed in place, because it breaks the order of the queue.
+     *
+     * @param device is the campaign state of the device.
+     */
+    private void enqueue(CampaignDevice device) {
+        if (device.finished || device.queued) {
+            return;
+        }
+        device.deferred = device.rssi < mMarginalRssi;
+        device.score = calculateScore(device);
+        device.queued = true;
+        mQueue.add(device);
+    }
+
+    /**
+     * Score every queued device again & rebuild the queue.
+     */
+    private void rescore() {
+        ArrayList<CampaignDevice> devices = new ArrayList<CampaignDevice>(mQueue);
+        mQueue.clear();
+
+        for (CampaignDevice device : devices) {
+            device.deferred = device.rssi < mMarginalRssi;
+            device.score = calculateScore(device);
+        }
+        mQueue.addAll(devices);
+        mRescoreNeeded = false;
+    }
+
+    /**
+     * Expected transfer efficiency of the device.
+     * Link quality by RSSI, historical throughput relative to the campaign
+     * and success rate (Laplace smoothed) are multiplied.
+     *
+     * @param device is the campaign state of the device.
+     * @return The score. Higher score goes first.
+     */
+    private float calculateScore(CampaignDevice device) {
+        int rssi = Math.max(RSSI_FLOOR, Math.min(RSSI_CEIL, device.rssi));
+        float linkFactor = (float) (rssi - RSSI_FLOOR) / (RSSI_CEIL - RSSI_FLOOR);
+        float successRate = (float) (device.attempts - device.failures + 1) / (device.attempts + 2);
+        float throughputFactor = 1f;
+
+        if (device.throughput > 0 && mThroughputSum > 0) {
+            throughputFactor = device.throughput / (mThroughputSum / mThroughputCnt);
+        }
+        return (0.1f + linkFactor) * throughputFactor * successRate;
+    }
+}
@@ -242,6 +242,7 @@ public class BflCodeList {
      */
     public enum DownloadCode {
         SERVER_CONN_ERROR_UNKNOWN_DEVICE("7000"),
+        SERVER_CONN_ERROR_NETWORK_UNAVAILABLE("7001"),
         SERVER_CONN_PROCESS_PRODUCT_INFO("7100"),
         SERVER_CONN_PROCESS_CHECKING_VERSION("7101"),
         SERVER_CONN_PROCESS_GETTING_VERSION_NAME("7102"),
@@ -250,7 +251,8 @@ public class BflCodeList {
         FIRMWARE_DOWNLOAD_PROCESS_STARTING_DOWNLOAD("7200"),
         FIRMWARE_DOWNLOAD_PROGRESSING("7201"),
         FIRMWARE_DOWNLOAD_ERROR_INVALIDATE_DATA("7202"),
-        FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD("7203");
+        FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD("7203"),
+        FIRMWARE_DOWNLOAD_PROCESS_PIPELINE_READY("7204");
 
         private final String code;
 
@@ -1,17 +1,18 @@
 package kr.co.sevencore.blefotalib;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 /**
  * BflDeviceListAdapter.java
  * BLE FOTA Library Device List Adapter.
+ * Scanned devices are kept in the device registry indexed by packed MAC address,
+ * so repeated advertisements update the device in place and stale devices are expired by TTL.
  *
  * 2015 SEVENCORE Co., Ltd.
  *
@@ -19,53 +20,164 @@ import java.util.ArrayList;
  * @version 1.0.0
  * @since 2015-06-05
  * @see kr.co.sevencore.blefotalib.BflDeviceScanner
+ * @see kr.co.sevencore.blefotalib.BflDeviceRegistry
  */
 public class BflDeviceListAdapter extends BaseAdapter {
     private final static String BLE_FOTA_TAG = BflDeviceListAdapter.class.getSimpleName();
 
-    private ArrayList<BleDevice> mLeDevices;
+    private BflDeviceRegistry mLeDevices;   // Devices by packed MAC address.
     private LayoutInflater mInflater;
 
 
     public BflDeviceListAdapter(Context context) {
-        this.mLeDevices = new ArrayList<BleDevice>();
+        this.mLeDevices = new BflDeviceRegistry();
         this.mInflater = LayoutInflater.from(context);
     }
 
+    /**
+     * Snapshot of the device information in the registry.
+     */
     public class BleDevice {
         public String macAddress;
         public String bleDeviceName;
         public int bleRssi;
+        public long lastSeen;   // Elapsed realtime of the last advertisement.
+        public String firmwareVersion; // Advertised firmware version. null: Not advertised.
+        public float smoothedRssi;     // Smoothed RSSI used to compare devices.
+        public float advRate = 0;      // Received advertisements per second. 0: Unknown.
+        public float lossRate = 0;     // Estimated advertisement loss ratio from 0 to 1.
         // add unit
 
         public BleDevice(String macAddress, String bleDeviceName, int bleRssi) {
             this.macAddress = macAddress;
             this.bleDeviceName = bleDeviceName;
             this.bleRssi = bleRssi;
+            this.smoothedRssi = bleRssi;
+            this.lastSeen = SystemClock.elapsedRealtime();
         }
     }
 
     /**
      * Add the device information in the list.
+     * A known device is updated in place with the latest RSSI & device name.
      *
      * @param macAddress is MAC address of the device.
      * @param deviceName is device name composed of string.
+     * @param rssi is RSSI value of the advertisement.
+     * @return true, if the list has to be redrawn.
      */
-    public void addDevice(String macAddress, String deviceName, int rssi) {
-        boolean uniqueFlag = true;
-
-        if (!mLeDevices.isEmpty()) {
-            for(int i = 0; i < mLeDevices.size(); i++) {
-                if (mLeDevices.get(i).macAddress.equals(macAddress)) {
-                    uniqueFlag = false;
-                    break;
-                }
-            }
+    public boolean addDevice(String macAddress, String deviceName, int rssi) {
+        final long packedAddress = BflUtil.packMacAddress(macAddress);
+
+        if (packedAddress < 0) {
+            return false;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        int position = mLeDevices.indexOf(packedAddress);
+
+        if (position < 0) {
+            position = mLeDevices.add(packedAddress, now);
+            mLeDevices.setName(position, deviceName);
+            mLeDevices.setRssi(position, rssi);
+            mLeDevices.setLinkQuality(position, rssi, 0, 0);
+            return true;
         }
+        mLeDevices.setLastSeen(position, now);
+        boolean changed = false;
 
-        if (uniqueFlag) {
-            mLeDevices.add(new BleDevice(macAddress, deviceName, rssi));
+        if (mLeDevices.getRssi(position) != rssi) {
+            mLeDevices.setRssi(position, rssi);
+            changed = true;
         }
+
+        // Some advertisements don't include the device name.
+        if (deviceName != null && deviceName.length() > 0 && !deviceName.equals(mLeDevices.getName(position))) {
+            mLeDevices.setName(position, deviceName);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Update the link quality of the device.
+     *
+     * @param macAddress is MAC address of the device.
+     * @param smoothedRssi is the smoothed RSSI.
+     * @param advRate is the received advertising rate.
+     * @param lossRate is the estimated advertisement loss ratio.
+     * @return true, if the list has to be redrawn.
+     * @see kr.co.sevencore.blefotalib.BflLinkQuality
+     */
+    public boolean updateLinkQuality(String macAddress, float smoothedRssi, float advRate, float lossRate) {
+        final int position = mLeDevices.indexOf(BflUtil.packMacAddress(macAddress));
+
+        if (position < 0) {
+            return false;
+        }
+        final boolean changed = Math.round(mLeDevices.getSmoothedRssi(position)) != Math.round(smoothedRssi);
+
+        mLeDevices.setLinkQuality(position, smoothedRssi, advRate, lossRate);
+        return changed;
+    }
+
+    /**
+     * Update the advertised firmware version of the device.
+     *
+     * @param macAddress is MAC address of the device.
+     * @param firmwareVersion is the advertised firmware version.
+     */
+    public void setFirmwareVersion(String macAddress, String firmwareVersion) {
+        final int position = mLeDevices.indexOf(BflUtil.packMacAddress(macAddress));
+
+        if (position >= 0) {
+            mLeDevices.setFirmwareVersion(position, firmwareVersion);
+        }
+    }
+
+    /**
+     * Remove devices not seen during TTL.
+     *
+     * @param ttl is the period from the last advertisement in milliseconds.
+     * @return true, if the list has to be redrawn.
+     */
+    public boolean expireDevices(long ttl) {
+        return mLeDevices.expire(SystemClock.elapsedRealtime(), ttl) > 0;
+    }
+
+    /**
+     * Customize the maximum count of devices in the list.
+     *
+     * @param maxDevices is the maximum count. The oldest device is removed when it is exceeded.
+     */
+    public void setMaxDevices(int maxDevices) {
+        mLeDevices.setMaxDevices(maxDevices);
+    }
+
+    /**
+     * Get the closest device by smoothed RSSI.
+     *
+     * @return the device information, or null if no device is scanned.
+     */
+    public BleDevice getClosestDevice() {
+        int closest = -1;
+
+        for (int i = 0; i < mLeDevices.size(); i++) {
+            if (closest < 0 || mLeDevices.getSmoothedRssi(i) > mLeDevices.getSmoothedRssi(closest)) {
+                closest = i;
+            }
+        }
+        return (closest >= 0) ? makeDevice(closest) : null;
+    }
+
+    /**
+     * Get the device information of the MAC address.
+     *
+     * @param macAddress is MAC address of the device.
+     * @return the device information, or null if the device is not scanned.
+     */
+    public BleDevice getDevice(String macAddress) {
+        final int position = mLeDevices.indexOf(BflUtil.packMacAddress(macAddress));
+        return (position >= 0) ? makeDevice(position) : null;
     }
 
     /**
@@ -75,7 +187,7 @@ public class BflDeviceListAdapter extends BaseAdapter {
      * @return the device information.
      */
     public BleDevice getDevice(int position) {
-        return mLeDevices.get(position);
+        return makeDevice(position);
     }
 
     /**
@@ -85,6 +197,24 @@ public class BflDeviceListAdapter extends BaseAdapter {
         mLeDevices.clear();
     }
 
+    /**
+     * Make a snapshot of the device information in the registry.
+     *
+     * @param position is the position in the registry.
+     * @return the device information.
+     */
+    private BleDevice makeDevice(int position) {
+        BleDevice device = new BleDevice(BflUtil.unpackMacAddress(mLeDevices.getAddress(position)),
+                mLeDevices.getName(position), mLeDevices.getRssi(position));
+
+        device.lastSeen = mLeDevices.getLastSeen(position);
+        device.firmwareVersion = mLeDevices.getFirmwareVersion(position);
+        device.smoothedRssi = mLeDevices.getSmoothedRssi(position);
+        device.advRate = mLeDevices.getAdvRate(position);
+        device.lossRate = mLeDevices.getLossRate(position);
+        return device;
+    }
+
     /**
      * Get the total count of the data.
      *
@@ -103,7 +233,7 @@ public class BflDeviceListAdapter extends BaseAdapter {
      */
     @Override
     public Object getItem(int i) {
-        return mLeDevices.get(i);
+        return makeDevice(i);
     }
 
     /**
@@ -135,13 +265,13 @@ public class BflDeviceListAdapter extends BaseAdapter {
             viewHolder = (ViewHolder) view.getTag();
         }
 
-        final String deviceName = mLeDevices.get(i).bleDeviceName;
+        final String deviceName = mLeDevices.getName(i);
         if (deviceName != null && deviceName.length() > 0)
             viewHolder.deviceName.setText(deviceName);
         else
             viewHolder.deviceName.setText(R.string.unknown_device);
-        viewHolder.deviceAddress.setText(mLeDevices.get(i).macAddress);
-        viewHolder.deviceRssi.setText(Integer.toString(mLeDevices.get(i).bleRssi));
+        viewHolder.deviceAddress.setText(BflUtil.unpackMacAddress(mLeDevices.getAddress(i)));
+        viewHolder.deviceRssi.setText(Integer.toString(Math.round(mLeDevices.getSmoothedRssi(i))));
 
         return view;
     }
@@ -0,0 +1,436 @@
+package kr.co.sevencore.blefotalib;
+
+import java.util.Arrays;
+
+/**
+ * BflDeviceRegistry.java
+ * BLE FOTA Library scanned device registry.
+ * Devices are stored in dense primitive arrays indexed by position in insertion order,
+ * and looked up by an open addressing table keyed by packed MAC address.
+ * Devices not seen during TTL are expired, and the oldest device is evicted when the registry is full,
+ * so the memory footprint is bounded for long running scans.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-13
+ * @see kr.co.sevencore.blefotalib.BflDeviceListAdapter
+ */
+public class BflDeviceRegistry {
+    private final static String BLE_FOTA_TAG = BflDeviceRegistry.class.getSimpleName();
+
+    public final static int DEFAULT_MAX_DEVICES = 4096;
+    private final static int INITIAL_CAPACITY = 64;
+
+    private int mMaxDevices = DEFAULT_MAX_DEVICES;
+    private int mSize = 0;
+
+    // Dense device data. Each device is located in the same position of the arrays.
+    private long[] mAddresses = new long[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private String[] mFirmwareVersions = new String[INITIAL_CAPACITY];
+    private int[] mRssiValues = new int[INITIAL_CAPACITY];
+    private float[] mSmoothedRssiValues = new float[INITIAL_CAPACITY];
+    private float[] mAdvRates = new float[INITIAL_CAPACITY];
+    private float[] mLossRates = new float[INITIAL_CAPACITY];
+    private long[] mLastSeenTimes = new long[INITIAL_CAPACITY];
+
+    // Open addressing table (linear probing). Each slot keeps position + 1, 0: Empty slot.
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+
+    /**
+     * Customize the maximum count of devices.
+     *
+     * @param maxDevices is the maximum count. The oldest device is evicted when it is exceeded.
+     */
+    public void setMaxDevices(int maxDevices) {
+        mMaxDevices = Math.max(1, maxDevices);
+
+        while (mSize > mMaxDevices) {
+            remove(findOldest());
+        }
+    }
+
+    /**
+     * Get the position of the device.
+     *
+     * @param packedAddress is the packed MAC address.
+     * @return The position, or -1 if the device is not registered.
+     */
+    public int indexOf(long packedAddress) {
+        final int mask = mSlots.length - 1;
+
+        for (int slot = hash(packedAddress) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            if (mAddresses[mSlots[slot] - 1] == packedAddress) {
+                return mSlots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Register the device.
+     *
+     * @param packedAddress is the packed MAC address.
+     * @param now is elapsed realtime of the advertisement.
+     * @return The position of the new device.
+     */
+    public int add(long packedAddress, long now) {
+        if (mSize >= mMaxDevices) {
+            remove(findOldest());
+        }
+
+        if (mSize == mAddresses.length) {
+            grow();
+        }
+        final int position = mSize++;
+
+        mAddresses[position] = packedAddress;
+        mNames[position] = null;
+        mFirmwareVersions[position] = null;
+        mRssiValues[position] = 0;
+        mSmoothedRssiValues[position] = 0;
+        mAdvRates[position] = 0;
+        mLossRates[position] = 0;
+        mLastSeenTimes[position] = now;
+        insertSlot(packedAddress, position);
+        return position;
+    }
+
+    /**
+     * Remove devices not seen during TTL.
+     *
+     * @param now is the current elapsed realtime.
+     * @param ttl is the period from the last advertisement in milliseconds.
+     * @return The count of expired devices.
+     */
+    public int expire(long now, long ttl) {
+        int kept = 0;
+
+        // Compact the rest of the devices in one pass, so the order of the list is kept.
+        for (int i = 0; i < mSize; i++) {
+            if (now - mLastSeenTimes[i] <= ttl) {
+                if (kept != i) {
+                    move(i, kept);
+                }
+                kept++;
+            }
+        }
+        final int expiredCnt = mSize - kept;
+
+        if (expiredCnt > 0) {
+            Arrays.fill(mNames, kept, mSize, null);
+            Arrays.fill(mFirmwareVersions, kept, mSize, null);
+            mSize = kept;
+            rebuildSlots();
+        }
+        return expiredCnt;
+    }
+
+    /**
+     * Remove the device of the position.
+     * Following devices are moved forward, so the order of the list is kept.
+     *
+     * @param position is the position of the device.
+     */
+    public void remove(int position) {
+        if (position < 0 || position >= mSize) {
+            return;
+        }
+        removeSlot(mAddresses[position]);
+        final int last = --mSize;
+
+        for (int i = position; i < last; i++) {
+            move(i + 1, i);
+        }
+        mNames[last] = null;
+        mFirmwareVersions[last] = null;
+
+        // Slots keep position + 1, so slots of the moved devices are decreased.
+        for (int slot = 0; slot < mSlots.length; slot++) {
+            if (mSlots[slot] > position + 1) {
+                mSlots[slot]--;
+            }
+        }
+    }
+
+    /**
+     * Remove all of the devices.
+     */
+    public void clear() {
+        Arrays.fill(mSlots, 0);
+        Arrays.fill(mNames, 0, mSize, null);
+        Arrays.fill(mFirmwareVersions, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * Get the count of registered devices.
+     *
+     * @return The count of devices.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Get the MAC address of the device.
+     *
+     * @param position is the position of the device.
+     * @return The packed MAC address.
+     */
+    public long getAddress(int position) {
+        return mAddresses[position];
+    }
+
+    /**
+     * Get the name of the device.
+     *
+     * @param position is the position of the device.
+     * @return The device name. null: Unknown.
+     */
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    /**
+     * Save the name of the device.
+     *
+     * @param position is the position of the device.
+     * @param name is the device name.
+     */
+    public void setName(int position, String name) {
+        mNames[position] = name;
+    }
+
+    /**
+     * Get the firmware version advertised by the device.
+     *
+     * @param position is the position of the device.
+     * @return The firmware version. null: Unknown.
+     */
+    public String getFirmwareVersion(int position) {
+        return mFirmwareVersions[position];
+    }
+
+    /**
+     * Save the firmware version advertised by the device.
+     *
+     * @param position is the position of the device.
+     * @param firmwareVersion is the firmware version.
+     */
+    public void setFirmwareVersion(int position, String firmwareVersion) {
+        mFirmwareVersions[position] = firmwareVersion;
+    }
+
+    /**
+     * Get the RSSI of the last advertisement.
+     *
+     * @param position is the position of the device.
+     * @return The raw RSSI value.
+     */
+    public int getRssi(int position) {
+        return mRssiValues[position];
+    }
+
+    /**
+     * Save the RSSI of the last advertisement.
+     *
+     * @param position is the position of the device.
+     * @param rssi is the raw RSSI value.
+     */
+    public void setRssi(int position, int rssi) {
+        mRssiValues[position] = rssi;
+    }
+
+    /**
+     * Get the smoothed RSSI of the device.
+     *
+     * @param position is the position of the device.
+     * @return The smoothed RSSI value.
+     * @see kr.co.sevencore.blefotalib.BflLinkQuality
+     */
+    public float getSmoothedRssi(int position) {
+        return mSmoothedRssiValues[position];
+    }
+
+    /**
+     * Get the received advertising rate of the device.
+     *
+     * @param position is the position of the device.
+     * @return The advertisements per second. 0: Unknown.
+     */
+    public float getAdvRate(int position) {
+        return mAdvRates[position];
+    }
+
+    /**
+     * Get the estimated advertisement loss ratio of the device.
+     *
+     * @param position is the position of the device.
+     * @return The loss ratio from 0 to 1.
+     */
+    public float getLossRate(int position) {
+        return mLossRates[position];
+    }
+
+    /**
+     * Update the link quality of the device.
+     *
+     * @param position is the position of the device.
+     * @param smoothedRssi is the smoothed RSSI.
+     * @param advRate is the received advertising rate.
+     * @param lossRate is the estimated advertisement loss ratio.
+     */
+    public void setLinkQuality(int position, float smoothedRssi, float advRate, float lossRate) {
+        mSmoothedRssiValues[position] = smoothedRssi;
+        mAdvRates[position] = advRate;
+        mLossRates[position] = lossRate;
+    }
+
+    /**
+     * Get the time of the last advertisement.
+     *
+     * @param position is the position of the device.
+     * @return The elapsed realtime of the last advertisement.
+     */
+    public long getLastSeen(int position) {
+        return mLastSeenTimes[position];
+    }
+
+    /**
+     * Save the time of the last advertisement.
+     *
+     * @param position is the position of the device.
+     * @param lastSeen is the elapsed realtime of the advertisement.
+     */
+    public void setLastSeen(int position, long lastSeen) {
+        mLastSeenTimes[position] = lastSeen;
+    }
+
+    /**
+     * Move device data to another position.
+     * The slot of the device is not changed.
+     *
+     * @param from is the current position.
+     * @param to is the new position.
+     */
+    private void move(int from, int to) {
+        mAddresses[to] = mAddresses[from];
+        mNames[to] = mNames[from];
+        mFirmwareVersions[to] = mFirmwareVersions[from];
+        mRssiValues[to] = mRssiValues[from];
+        mSmoothedRssiValues[to] = mSmoothedRssiValues[from];
+        mAdvRates[to] = mAdvRates[from];
+        mLossRates[to] = mLossRates[from];
+        mLastSeenTimes[to] = mLastSeenTimes[from];
+    }
+
+    /**
+     * Find the device not seen for the longest time.
+     *
+     * @return The position of the device, or -1 if the registry is empty.
+     */
+    private int findOldest() {
+        int oldest = -1;
+
+        for (int i = 0; i < mSize; i++) {
+            if (oldest < 0 || mLastSeenTimes[i] < mLastSeenTimes[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Double the dense arrays & the table.
+     * The table is kept at most half full.
+     */
+    private void grow() {
+        final int capacity = mAddresses.length * 2;
+
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mFirmwareVersions = Arrays.copyOf(mFirmwareVersions, capacity);
+        mRssiValues = Arrays.copyOf(mRssiValues, capacity);
+        mSmoothedRssiValues = Arrays.copyOf(mSmoothedRssiValues, capacity);
+        mAdvRates = Arrays.copyOf(mAdvRates, capacity);
+        mLossRates = Arrays.copyOf(mLossRates, capacity);
+        mLastSeenTimes = Arrays.copyOf(mLastSeenTimes, capacity);
+
+        mSlots = new int[capacity * 2];
+        rebuildSlots();
+    }
+
+    /**
+     * Insert every device into the empty table again.
+     */
+    private void rebuildSlots() {
+        Arrays.fill(mSlots, 0);
+
+        for (int i = 0; i < mSize; i++) {
+            insertSlot(mAddresses[i], i);
+        }
+    }
+
+    private void insertSlot(long packedAddress, int position) {
+        final int mask = mSlots.length - 1;
+        int slot = hash(packedAddress) & mask;
+
+        while (mSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mSlots[slot] = position + 1;
+    }
+
+    private int findSlot(long packedAddress) {
+        final int mask = mSlots.length - 1;
+
+        for (int slot = hash(packedAddress) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            if (mAddresses[mSlots[slot] - 1] == packedAddress) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the slot of the device.
+     * Following slots of the probe sequence are shifted back, so lookups never stop at a hole.
+     *
+     * @param packedAddress is the packed MAC address.
+     */
+    private void removeSlot(long packedAddress) {
+        final int mask = mSlots.length - 1;
+        int hole = findSlot(packedAddress);
+
+        if (hole < 0) {
+            return;
+        }
+        mSlots[hole] = 0;
+
+        for (int slot = (hole + 1) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            final int home = hash(mAddresses[mSlots[slot] - 1]) & mask;
+
+            // Move the entry if its home slot is not between the hole and the current slot (cyclically).
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mSlots[hole] = mSlots[slot];
+                mSlots[slot] = 0;
+                hole = slot;
+            }
+        }
+    }
+
+    /**
+     * Spread the packed MAC address. Vendor prefixes share the upper bits.
+     *
+     * @param packedAddress is the packed MAC address.
+     * @return The hash value.
+     */
+    private static int hash(long packedAddress) {
+        long h = packedAddress * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -1,19 +1,37 @@
 package kr.co.sevencore.blefotalib;
 
+import android.annotation.TargetApi;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * BflDeviceScanService.java
  * BLE FOTA Library Scanning BLE devices Service.
+ * Advertisements are aggregated into a batch of unique devices during each batch interval,
+ * and the batch is delivered as one broadcast.
+ * Scan filter conditions are offloaded on API 21 and above, and checked by software on every API level.
+ * When the server version is set, devices advertising a firmware version equal to it are not delivered.
+ * The scan policy terminates the scan early and duty-cycles background scanning.
  *
  * 2015 SEVENCORE Co., Ltd.
  *
@@ -29,8 +47,28 @@ public class BflDeviceScanService extends Service {
     private BluetoothManager mBflBluetoothManager;
     private BluetoothAdapter mBflBluetoothAdapter;
 
+    private HandlerThread mBflScanThread;  // Scan timer & batch delivery run off the main looper.
     private Handler mBflScanHandler;
     private long mBflScanPeriod = 10000; // Stops scanning after 10 seconds.
+    private long mBflBatchInterval = 500; // Delivers the scan batch every 0.5 seconds.
+
+    private volatile BflScanFilter mBflScanFilter;     // null: Every device is delivered.
+    private static volatile BflDoneFilter sBflDoneFilter; // Updated devices of the campaign. null: Not used.
+    private static volatile boolean sBflLegacyBroadcast = false; // true: ACTION_BFL_SCAN_DATA is sent for each device.
+    private volatile String mBflServerVersion;         // null: Advertised version is not checked.
+    private volatile int mBflVersionOffset = -1;       // Version offset in manufacturer specific data.
+    private ScanCallback mBflLeScanCallback;           // Scan callback of API 21 and above.
+    private boolean mBflLeScannerUsed = false;          // The flag used to check which scanner is started.
+    private boolean mBflScanning = false;               // The flag used to check the platform scan is started.
+    private volatile boolean mBflScanSession = false;   // The flag used to check scanning is requested (including pauses).
+    private final BflScanPolicy mBflScanPolicy = new BflScanPolicy();
+
+    private final HashMap<Long, ScanEntry> mBflScanBatch = new HashMap<Long, ScanEntry>(); // Devices by packed MAC address.
+    private final HashMap<Long, BflLinkQuality> mBflLinkQualities = new HashMap<Long, BflLinkQuality>(); // Kept across batches.
+    private final static long LINK_QUALITY_TTL = 60000;     // Link quality of devices not seen during 60 seconds is removed.
+    private final static long LINK_QUALITY_PRUNE_PERIOD = 10000;
+    private long mBflLastPruneTime = 0;
+    private boolean mBflBatchPending = false; // The flag used to check the batch delivery is posted.
 
     // Reserved for immortal background (device scanning) service.
     /*private static PowerManager sPowerManager;
@@ -38,20 +76,67 @@ public class BflDeviceScanService extends Service {
 
     public final static String ACTION_BFL_SCAN_STATE_DATA =
             "kr.co.sevencore.ble.fota.lib.ACTION_SCAN_STATE_DATA";
-    public final static String ACTION_BFL_SCAN_DATA =
-            "kr.co.sevencore.ble.fota.lib.ACTION_SCAN_DATA";
     public final static String EXTRA_BFL_SCAN_STATE_DATA =
             "kr.co.sevencore.ble.fota.lib.SCAN_STATE_DATA";
+    /**
+     * @deprecated Use ACTION_BFL_SCAN_BATCH_DATA. It is sent once for each device of a batch, not for each advertisement,
+     * only if it is enabled by setLegacyBroadcast method.
+     */
+    @Deprecated
+    public final static String ACTION_BFL_SCAN_DATA =
+            "kr.co.sevencore.ble.fota.lib.ACTION_SCAN_DATA";
+    /** @deprecated Use EXTRA_BFL_MAC_ADDRESS_LIST_DATA of ACTION_BFL_SCAN_BATCH_DATA. */
+    @Deprecated
     public final static String EXTRA_BFL_MAC_ADDRESS_DATA =
             "kr.co.sevencore.ble.fota.lib.MAC_ADDRESS_DATA";
+    /** @deprecated Use EXTRA_BFL_DEVICE_NAME_LIST_DATA of ACTION_BFL_SCAN_BATCH_DATA. */
+    @Deprecated
     public final static String EXTRA_BFL_DEVICE_NAME_DATA =
             "kr.co.sevencore.ble.fota.lib.DEVICE_NAME_DATA";
+    /** @deprecated Use EXTRA_BFL_RSSI_LIST_DATA of ACTION_BFL_SCAN_BATCH_DATA. */
+    @Deprecated
     public final static String EXTRA_BFL_RSSI_DATA =
             "kr.co.sevencore.ble.fota.lib.RSSI_DATA";
+    public final static String ACTION_BFL_SCAN_BATCH_DATA =
+            "kr.co.sevencore.ble.fota.lib.ACTION_SCAN_BATCH_DATA";
+    public final static String EXTRA_BFL_MAC_ADDRESS_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.MAC_ADDRESS_LIST_DATA";
+    public final static String EXTRA_BFL_DEVICE_NAME_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.DEVICE_NAME_LIST_DATA";
+    public final static String EXTRA_BFL_RSSI_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.RSSI_LIST_DATA";
+    public final static String EXTRA_BFL_ADV_COUNT_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.ADV_COUNT_LIST_DATA";
+    public final static String EXTRA_BFL_FIRST_SEEN_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.FIRST_SEEN_LIST_DATA";
+    public final static String EXTRA_BFL_LAST_SEEN_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.LAST_SEEN_LIST_DATA";
+    public final static String EXTRA_BFL_FIRMWARE_VERSION_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.FIRMWARE_VERSION_LIST_DATA";
+    public final static String EXTRA_BFL_SMOOTHED_RSSI_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.SMOOTHED_RSSI_LIST_DATA";
+    public final static String EXTRA_BFL_ADV_RATE_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.ADV_RATE_LIST_DATA";
+    public final static String EXTRA_BFL_LOSS_RATE_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.LOSS_RATE_LIST_DATA";
 
 
     public BflDeviceScanService() {}
 
+    /**
+     * Aggregated advertisements of a device during the batch interval.
+     */
+    private static class ScanEntry {
+        String macAddress;
+        String deviceName;
+        int rssi;           // The latest RSSI value.
+        int count;          // Count of advertisements.
+        long firstSeen;     // Elapsed realtime of the first advertisement.
+        long lastSeen;      // Elapsed realtime of the last advertisement.
+        String firmwareVersion; // Advertised firmware version. null: Not advertised.
+        BflLinkQuality linkQuality;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBflScanBinder;
@@ -108,6 +193,83 @@ public class BflDeviceScanService extends Service {
             scanBflLeDevice(enable);
         }
 
+        /**
+         * Customize the delivery interval of the scan batch by a user.
+         *
+         * @param interval of the scan batch delivery in milliseconds.
+         * @throws RemoteException
+         */
+        @Override
+        public void setBatchInterval(long interval) throws RemoteException {
+            mBflBatchInterval = interval;
+        }
+
+        /**
+         * Customize the scan filter by a user.
+         * While scanning, the scan is restarted with the new filter.
+         *
+         * @param serviceUuid is the advertised service UUID. null: Any service.
+         * @param manufacturerId is the company identifier of manufacturer specific data. -1: Any manufacturer.
+         * @param manufacturerData is the leading manufacturer specific data. null: Any data.
+         * @param macAddresses is MAC address allowlist. null: Any device.
+         * @throws RemoteException
+         * @see kr.co.sevencore.blefotalib.BflScanFilter
+         */
+        @Override
+        public void setScanFilter(String serviceUuid, int manufacturerId,
+                                  byte[] manufacturerData, String[] macAddresses) throws RemoteException {
+            BflScanFilter scanFilter = new BflScanFilter(serviceUuid, manufacturerId, manufacturerData, macAddresses);
+            mBflScanFilter = scanFilter.isEmpty() ? null : scanFilter;
+
+            // The offloaded filter is changed only by restarting the scan.
+            restartLeScan();
+        }
+
+        /**
+         * Set the firmware version from the server to check update eligibility before connection.
+         * Devices without the advertised version are delivered, and the version is read after connection.
+         *
+         * @param version is the firmware version from the server. null: Every device is delivered.
+         * @param manufacturerDataOffset is the version offset in manufacturer specific data.
+         *                               -1: Only service data of Firmware Upgrade Service is used.
+         * @throws RemoteException
+         * @see kr.co.sevencore.blefotalib.BflAdvertisement
+         */
+        @Override
+        public void setServerVersion(String version, int manufacturerDataOffset) throws RemoteException {
+            mBflVersionOffset = manufacturerDataOffset;
+            mBflServerVersion = version;
+        }
+
+        /**
+         * Customize the early termination conditions of scanning by a user.
+         *
+         * @param targetMacAddresses is MAC addresses to be seen. null: Not used.
+         * @param targetCount is the count of eligible devices to be found. 0: Not used.
+         * @param idleTimeout is the period without new device in milliseconds. 0: Not used.
+         * @throws RemoteException
+         * @see kr.co.sevencore.blefotalib.BflScanPolicy
+         */
+        @Override
+        public void setEarlyTermination(String[] targetMacAddresses, int targetCount, long idleTimeout) throws RemoteException {
+            mBflScanPolicy.setEarlyTermination(targetMacAddresses, targetCount, idleTimeout);
+        }
+
+        /**
+         * Customize the duty cycle of background scanning by a user.
+         * Duty-cycled scanning continues until it is stopped or terminated early, regardless of the scanning period.
+         *
+         * @param minWindow is the minimum scan window in milliseconds. 0: Continuous scanning.
+         * @param maxWindow is the maximum scan window in milliseconds.
+         * @param scanInterval is the pause between scan windows in milliseconds.
+         * @throws RemoteException
+         * @see kr.co.sevencore.blefotalib.BflScanPolicy
+         */
+        @Override
+        public void setDutyCycle(long minWindow, long maxWindow, long scanInterval) throws RemoteException {
+            mBflScanPolicy.setDutyCycle(minWindow, maxWindow, scanInterval);
+        }
+
         @Override
         public void basicTypes(int anInt, long aLong, boolean aBoolean, float aFloat,
                                 double aDouble, String aString) {}
@@ -118,6 +280,26 @@ public class BflDeviceScanService extends Service {
         return super.onUnbind(intent);
     }
 
+    /**
+     * Set the updated devices of the campaign to be dropped in the scan callback.
+     *
+     * @param doneFilter is the done filter of the campaign. null: Not used.
+     * @see kr.co.sevencore.blefotalib.BflCampaignQueue
+     */
+    public static void setDoneFilter(BflDoneFilter doneFilter) {
+        sBflDoneFilter = doneFilter;
+    }
+
+    /**
+     * Enable the deprecated broadcast for each device of a batch.
+     * It multiplies the broadcasts by the device count, so it is only for receivers not migrated to the batch.
+     *
+     * @param enabled is true to send ACTION_BFL_SCAN_DATA with ACTION_BFL_SCAN_BATCH_DATA. Default: false.
+     */
+    public static void setLegacyBroadcast(boolean enabled) {
+        sBflLegacyBroadcast = enabled;
+    }
+
     /**
      * Update scanning state.
      *
@@ -130,6 +312,81 @@ public class BflDeviceScanService extends Service {
         sendBroadcast(intent);
     }
 
+    /**
+     * Deliver the scan batch of the current batch interval.
+     * Each device information is delivered in the same index of the arrays.
+     *
+     * @param action used to filtering.
+     */
+    private void broadcastBatchUpdate(final String action) {
+        final Intent intent = new Intent(action);
+        final String[] macAddresses;
+        final String[] deviceNames;
+        final String[] firmwareVersions;
+        final int[] rssiValues;
+        final int[] advCounts;
+        final long[] firstSeenTimes;
+        final long[] lastSeenTimes;
+        final float[] smoothedRssiValues;
+        final float[] advRates;
+        final float[] lossRates;
+
+        synchronized (mBflScanBatch) {
+            mBflBatchPending = false;
+            pruneLinkQualities();
+            final int batchSize = mBflScanBatch.size();
+
+            if (batchSize == 0) {
+                return;
+            }
+            macAddresses = new String[batchSize];
+            deviceNames = new String[batchSize];
+            firmwareVersions = new String[batchSize];
+            rssiValues = new int[batchSize];
+            advCounts = new int[batchSize];
+            firstSeenTimes = new long[batchSize];
+            lastSeenTimes = new long[batchSize];
+            smoothedRssiValues = new float[batchSize];
+            advRates = new float[batchSize];
+            lossRates = new float[batchSize];
+
+            int i = 0;
+            for (ScanEntry entry : mBflScanBatch.values()) {
+                macAddresses[i] = entry.macAddress;
+                deviceNames[i] = entry.deviceName;
+                firmwareVersions[i] = entry.firmwareVersion;
+                rssiValues[i] = entry.rssi;
+                advCounts[i] = entry.count;
+                firstSeenTimes[i] = entry.firstSeen;
+                lastSeenTimes[i] = entry.lastSeen;
+                smoothedRssiValues[i] = entry.linkQuality.getRssi();
+                advRates[i] = entry.linkQuality.getAdvertisingRate();
+                lossRates[i] = entry.linkQuality.getLossRate();
+                i++;
+            }
+            mBflScanBatch.clear();
+        }
+
+        intent.putExtra(EXTRA_BFL_MAC_ADDRESS_LIST_DATA, macAddresses);
+        intent.putExtra(EXTRA_BFL_DEVICE_NAME_LIST_DATA, deviceNames);
+        intent.putExtra(EXTRA_BFL_FIRMWARE_VERSION_LIST_DATA, firmwareVersions);
+        intent.putExtra(EXTRA_BFL_RSSI_LIST_DATA, rssiValues);
+        intent.putExtra(EXTRA_BFL_ADV_COUNT_LIST_DATA, advCounts);
+        intent.putExtra(EXTRA_BFL_FIRST_SEEN_LIST_DATA, firstSeenTimes);
+        intent.putExtra(EXTRA_BFL_LAST_SEEN_LIST_DATA, lastSeenTimes);
+        intent.putExtra(EXTRA_BFL_SMOOTHED_RSSI_LIST_DATA, smoothedRssiValues);
+        intent.putExtra(EXTRA_BFL_ADV_RATE_LIST_DATA, advRates);
+        intent.putExtra(EXTRA_BFL_LOSS_RATE_LIST_DATA, lossRates);
+        sendBroadcast(intent);
+
+        // Receivers of the former per-advertisement broadcast receive each device of the batch, if it is enabled.
+        if (sBflLegacyBroadcast) {
+            for (int i = 0; i < macAddresses.length; i++) {
+                broadcastUpdate(ACTION_BFL_SCAN_DATA, macAddresses[i], deviceNames[i], rssiValues[i]);
+            }
+        }
+    }
+
     /**
      * Update BLE device information.
      *
@@ -147,6 +404,77 @@ public class BflDeviceScanService extends Service {
         sendBroadcast(intent);
     }
 
+    /**
+     * Remove link quality of devices not seen during TTL, so long running scans keep bounded state.
+     * It is called with the lock of the scan batch.
+     */
+    private void pruneLinkQualities() {
+        final long now = SystemClock.elapsedRealtime();
+
+        if (now - mBflLastPruneTime < LINK_QUALITY_PRUNE_PERIOD) {
+            return;
+        }
+        mBflLastPruneTime = now;
+
+        Iterator<BflLinkQuality> iterator = mBflLinkQualities.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getLastSeen() > LINK_QUALITY_TTL) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Batch delivery task posted once per batch interval.
+     */
+    private final Runnable mBflBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            broadcastBatchUpdate(ACTION_BFL_SCAN_BATCH_DATA);
+        }
+    };
+
+    /**
+     * Scan timer task stopping scanning after the scanning period.
+     */
+    private final Runnable mBflScanStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopLeScan();
+        }
+    };
+
+    /**
+     * Idle timeout task stopping scanning when no new device appears.
+     */
+    private final Runnable mBflIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(BLE_FOTA_TAG, "No new device during the idle timeout.");
+            stopLeScan();
+        }
+    };
+
+    /**
+     * Scan window task pausing the duty-cycled scanning.
+     */
+    private final Runnable mBflWindowEndRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pauseLeScan();
+        }
+    };
+
+    /**
+     * Scan window task resuming the duty-cycled scanning.
+     */
+    private final Runnable mBflWindowStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            resumeLeScan();
+        }
+    };
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         //TODO: START_REDELIVER_INTENT is used for immortal background (BLE device scanning) service.
@@ -163,7 +491,9 @@ public class BflDeviceScanService extends Service {
         sCpuWakeLock = sPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FIRMWARE_DOWNLOAD");
         sCpuWakeLock.acquire();*/
 
-        mBflScanHandler = new Handler();
+        mBflScanThread = new HandlerThread(BLE_FOTA_TAG);
+        mBflScanThread.start();
+        mBflScanHandler = new Handler(mBflScanThread.getLooper());
     }
 
     @Override
@@ -175,49 +505,331 @@ public class BflDeviceScanService extends Service {
             sCpuWakeLock = null;
         }*/
 
+        synchronized (this) {
+            if (mBflScanning) {
+                stopPlatformScan();
+                mBflScanning = false;
+            }
+            mBflScanSession = false;
+        }
+
         mBflBluetoothAdapter = null;
         mBflBluetoothManager = null;
 
-        mBflScanHandler.removeMessages(0);
+        mBflScanHandler.removeCallbacksAndMessages(null);
+        mBflScanThread.quit();
         //mBflScanHandler = null;
     }
 
     /**
      * Scan BLE device during scanning period.
      * Each broadcastUpdates are used to update scanning state.
+     * Enabling the scan while scanning restarts the scan and the scanning period.
      *
      * @param enable is the flag to start or stop scanning.
      * @see kr.co.sevencore.blefotalib.BflDeviceScanner
      */
-    public void scanBflLeDevice(final boolean enable) {
+    public synchronized void scanBflLeDevice(final boolean enable) {
+        if (mBflBluetoothAdapter == null) {
+            Log.e(BLE_FOTA_TAG, "Scanning is requested before initialization.");
+            return;
+        }
+        removeScanTimers();
+
         if (enable) {
-            mBflScanHandler.postDelayed(
-                    new Runnable() {
-                @Override
-                public void run() {
-                    broadcastUpdate(ACTION_BFL_SCAN_STATE_DATA, false);
-                    mBflBluetoothAdapter.stopLeScan(mLeScanCallback);
-                }
-            }, mBflScanPeriod);
+            mBflScanPolicy.reset();
+
+            if (mBflScanPolicy.isDutyCycled()) {
+                mBflScanHandler.postDelayed(mBflWindowEndRunnable, mBflScanPolicy.getWindow());
+            } else {
+                mBflScanHandler.postDelayed(mBflScanStopRunnable, mBflScanPeriod);
+            }
 
-            broadcastUpdate(ACTION_BFL_SCAN_STATE_DATA, true);
+            if (mBflScanPolicy.getIdleTimeout() > 0) {
+                mBflScanHandler.postDelayed(mBflIdleRunnable, mBflScanPolicy.getIdleTimeout());
+            }
 
-            mBflBluetoothAdapter.startLeScan(mLeScanCallback);
+            if (mBflScanning) {
+                stopPlatformScan();
+            } else if (!mBflScanSession) {
+                broadcastUpdate(ACTION_BFL_SCAN_STATE_DATA, true);
+            }
+            mBflScanSession = true;
+            startLeScan();
+        } else {
+            stopLeScan();
+        }
+    }
+
+    /**
+     * Restart the platform scan to apply the scan filter, if scanning.
+     * The scanning state & scanning period are not changed.
+     */
+    private synchronized void restartLeScan() {
+        if (mBflScanning) {
+            stopPlatformScan();
+            startLeScan();
+        }
+    }
+
+    /**
+     * Start scanning with the scanner of the platform.
+     * API 21 and above offload the scan filter, API 18 ~ 20 filter scan results by software only.
+     */
+    private void startLeScan() {
+        mBflScanning = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                mBflBluetoothAdapter.getBluetoothLeScanner() != null) {
+            mBflLeScannerUsed = true;
+            startLollipopScan();
         } else {
-            broadcastUpdate(ACTION_BFL_SCAN_STATE_DATA, false);
+            mBflLeScannerUsed = false;
+            mBflBluetoothAdapter.startLeScan(mLeScanCallback);
+        }
+    }
+
+    /**
+     * Stop scanning & deliver the rest of the scan batch before the scanning state.
+     */
+    private synchronized void stopLeScan() {
+        removeScanTimers();
+        stopPlatformScan();
+        mBflScanning = false;
+        mBflScanSession = false;
+
+        mBflScanHandler.removeCallbacks(mBflBatchRunnable);
+        broadcastBatchUpdate(ACTION_BFL_SCAN_BATCH_DATA);
+        broadcastUpdate(ACTION_BFL_SCAN_STATE_DATA, false);
+    }
+
+    /**
+     * Pause the duty-cycled scanning at the end of the scan window.
+     * The scanning state is not changed during the pause.
+     * The idle timeout is suspended, because no device can be found while the scan is paused.
+     */
+    private synchronized void pauseLeScan() {
+        if (!mBflScanning) {
+            return;
+        }
+        mBflScanHandler.removeCallbacks(mBflIdleRunnable);
+        stopPlatformScan();
+        mBflScanning = false;
+
+        mBflScanHandler.removeCallbacks(mBflBatchRunnable);
+        broadcastBatchUpdate(ACTION_BFL_SCAN_BATCH_DATA);
+
+        mBflScanPolicy.onWindowFinished();
+        mBflScanHandler.postDelayed(mBflWindowStartRunnable, mBflScanPolicy.getScanInterval());
+    }
+
+    /**
+     * Resume the duty-cycled scanning with the adapted scan window.
+     * The idle timeout starts again with the scan window.
+     */
+    private synchronized void resumeLeScan() {
+        if (!mBflScanSession || mBflBluetoothAdapter == null) {
+            return;
+        }
+        mBflScanHandler.postDelayed(mBflWindowEndRunnable, mBflScanPolicy.getWindow());
+
+        if (mBflScanPolicy.getIdleTimeout() > 0) {
+            mBflScanHandler.postDelayed(mBflIdleRunnable, mBflScanPolicy.getIdleTimeout());
+        }
+        startLeScan();
+    }
 
+    /**
+     * Remove the scanning period, scan window & idle timeout timers.
+     */
+    private void removeScanTimers() {
+        mBflScanHandler.removeCallbacks(mBflScanStopRunnable);
+        mBflScanHandler.removeCallbacks(mBflIdleRunnable);
+        mBflScanHandler.removeCallbacks(mBflWindowEndRunnable);
+        mBflScanHandler.removeCallbacks(mBflWindowStartRunnable);
+    }
+
+    /**
+     * Stop the scanner of the platform which is started.
+     */
+    private void stopPlatformScan() {
+        if (mBflLeScannerUsed) {
+            stopLollipopScan();
+        } else {
             mBflBluetoothAdapter.stopLeScan(mLeScanCallback);
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startLollipopScan() {
+        final BluetoothLeScanner bluetoothLeScanner = mBflBluetoothAdapter.getBluetoothLeScanner();
+        final BflScanFilter scanFilter = mBflScanFilter;
+
+        if (mBflLeScanCallback == null) {
+            mBflLeScanCallback = new BflLeScanCallback();
+        }
+
+        ScanSettings scanSettings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+        bluetoothLeScanner.startScan(
+                (scanFilter != null) ? scanFilter.buildScanFilters() : null, scanSettings, mBflLeScanCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopLollipopScan() {
+        final BluetoothLeScanner bluetoothLeScanner = mBflBluetoothAdapter.getBluetoothLeScanner();
+
+        // The scanner is null if Bluetooth is turned off.
+        if (bluetoothLeScanner != null && mBflLeScanCallback != null) {
+            bluetoothLeScanner.stopScan(mBflLeScanCallback);
+        }
+    }
+
     /**
-     * BLE scan callback.
+     * Filter & aggregate an advertisement into the scan batch.
+     * Advertisements are only aggregated here, the batch is delivered on the scan thread.
+     *
+     * @param bluetoothDevice is the advertising device.
+     * @param rssi is RSSI value of the advertisement.
+     * @param scanRecord is the raw advertising data & scan response.
+     */
+    private void onAdvertisement(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        final String macAddress = bluetoothDevice.getAddress();
+        final long packedAddress = BflUtil.packMacAddress(macAddress);
+        final BflDoneFilter doneFilter = sBflDoneFilter;
+
+        if (doneFilter != null && doneFilter.contains(packedAddress)) {
+            return;
+        }
+        final BflScanFilter scanFilter = mBflScanFilter;
+
+        if (scanFilter != null && !scanFilter.matchesAddress(packedAddress)) {
+            return;
+        }
+        final BflAdvertisement advertisement = BflAdvertisement.parse(scanRecord);
+
+        if (scanFilter != null && !scanFilter.matches(advertisement)) {
+            return;
+        }
+        final String serverVersion = mBflServerVersion;
+        final String firmwareVersion = advertisement.getFirmwareVersion(mBflVersionOffset);
+
+        if (serverVersion != null && firmwareVersion != null && !needsUpdate(firmwareVersion, serverVersion)) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+
+        if (mBflScanSession && mBflScanPolicy.onDeviceSeen(packedAddress)) {
+            if (mBflScanPolicy.isSatisfied()) {
+                // Every target is found. The rest of the scanning period is left for transfers.
+                mBflScanHandler.post(mBflScanStopRunnable);
+            } else if (mBflScanPolicy.getIdleTimeout() > 0) {
+                mBflScanHandler.removeCallbacks(mBflIdleRunnable);
+                mBflScanHandler.postDelayed(mBflIdleRunnable, mBflScanPolicy.getIdleTimeout());
+            }
+        }
+
+        synchronized (mBflScanBatch) {
+            ScanEntry entry = mBflScanBatch.get(packedAddress);
+
+            if (entry == null) {
+                entry = new ScanEntry();
+                entry.macAddress = macAddress;
+                entry.firstSeen = now;
+                entry.linkQuality = mBflLinkQualities.get(packedAddress);
+
+                if (entry.linkQuality == null) {
+                    entry.linkQuality = new BflLinkQuality();
+                    mBflLinkQualities.put(packedAddress, entry.linkQuality);
+                }
+                mBflScanBatch.put(packedAddress, entry);
+            }
+            entry.linkQuality.update(rssi, now);
+
+            if (entry.deviceName == null) {
+                entry.deviceName = (advertisement.getLocalName() != null) ?
+                        advertisement.getLocalName() : bluetoothDevice.getName();
+            }
+            if (firmwareVersion != null) {
+                entry.firmwareVersion = firmwareVersion;
+            }
+            entry.rssi = rssi;
+            entry.count++;
+            entry.lastSeen = now;
+
+            if (!mBflBatchPending) {
+                mBflBatchPending = true;
+                mBflScanHandler.postDelayed(mBflBatchRunnable, mBflBatchInterval);
+            }
+        }
+    }
+
+    /**
+     * Check the advertised firmware version differs from the server version.
+     * Same as BflFwVerChecker, both upgrade & downgrade need the firmware update.
+     *
+     * @param firmwareVersion is the advertised firmware version.
+     * @param serverVersion is the firmware version from the server.
+     * @return true, if the device needs the firmware update or the version is not comparable.
+     * @see kr.co.sevencore.blefotalib.BflFwVerChecker
+     */
+    private static boolean needsUpdate(String firmwareVersion, String serverVersion) {
+        // Most advertisements of an updated fleet have the same version, so they are not parsed.
+        if (firmwareVersion.equals(serverVersion)) {
+            return false;
+        }
+
+        try {
+            return BflUtil.compareVersionQuietly(firmwareVersion, serverVersion) !=
+                    BflCodeList.UpgradeVersionTypeCode.FIRMWARE_UP_TO_DATE.getCode();
+        } catch (NumberFormatException e) {
+            // Malformed version is checked again after connection.
+            return true;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * BLE scan callback of API 18 ~ 20.
      */
     private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
         @Override
         public void onLeScan(final BluetoothDevice bluetoothDevice, int i, byte[] bytes) {
-            Log.d(BLE_FOTA_TAG, " Scanning information: " + bluetoothDevice.getAddress() + " " +  bluetoothDevice.getName() + "'s RSSI is " + i);
-            broadcastUpdate(ACTION_BFL_SCAN_DATA, bluetoothDevice.getAddress(), bluetoothDevice.getName(), i);
+            onAdvertisement(bluetoothDevice, i, bytes);
         }
     };
+
+    /**
+     * BLE scan callback of API 21 and above.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class BflLeScanCallback extends ScanCallback {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            final ScanRecord scanRecord = result.getScanRecord();
+            onAdvertisement(result.getDevice(), result.getRssi(), (scanRecord != null) ? scanRecord.getBytes() : null);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onScanResult(0, result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(BLE_FOTA_TAG, "Unable to start scanning with the scan filter: " + errorCode);
+
+            // Software filtering is used instead.
+            synchronized (BflDeviceScanService.this) {
+                if (mBflScanning) {
+                    mBflLeScannerUsed = false;
+                    mBflBluetoothAdapter.startLeScan(mLeScanCallback);
+                }
+            }
+        }
+    }
 }
@@ -6,13 +6,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
 /**
  * BflDeviceScanner.java
  * BLE FOTA Library Scanning BLE devices.
+ * The scanner stays bound to the scan service during the session,
+ * so scanning is started, stopped & re-filtered by a single AIDL call.
+ * The scanned device list is kept across scans until it is cleared.
  *
  * 2015 SEVENCORE Co., Ltd.
  *
@@ -28,16 +33,42 @@ public class BflDeviceScanner {
 
     public IBflDeviceScanSvc mBflScanBinder;    // BLE device scan service AIDL.
     private Intent mScanServiceIntent;
+    private boolean mBound = false;            // The flag used to check the scan service is bound.
+    private boolean mInitialized = false;      // The flag used to check Bluetooth is initialized by the service.
     private boolean mScanning;                 // The flag used to check scanning or not.
     private boolean mScanPeriodFlag = false; // The flag used to customize scanning period.
     private long mScanPeriod;                  // Scanning period defined by user.
+    private long mBatchInterval = -1;          // Scan batch interval defined by user. -1: Default interval.
+    private boolean mScanFilterFlag = false;   // The flag used to customize scan filter.
+    private String mFilterServiceUuid;         // Scan filter defined by user.
+    private int mFilterManufacturerId = -1;
+    private byte[] mFilterManufacturerData;
+    private String[] mFilterMacAddresses;
+    private boolean mServerVersionFlag = false; // The flag used to check update eligibility by advertised version.
+    private String mServerVersion;
+    private int mVersionOffset = -1;
+    private boolean mEarlyTerminationFlag = false; // The flag used to customize early termination of scanning.
+    private String[] mTargetMacAddresses;
+    private int mTargetCount;
+    private long mIdleTimeout;
+    private boolean mDutyCycleFlag = false;        // The flag used to customize duty-cycled scanning.
+    private long mMinWindow;
+    private long mMaxWindow;
+    private long mScanInterval;
 
     private Context mContext;
 
     public static BflDeviceListAdapter sLeDeviceListAdapter; // The adapter saving information of scanned BLE devices.
+    private final static long LIST_REFRESH_PERIOD = 16;      // List view refresh tick (about 60 fps).
+    public final static long DEFAULT_DEVICE_TTL = 60000;     // Devices not seen during 60 seconds are removed.
+    private long mDeviceTtl = DEFAULT_DEVICE_TTL;
+    private Handler mListRefreshHandler = new Handler(Looper.getMainLooper());
+    private boolean mListRefreshPending = false;             // The flag used to check the refresh is posted.
+    private BflCampaignQueue mCampaignQueue;                 // Campaign queue ordered by scanned RSSI.
 
     private OnScanningSvcInit mScanningSvcInitCallback;   // Service initialization result of scanning callback.
     private OnScannedInfo mScannedCallback;                // BLE scan information callback.
+    private OnLinkQualityListener mLinkQualityCallback;    // BLE link quality callback.
     private OnScanningState mScanningCallback;             // BLE scan state callback.
 
 
@@ -72,6 +103,21 @@ public class BflDeviceScanner {
         void onDeviceInfo(String address, String name, int rssi);
     }
 
+    /**
+     * OnLinkQualityListener interface is used to get link quality of scanned devices.
+     */
+    public interface OnLinkQualityListener {
+        /**
+         * Link quality of the scanned BLE device.
+         *
+         * @param address is MAC address.
+         * @param rssi is smoothed RSSI value.
+         * @param advRate is received advertisements per second. 0: Unknown.
+         * @param lossRate is estimated advertisement loss ratio from 0 to 1.
+         */
+        void onLinkQuality(String address, float rssi, float advRate, float lossRate);
+    }
+
     /**
      * OnScanningState interface is used to check scanning state.
      */
@@ -104,6 +150,16 @@ public class BflDeviceScanner {
         mScannedCallback = callback;
     }
 
+    /**
+     * Save a callback object to mLinkQualityCallback.
+     *
+     * @param callback is OnLinkQualityListener.
+     * @see kr.co.sevencore.blefotalib.BflDeviceScanner.OnLinkQualityListener
+     */
+    public void setOnLinkQuality(OnLinkQualityListener callback) {
+        mLinkQualityCallback = callback;
+    }
+
     /**
      * Save a callback object to mScanningCallback.
      *
@@ -114,6 +170,41 @@ public class BflDeviceScanner {
         mScanningCallback = callback;
     }
 
+    /**
+     * Save a campaign queue to be fed by scanned RSSI information.
+     *
+     * @param campaignQueue is the queue of the firmware upgrade campaign. null: Stop feeding.
+     * @see kr.co.sevencore.blefotalib.BflCampaignQueue
+     */
+    public void setCampaignQueue(BflCampaignQueue campaignQueue) {
+        mCampaignQueue = campaignQueue;
+
+        // Updated devices of the campaign are dropped in the scan callback.
+        BflDeviceScanService.setDoneFilter((campaignQueue != null) ? campaignQueue.getDoneFilter() : null);
+    }
+
+    /**
+     * Enable the deprecated device broadcast of the scan service.
+     * Only the batch broadcast is sent by default.
+     *
+     * @param enabled is true to send ACTION_BFL_SCAN_DATA for each device of a batch.
+     * @see kr.co.sevencore.blefotalib.BflDeviceScanService#ACTION_BFL_SCAN_BATCH_DATA
+     */
+    public void setLegacyBroadcast(boolean enabled) {
+        BflDeviceScanService.setLegacyBroadcast(enabled);
+    }
+
+    /**
+     * Customize TTL of scanned devices.
+     * Devices are expired while scanning, so the list is kept after scanning stops.
+     *
+     * @param ttl is the period from the last advertisement in milliseconds. 0: Devices are never expired.
+     * @see kr.co.sevencore.blefotalib.BflDeviceRegistry
+     */
+    public void setDeviceTtl(long ttl) {
+        mDeviceTtl = ttl;
+    }
+
     /**
      * Create an object of device list adapter.
      *
@@ -124,6 +215,30 @@ public class BflDeviceScanner {
         sLeDeviceListAdapter = new BflDeviceListAdapter(context.getApplicationContext());
     }
 
+    /**
+     * Refresh the list view once per tick however many advertisements are received.
+     */
+    private final Runnable mListRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mListRefreshPending = false;
+
+            if (sLeDeviceListAdapter != null) {
+                sLeDeviceListAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
+    /**
+     * Request a list view refresh on the next tick.
+     */
+    private void requestListRefresh() {
+        if (!mListRefreshPending) {
+            mListRefreshPending = true;
+            mListRefreshHandler.postDelayed(mListRefreshRunnable, LIST_REFRESH_PERIOD);
+        }
+    }
+
     /**
      * Create an object to implement a service connection interface.
      *
@@ -134,35 +249,70 @@ public class BflDeviceScanner {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mBflScanBinder = IBflDeviceScanSvc.Stub.asInterface(service);
-            boolean initResult = true;
 
             Log.d(BLE_FOTA_TAG, "Unit test mode BLE scanning started.");
             // When a user app customizes the scan period, setScanPeriod method is used.
+            // Customized values are kept, so they are applied again after the service is restarted.
             if(mScanPeriodFlag) {
                 setScanPeriod(mScanPeriod);
-                mScanPeriodFlag = false;
             }
 
-            try {
-                if (!mBflScanBinder.initScan()) {
-                    initResult = false;
-                    Log.e(BLE_FOTA_TAG, "Unable to initialize Bluetooth");
-                }
+            if (mBatchInterval > 0) {
+                setBatchInterval(mBatchInterval);
+            }
 
-                if (mScanningSvcInitCallback != null) {
-                    mScanningSvcInitCallback.onScanningSvcInit(initResult);
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
+            if (mScanFilterFlag) {
+                setScanFilter(mFilterServiceUuid, mFilterManufacturerId, mFilterManufacturerData, mFilterMacAddresses);
+            }
+
+            if (mServerVersionFlag) {
+                setServerVersion(mServerVersion, mVersionOffset);
+            }
+
+            if (mEarlyTerminationFlag) {
+                setEarlyTermination(mTargetMacAddresses, mTargetCount, mIdleTimeout);
             }
+
+            if (mDutyCycleFlag) {
+                setDutyCycle(mMinWindow, mMaxWindow, mScanInterval);
+            }
+
+            initScanSvc();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
+            // The binding is kept, and the service is connected again when it is restarted.
             mBflScanBinder = null;
+            mInitialized = false;
         }
     };
 
+    /**
+     * Initialize Bluetooth of the bound scan service & start scanning.
+     * It is called again by startScanning method when the previous initialization failed.
+     *
+     * @return true: Bluetooth is initialized. false: Unable to initialize Bluetooth.
+     */
+    private boolean initScanSvc() {
+        boolean initResult = false;
+
+        try {
+            initResult = mBflScanBinder.initScan();
+            if (!initResult) {
+                Log.e(BLE_FOTA_TAG, "Unable to initialize Bluetooth");
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        mInitialized = initResult;
+
+        if (mScanningSvcInitCallback != null) {
+            mScanningSvcInitCallback.onScanningSvcInit(initResult);
+        }
+        return initResult;
+    }
+
     /**
      * Broadcast receiver of BLE device scan service.
      *
@@ -173,25 +323,31 @@ public class BflDeviceScanner {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
-            String macAddress = intent.getStringExtra(BflDeviceScanService.EXTRA_BFL_MAC_ADDRESS_DATA);
-            String deviceName = intent.getStringExtra(BflDeviceScanService.EXTRA_BFL_DEVICE_NAME_DATA);
-            int rssi = intent.getIntExtra(BflDeviceScanService.EXTRA_BFL_RSSI_DATA, 0);
-
             if (action != null) {
-                if (BflDeviceScanService.ACTION_BFL_SCAN_DATA.equals(action)) {
-                    if (sLeDeviceListAdapter != null) {
-                        try {
-                            sLeDeviceListAdapter.addDevice(macAddress, deviceName, rssi);
-                            sLeDeviceListAdapter.notifyDataSetChanged();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                if (BflDeviceScanService.ACTION_BFL_SCAN_BATCH_DATA.equals(action)) {
+                    String[] macAddresses = intent.getStringArrayExtra(BflDeviceScanService.EXTRA_BFL_MAC_ADDRESS_LIST_DATA);
+                    String[] deviceNames = intent.getStringArrayExtra(BflDeviceScanService.EXTRA_BFL_DEVICE_NAME_LIST_DATA);
+                    String[] firmwareVersions = intent.getStringArrayExtra(BflDeviceScanService.EXTRA_BFL_FIRMWARE_VERSION_LIST_DATA);
+                    int[] rssiValues = intent.getIntArrayExtra(BflDeviceScanService.EXTRA_BFL_RSSI_LIST_DATA);
+                    float[] smoothedRssiValues = intent.getFloatArrayExtra(BflDeviceScanService.EXTRA_BFL_SMOOTHED_RSSI_LIST_DATA);
+                    float[] advRates = intent.getFloatArrayExtra(BflDeviceScanService.EXTRA_BFL_ADV_RATE_LIST_DATA);
+                    float[] lossRates = intent.getFloatArrayExtra(BflDeviceScanService.EXTRA_BFL_LOSS_RATE_LIST_DATA);
+
+                    if (macAddresses == null || deviceNames == null || rssiValues == null ||
+                            smoothedRssiValues == null || advRates == null || lossRates == null) {
+                        Log.e(BLE_FOTA_TAG, "Scan batch data is NULL.");
+                        return;
                     }
 
-                    // If a user app doesn't use above list adapter,
-                    // use below BLE device information callback to use on a user app.
-                    if (mScannedCallback != null) {
-                        mScannedCallback.onDeviceInfo(macAddress, deviceName, rssi);
+                    if (sLeDeviceListAdapter != null && mDeviceTtl > 0 &&
+                            sLeDeviceListAdapter.expireDevices(mDeviceTtl)) {
+                        requestListRefresh();
+                    }
+
+                    for (int i = 0; i < macAddresses.length; i++) {
+                        updateDeviceInfo(macAddresses[i], deviceNames[i], rssiValues[i],
+                                (firmwareVersions != null) ? firmwareVersions[i] : null);
+                        updateLinkQuality(macAddresses[i], smoothedRssiValues[i], advRates[i], lossRates[i]);
                     }
                 } else if (BflDeviceScanService.ACTION_BFL_SCAN_STATE_DATA.equals(action)) {
                     if (mScanning ^ intent.getBooleanExtra(BflDeviceScanService.EXTRA_BFL_SCAN_STATE_DATA, false)) {
@@ -208,35 +364,97 @@ public class BflDeviceScanner {
         }
     };
 
+    /**
+     * Update the scanned information of a device in the scan batch.
+     *
+     * @param macAddress is MAC address.
+     * @param deviceName is device name.
+     * @param rssi is the latest RSSI value during the batch interval.
+     * @param firmwareVersion is the advertised firmware version. null: Not advertised.
+     */
+    private void updateDeviceInfo(String macAddress, String deviceName, int rssi, String firmwareVersion) {
+        if (sLeDeviceListAdapter != null) {
+            try {
+                if (sLeDeviceListAdapter.addDevice(macAddress, deviceName, rssi)) {
+                    requestListRefresh();
+                }
+
+                if (firmwareVersion != null) {
+                    sLeDeviceListAdapter.setFirmwareVersion(macAddress, firmwareVersion);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // If a user app doesn't use above list adapter,
+        // use below BLE device information callback to use on a user app.
+        if (mScannedCallback != null) {
+            mScannedCallback.onDeviceInfo(macAddress, deviceName, rssi);
+        }
+    }
+
+    /**
+     * Update the link quality of a device in the scan batch.
+     * Campaign ordering uses the smoothed RSSI instead of the noisy raw RSSI.
+     *
+     * @param macAddress is MAC address.
+     * @param smoothedRssi is the smoothed RSSI.
+     * @param advRate is the received advertising rate.
+     * @param lossRate is the estimated advertisement loss ratio.
+     * @see kr.co.sevencore.blefotalib.BflLinkQuality
+     */
+    private void updateLinkQuality(String macAddress, float smoothedRssi, float advRate, float lossRate) {
+        if (sLeDeviceListAdapter != null) {
+            if (sLeDeviceListAdapter.updateLinkQuality(macAddress, smoothedRssi, advRate, lossRate)) {
+                requestListRefresh();
+            }
+        }
+
+        if (mCampaignQueue != null) {
+            mCampaignQueue.updateScanInfo(macAddress, Math.round(smoothedRssi));
+        }
+
+        if (mLinkQualityCallback != null) {
+            mLinkQualityCallback.onLinkQuality(macAddress, smoothedRssi, advRate, lossRate);
+        }
+    }
+
     /**
      * BLE FOTA scan service connection.
      * Create service connection & start scanning.
+     * The connection is kept until disconnectScanSvc method is called.
      *
      * @see kr.co.sevencore.blefotalib.BflDeviceScanService
      */
     public void connectScanSvc() {
+        if (mBound) {
+            return;
+        }
         mScanServiceIntent = new Intent(mContext, BflDeviceScanService.class);
         // BLE FOTA Library uses daemon(local) background service using startService method to run independently
         // & remote service using bindService method to communicate by AIDL.
         mContext.startService(mScanServiceIntent);
-        mContext.bindService(mScanServiceIntent, mBflScanSvcConnection, mContext.BIND_ADJUST_WITH_ACTIVITY);
+        mBound = mContext.bindService(mScanServiceIntent, mBflScanSvcConnection, mContext.BIND_ADJUST_WITH_ACTIVITY);
     }
 
     /**
      * BLE FOTA Service disconnection.
+     * It is called when the scanning session ends, not between scans.
      *
      * @see kr.co.sevencore.blefotalib.BflDeviceScanService
-     * @see kr.co.sevencore.blefotalib.BflUtil
      */
     public void disconnectScanSvc() {
-        if (BflUtil.isServiceRunning(mContext, BflDeviceScanService.class)) {
+        if (mBound) {
             try {
                 mContext.unbindService(mBflScanSvcConnection);
                 mContext.stopService(mScanServiceIntent);
-                mBflScanBinder = null;
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            mBound = false;
+            mInitialized = false;
+            mBflScanBinder = null;
         }
     }
 
@@ -249,6 +467,7 @@ public class BflDeviceScanner {
      */
     public void setScanPeriod(long period) {
         mScanPeriodFlag = true;
+        mScanPeriod = period;
 
         if (mBflScanBinder != null) {
             try {
@@ -260,52 +479,164 @@ public class BflDeviceScanner {
     }
 
     /**
-     * Start scanning BLE devices.
-     * Default scan period is 10 seconds.
+     * Customize the delivery interval of the scan batch.
+     * Shorter interval updates the device list faster, and longer interval reduces broadcasts.
      *
+     * @param interval is the scan batch interval in milliseconds. Default interval is 0.5 seconds.
      * @see kr.co.sevencore.blefotalib.BflDeviceScanService
      */
-    public void startScanning() {
-        if (sLeDeviceListAdapter != null) {
-            sLeDeviceListAdapter.clear();
+    public void setBatchInterval(long interval) {
+        mBatchInterval = interval;
+
+        if (mBflScanBinder != null) {
+            try {
+                mBflScanBinder.setBatchInterval(interval);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+    }
+
+    /**
+     * Customize the scan filter.
+     * Only devices matching every condition which is set are delivered.
+     * While scanning, the scan is restarted with the new filter.
+     *
+     * @param serviceUuid is the advertised service UUID such as BflAttributes.FIRMWARE_UPGRADE_SERVICE. null: Any service.
+     * @param manufacturerId is the company identifier of manufacturer specific data. -1: Any manufacturer.
+     * @param manufacturerData is the leading manufacturer specific data except company identifier. null: Any data.
+     * @param macAddresses is MAC address allowlist. null: Any device.
+     * @see kr.co.sevencore.blefotalib.BflScanFilter
+     */
+    public void setScanFilter(String serviceUuid, int manufacturerId, byte[] manufacturerData, String[] macAddresses) {
+        mScanFilterFlag = true;
+        mFilterServiceUuid = serviceUuid;
+        mFilterManufacturerId = manufacturerId;
+        mFilterManufacturerData = manufacturerData;
+        mFilterMacAddresses = macAddresses;
 
         if (mBflScanBinder != null) {
-            disconnectScanSvc();
+            try {
+                mBflScanBinder.setScanFilter(serviceUuid, manufacturerId, manufacturerData, macAddresses);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        if(!BflUtil.isServiceRunning(mContext, BflDeviceScanService.class)) {
-            connectScanSvc();
-            setScanningState(false);
+    /**
+     * Check update eligibility by the advertised firmware version before connection.
+     * Devices advertising the same version as the server are not delivered,
+     * so the firmware version characteristic is read only from the other devices.
+     *
+     * @param version is the firmware version from the server formed into "AA-BB-CC". null: Every device is delivered.
+     * @param manufacturerDataOffset is the version offset in manufacturer specific data.
+     *                               -1: Only service data of Firmware Upgrade Service is used.
+     * @see kr.co.sevencore.blefotalib.BflAdvertisement
+     */
+    public void setServerVersion(String version, int manufacturerDataOffset) {
+        mServerVersionFlag = true;
+        mServerVersion = version;
+        mVersionOffset = manufacturerDataOffset;
+
+        if (mBflScanBinder != null) {
+            try {
+                mBflScanBinder.setServerVersion(version, manufacturerDataOffset);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Start scanning BLE devices with scanning period customized.
+     * Customize the early termination conditions of scanning.
+     * Scanning stops before the scanning period, when any condition is met.
      *
-     * @param period is scanning period.
-     * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+     * @param targetMacAddresses is MAC addresses of the devices to be seen. null: Not used.
+     * @param targetCount is the count of eligible devices to be found. 0: Not used.
+     * @param idleTimeout is the period without new device in milliseconds. 0: Not used.
+     * @see kr.co.sevencore.blefotalib.BflScanPolicy
      */
-    public void startScanning(long period) {
-        if (sLeDeviceListAdapter != null) {
-            sLeDeviceListAdapter.clear();
+    public void setEarlyTermination(String[] targetMacAddresses, int targetCount, long idleTimeout) {
+        mEarlyTerminationFlag = true;
+        mTargetMacAddresses = targetMacAddresses;
+        mTargetCount = targetCount;
+        mIdleTimeout = idleTimeout;
+
+        if (mBflScanBinder != null) {
+            try {
+                mBflScanBinder.setEarlyTermination(targetMacAddresses, targetCount, idleTimeout);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+    }
+
+    /**
+     * Customize duty-cycled background scanning.
+     * The scan window is doubled while new devices appear and halved when nothing new is found.
+     * Duty-cycled scanning continues until it is stopped or terminated early, regardless of the scanning period.
+     *
+     * @param minWindow is the minimum scan window in milliseconds. 0: Continuous scanning.
+     * @param maxWindow is the maximum scan window in milliseconds.
+     * @param scanInterval is the pause between scan windows in milliseconds.
+     * @see kr.co.sevencore.blefotalib.BflScanPolicy
+     */
+    public void setDutyCycle(long minWindow, long maxWindow, long scanInterval) {
+        mDutyCycleFlag = true;
+        mMinWindow = minWindow;
+        mMaxWindow = maxWindow;
+        mScanInterval = scanInterval;
 
         if (mBflScanBinder != null) {
-            disconnectScanSvc();
+            try {
+                mBflScanBinder.setDutyCycle(minWindow, maxWindow, scanInterval);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+    }
+
+    /**
+     * Start scanning BLE devices.
+     * Default scan period is 10 seconds.
+     * If the scan service is bound, the scan is started or restarted immediately.
+     * If the service is bound but Bluetooth was not initialized, the initialization is tried again.
+     * Otherwise, the service is connected and the scan is started after initialization.
+     *
+     * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+     */
+    public void startScanning() {
+        setScanningState(false);
 
-        if(!BflUtil.isServiceRunning(mContext, BflDeviceScanService.class)) {
-            mScanPeriodFlag = true;
-            mScanPeriod = period;
+        if (mBflScanBinder != null && mInitialized) {
+            try {
+                mBflScanBinder.setScanState(true);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        } else if (mBflScanBinder != null) {
+            // Bluetooth may have been turned on after the failed initialization.
+            initScanSvc();
+        } else {
             connectScanSvc();
-            setScanPeriod(mScanPeriod);
-            setScanningState(false);
         }
     }
 
+    /**
+     * Start scanning BLE devices with scanning period customized.
+     *
+     * @param period is scanning period.
+     * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+     */
+    public void startScanning(long period) {
+        setScanPeriod(period);
+        startScanning();
+    }
+
     /**
      * Stop scanning BLE devices.
+     * The scan service stays bound for the next scan.
      *
      * @see kr.co.sevencore.blefotalib.BflDeviceScanService
      */
@@ -316,11 +647,23 @@ public class BflDeviceScanner {
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
-            disconnectScanSvc();
         }
         setScanningState(true);
     }
 
+    /**
+     * Clear the scanned device list.
+     * The list is kept across scans, so it is cleared only by a user app.
+     *
+     * @see kr.co.sevencore.blefotalib.BflDeviceListAdapter
+     */
+    public void clearDevices() {
+        if (sLeDeviceListAdapter != null) {
+            sLeDeviceListAdapter.clear();
+            requestListRefresh();
+        }
+    }
+
     /**
      * Register broadcast receiver.
      *
@@ -354,14 +697,14 @@ public class BflDeviceScanner {
 
     /**
      * Intent filter for BflDeviceScanService.
-     * ACTION_SCAN_DATA: BLE device information.
+     * ACTION_SCAN_BATCH_DATA: BLE device information of unique devices during the batch interval.
      * ACTION_SCAN_STATE_DATA: Current scan status.
      *
      * @return intentFilter including ACTIONS.
      */
     private static IntentFilter makeStateUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BflDeviceScanService.ACTION_BFL_SCAN_DATA);
+        intentFilter.addAction(BflDeviceScanService.ACTION_BFL_SCAN_BATCH_DATA);
         intentFilter.addAction(BflDeviceScanService.ACTION_BFL_SCAN_STATE_DATA);
         return intentFilter;
     }
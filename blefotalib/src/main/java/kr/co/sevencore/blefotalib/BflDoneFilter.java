@@ -0,0 +1,151 @@
+package kr.co.sevencore.blefotalib;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * BflDoneFilter.java
+ * BLE FOTA Library set of devices already updated to the campaign target version.
+ * The scan callback checks every advertisement with the Bloom filter first,
+ * and only possible members are checked with the exact set,
+ * so most of the devices which are not done are passed without locking or allocation.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-14
+ * @see kr.co.sevencore.blefotalib.BflCampaignQueue
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflDoneFilter {
+    private final static String BLE_FOTA_TAG = BflDoneFilter.class.getSimpleName();
+
+    public final static int DEFAULT_EXPECTED_DEVICES = 4096;
+    private final static int BITS_PER_DEVICE = 10;  // About 1% false positive rate with 7 hash functions.
+    private final static int HASH_CNT = 7;
+
+    private final int mTargetVersion;          // Packed target version.
+    private final long[] mBits;                // Bloom filter.
+    private final int mBitCnt;
+    private final HashSet<Long> mDoneKeys;     // Exact set of packed MAC address & target version.
+
+
+    /**
+     * Create the set of the campaign target version.
+     *
+     * @param targetVersion is the target firmware version formed into "AA-BB-CC".
+     * @param expectedDevices is the expected count of updated devices.
+     */
+    public BflDoneFilter(String targetVersion, int expectedDevices) {
+        mTargetVersion = BflUtil.packVersion(targetVersion);
+        mBitCnt = Math.max(64, expectedDevices * BITS_PER_DEVICE);
+        mBits = new long[(mBitCnt + 63) / 64];
+        mDoneKeys = new HashSet<Long>(expectedDevices * 2);
+    }
+
+    /**
+     * Add the device updated to the target version.
+     *
+     * @param macAddress is MAC address of the device.
+     */
+    public void add(String macAddress) {
+        final long packedAddress = BflUtil.packMacAddress(macAddress);
+
+        if (packedAddress < 0) {
+            return;
+        }
+        final long key = makeKey(packedAddress);
+
+        synchronized (mDoneKeys) {
+            mDoneKeys.add(key);
+        }
+
+        // Bits are set after the exact set is updated, so a positive bit is always confirmed by the exact set.
+        final long hash = mix(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+
+        synchronized (mBits) {
+            for (int i = 0; i < HASH_CNT; i++) {
+                final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCnt;
+                mBits[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Check the device is already updated to the target version.
+     *
+     * @param packedAddress is the packed MAC address of the device.
+     * @return true, if the device is done.
+     */
+    public boolean contains(long packedAddress) {
+        final long key = makeKey(packedAddress);
+        final long hash = mix(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < HASH_CNT; i++) {
+            final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCnt;
+
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        synchronized (mDoneKeys) {
+            return mDoneKeys.contains(key);
+        }
+    }
+
+    /**
+     * Remove every done device.
+     * The exact set is cleared first, so a remaining positive bit is never confirmed.
+     */
+    public void clear() {
+        synchronized (mDoneKeys) {
+            mDoneKeys.clear();
+        }
+
+        synchronized (mBits) {
+            Arrays.fill(mBits, 0);
+        }
+    }
+
+    /**
+     * Get the count of done devices.
+     *
+     * @return The count.
+     */
+    public int size() {
+        synchronized (mDoneKeys) {
+            return mDoneKeys.size();
+        }
+    }
+
+    /**
+     * Combine the packed MAC address (48 bits) & the packed target version.
+     *
+     * @param packedAddress is the packed MAC address.
+     * @return The key of the exact set.
+     */
+    private long makeKey(long packedAddress) {
+        return packedAddress ^ ((long) mTargetVersion << 40);
+    }
+
+    /**
+     * Mix bits of the key (64-bit finalizer of MurmurHash3).
+     *
+     * @param key is the key.
+     * @return The hash value.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,532 @@
+package kr.co.sevencore.blefotalib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * BflFwBundle.java
+ * BLE FOTA Library offline firmware bundle.
+ * A bundle is a single archive of many pre-framed firmware images with an index,
+ * so the firmware is updated without the firmware managing server. e.g. Factory lines & secure sites.
+ * An imported bundle is verified once, and later processes only memory-map it & read its index.
+ * Entries are served by the bundle path to the download service, the firmware image store & the uploader,
+ * in the same way as the downloaded firmware.
+ *
+ * Bundle file format (big endian): BUNDLE_NAME + ".bflb"
+ *  - Header: magic | format version | frame size | entry count | device count
+ *  - Entry index: product | version | SHA-256 hex | firmware size | SHA-1 digest | framed data offset
+ *  - Device index: MAC address | entry index
+ *  - Signature (format version 2): 2 bytes length | signature of the header & the indexes
+ *  - Data: framed firmware data of each entry including sequence information
+ * Each string is formed into a 2 bytes length & UTF-8 bytes, and the SHA-1 digest is 20 bytes.
+ * The index is signed by the key of the firmware managing server, and the hashes in the index cover the data.
+ * While the public key of the signed manifest is set, bundles without a valid signature are refused.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-29
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ * @see kr.co.sevencore.blefotalib.BflFwImageStore
+ * @see kr.co.sevencore.blefotalib.BflFwFrameCache
+ * @see kr.co.sevencore.blefotalib.BflFwManifest
+ */
+public class BflFwBundle {
+    private final static String BLE_FOTA_TAG = BflFwBundle.class.getSimpleName();
+
+    public final static String BUNDLE_FILE_EXT = ".bflb";
+    private final static String BUNDLE_PATH_PREFIX = "bundle:";
+
+    private final static String BUNDLE_DIR = "bfl_bundle";
+    private final static String TEMP_FILE_EXT = ".tmp";
+    private final static int BUNDLE_MAGIC = 0x42464C42;     // "BFLB"
+    private final static int BUNDLE_VERSION = 1;
+    private final static int BUNDLE_VERSION_SIGNED = 2;     // The signature follows the device index.
+    private final static int BUNDLE_HEADER_SIZE = 20;       // 4 + 4 + 4 + 4 + 4 bytes.
+    private final static int DIGEST_SIZE = 20;              // SHA-1 digest.
+    private final static int MIN_ENTRY_SIZE = 42;           // 2 + 2 + 2 + 8 + 20 + 8 bytes of empty strings.
+    private final static int MIN_DEVICE_SIZE = 6;           // 2 + 4 bytes of an empty string.
+
+    private static BflFwBundle sInstance;
+
+    private final File mBundleDir;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();        // Entries by image key.
+    private final HashMap<String, Entry> mDeviceEntries = new HashMap<String, Entry>();  // Entries by MAC address.
+
+
+    /**
+     * Firmware image of a bundle.
+     */
+    private static class Entry {
+        private final String mProductName;
+        private final String mVersion;
+        private final String mHash;             // SHA-256 hex string.
+        private final long mLength;             // Firmware data size without sequence information.
+        private final byte[] mDigest;           // SHA-1 digest used as checksum data.
+        private final ByteBuffer mFramedData;   // Mapped framed firmware data.
+        private final boolean mSigned;          // true: The index of the bundle is signed.
+
+        Entry(String productName, String version, String hash, long length, byte[] digest, ByteBuffer framedData,
+              boolean signed) {
+            mProductName = productName;
+            mVersion = version;
+            mHash = hash;
+            mLength = length;
+            mDigest = digest;
+            mFramedData = framedData;
+            mSigned = signed;
+        }
+
+        /**
+         * Check the image is trusted.
+         * The public key may be set after the bundles are loaded, so it is checked whenever the image is used.
+         *
+         * @return true, if the index is signed or the signature is not required.
+         */
+        boolean isTrusted() {
+            return mSigned || !BflFwManifest.isSignatureRequired();
+        }
+    }
+
+    private BflFwBundle(Context context) {
+        mBundleDir = context.getDir(BUNDLE_DIR, Context.MODE_PRIVATE);
+        loadBundles();
+    }
+
+    /**
+     * Get the imported bundles.
+     * Every imported bundle is mapped & only its index is read, so it takes a few milliseconds.
+     *
+     * @param context is used to get the private directory.
+     * @return The imported bundles.
+     */
+    public static synchronized BflFwBundle getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BflFwBundle(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static synchronized BflFwBundle getOpenedInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Import the bundle file into the private directory.
+     * Every framed image is verified by its hashes before the bundle is used.
+     * A bundle of the same file name is replaced. It blocks, so it is called off the main thread.
+     *
+     * @param source is the bundle file. e.g. A file on the external storage.
+     * @return The count of imported images, or -1 if the bundle is invalid.
+     */
+    public synchronized int importBundle(File source) {
+        final String fileName = source.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        final File bundleFile = new File(mBundleDir,
+                fileName.endsWith(BUNDLE_FILE_EXT) ? fileName : (fileName + BUNDLE_FILE_EXT));
+        final File tempFile = new File(bundleFile.getPath() + TEMP_FILE_EXT);
+        final Entry[] entries;
+
+        try {
+            copyFile(source, tempFile);
+            entries = readBundle(tempFile, true);
+
+            if (entries == null) {
+                Log.e(BLE_FOTA_TAG, "Firmware bundle is invalid: " + source.getPath());
+                tempFile.delete();
+                return -1;
+            }
+
+            if (!tempFile.renameTo(bundleFile)) {
+                Log.e(BLE_FOTA_TAG, "Unable to move the firmware bundle: " + tempFile.getPath());
+                tempFile.delete();
+                return -1;
+            }
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to import the firmware bundle: " + source.getPath());
+            e.printStackTrace();
+            tempFile.delete();
+            return -1;
+        }
+
+        // Images of the replaced bundle are dropped.
+        mEntries.clear();
+        mDeviceEntries.clear();
+        loadBundles();
+
+        Log.i(BLE_FOTA_TAG, "Firmware bundle is imported: " + bundleFile.getName() + ", " + entries.length + " images");
+        return entries.length;
+    }
+
+    /**
+     * Check the image is in the imported bundles.
+     *
+     * @param productName is the product name of the device.
+     * @param version is the firmware version.
+     * @return true, if the image is in a bundle.
+     */
+    public synchronized boolean contains(String productName, String version) {
+        final Entry entry = mEntries.get(makeKey(productName, version));
+        return entry != null && entry.isTrusted();
+    }
+
+    /**
+     * Get the bundle path of the image.
+     * The bundle path is used as the firmware file path of the uploader.
+     *
+     * @param productName is the product name of the device.
+     * @param version is the firmware version.
+     * @return The bundle path, or null if the image is not in the bundles.
+     */
+    public synchronized String getPath(String productName, String version) {
+        return contains(productName, version) ? (BUNDLE_PATH_PREFIX + makeKey(productName, version)) : null;
+    }
+
+    /**
+     * Get the firmware metadata of the device assigned by the bundles.
+     * The download URL is the bundle path.
+     *
+     * @param macAddress is MAC address of the device.
+     * @return The metadata, or null if the device is not in the bundles.
+     */
+    public synchronized BflFwMetadata getMetadata(String macAddress) {
+        final Entry entry = (macAddress != null) ? mDeviceEntries.get(macAddress.toUpperCase()) : null;
+
+        if (entry == null || !entry.isTrusted()) {
+            return null;
+        }
+        return new BflFwMetadata(macAddress, entry.mProductName, entry.mVersion,
+                BUNDLE_PATH_PREFIX + makeKey(entry.mProductName, entry.mVersion), entry.mLength, entry.mHash);
+    }
+
+    /**
+     * Check the bundles have any image.
+     *
+     * @return true, if any image is imported.
+     */
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Check the path is a bundle path.
+     *
+     * @param path is the firmware file path.
+     * @return true, if the path indicates an image of the bundles.
+     */
+    public static boolean isBundlePath(String path) {
+        return path != null && path.startsWith(BUNDLE_PATH_PREFIX);
+    }
+
+    /**
+     * Get the firmware data size of the bundle path.
+     *
+     * @param path is the bundle path.
+     * @return The firmware data size, or -1 if the image is not in the bundles.
+     */
+    public static long getLength(String path) {
+        final Entry entry = getEntry(path);
+        return (entry != null) ? entry.mLength : -1;
+    }
+
+    /**
+     * Make the key of the image state used by the firmware image store.
+     *
+     * @param path is the bundle path.
+     * @return Bundle path & content hash, or null if the image is not in the bundles.
+     */
+    static String makePathKey(String path) {
+        final Entry entry = getEntry(path);
+        return (entry != null) ? (path + ":" + entry.mHash) : null;
+    }
+
+    /**
+     * Make the framed image of the bundle path without reading or framing the firmware data.
+     *
+     * @param path is the bundle path.
+     * @return The framed image mapped from the bundle, or null if the image is not in the bundles.
+     * @see kr.co.sevencore.blefotalib.BflFwImageStore
+     */
+    static BflFwImageStore.FirmwareImage readImage(String path) {
+        final Entry entry = getEntry(path);
+
+        if (entry == null) {
+            return null;
+        }
+        return new BflFwImageStore.FirmwareImage(BflUtil.toHexString(entry.mDigest), entry.mDigest.clone(),
+                entry.mLength, entry.mFramedData.duplicate());
+    }
+
+    private static Entry getEntry(String path) {
+        final BflFwBundle bundle = getOpenedInstance();
+
+        if (bundle == null || !isBundlePath(path)) {
+            return null;
+        }
+
+        synchronized (bundle) {
+            final Entry entry = bundle.mEntries.get(path.substring(BUNDLE_PATH_PREFIX.length()));
+            return (entry != null && entry.isTrusted()) ? entry : null;
+        }
+    }
+
+    /**
+     * Read the index of every imported bundle.
+     * The later imported bundle overrides the same image of the earlier ones.
+     */
+    private void loadBundles() {
+        File[] bundleFiles = mBundleDir.listFiles();
+
+        if (bundleFiles == null) {
+            return;
+        }
+        Arrays.sort(bundleFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return (lhs.lastModified() < rhs.lastModified()) ? -1 : ((lhs.lastModified() == rhs.lastModified()) ? 0 : 1);
+            }
+        });
+
+        for (File bundleFile : bundleFiles) {
+            if (bundleFile.getName().endsWith(TEMP_FILE_EXT)) {
+                // Interrupted import.
+                bundleFile.delete();
+            } else if (bundleFile.getName().endsWith(BUNDLE_FILE_EXT)) {
+                readBundle(bundleFile, false);
+            }
+        }
+        Log.d(BLE_FOTA_TAG, "Firmware bundles are loaded: " + mEntries.size() + " images");
+    }
+
+    /**
+     * Map the bundle file & read its index.
+     *
+     * @param bundleFile is the bundle file.
+     * @param verify is true to verify every framed image without registering the bundle.
+     * @return The entries of the bundle, or null if the bundle is invalid.
+     */
+    private Entry[] readBundle(File bundleFile, boolean verify) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(bundleFile, "r");
+            try {
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                final long fileSize = fileChannel.size();
+
+                // A buffer is indexed by int.
+                if (fileSize > Integer.MAX_VALUE) {
+                    Log.w(BLE_FOTA_TAG, "Firmware bundle is too large: " + bundleFile.getPath());
+                    return null;
+                }
+                // The mapping is kept after the channel is closed.
+                MappedByteBuffer mappedData = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                final int formatVersion;
+
+                if (mappedData.remaining() < BUNDLE_HEADER_SIZE ||
+                        mappedData.getInt() != BUNDLE_MAGIC ||
+                        ((formatVersion = mappedData.getInt()) != BUNDLE_VERSION &&
+                                formatVersion != BUNDLE_VERSION_SIGNED) ||
+                        mappedData.getInt() != BflFwUploadService.EACH_CONN_DATA_SIZE) {
+                    Log.w(BLE_FOTA_TAG, "Invalid firmware bundle: " + bundleFile.getPath());
+                    return null;
+                }
+
+                if (formatVersion != BUNDLE_VERSION_SIGNED && BflFwManifest.isSignatureRequired()) {
+                    Log.w(BLE_FOTA_TAG, "Firmware bundle is not signed: " + bundleFile.getPath());
+                    return null;
+                }
+                final int entryCnt = mappedData.getInt();
+                final int deviceCnt = mappedData.getInt();
+
+                if (entryCnt < 0 || deviceCnt < 0 ||
+                        (long) entryCnt * MIN_ENTRY_SIZE + (long) deviceCnt * MIN_DEVICE_SIZE >
+                                mappedData.remaining()) {
+                    Log.w(BLE_FOTA_TAG, "Invalid index size of the firmware bundle: " + bundleFile.getPath());
+                    return null;
+                }
+                Entry[] entries = new Entry[entryCnt];
+
+                for (int i = 0; i < entryCnt; i++) {
+                    final String productName = readString(mappedData);
+                    final String version = readString(mappedData);
+                    final String hash = readString(mappedData).toLowerCase();
+                    final long length = mappedData.getLong();
+                    final byte[] digest = new byte[DIGEST_SIZE];
+                    mappedData.get(digest);
+                    final long offset = mappedData.getLong();
+                    final long capacity = mappedData.capacity();
+
+                    // Sizes are checked before they are added, so a forged index does not overflow.
+                    if (length <= 0 || length > capacity || offset < 0 || offset > capacity) {
+                        Log.w(BLE_FOTA_TAG, "Truncated firmware bundle: " + bundleFile.getPath());
+                        return null;
+                    }
+                    final long framedLength = length + ((long) BflUtil.getFrameCount(length) * BflFwUploadService.EACH_CONN_DATA_INFO);
+
+                    if (framedLength > capacity - offset) {
+                        Log.w(BLE_FOTA_TAG, "Truncated firmware bundle: " + bundleFile.getPath());
+                        return null;
+                    }
+                    ByteBuffer framedData = mappedData.duplicate();
+                    framedData.limit((int) (offset + framedLength));
+                    framedData.position((int) offset);
+
+                    entries[i] = new Entry(productName, version, hash, length, digest, framedData.slice(),
+                            formatVersion == BUNDLE_VERSION_SIGNED);
+
+                    if (verify && !verifyEntry(entries[i])) {
+                        Log.w(BLE_FOTA_TAG, "Firmware image of the bundle is corrupted: " + makeKey(productName, version));
+                        return null;
+                    }
+                }
+                HashMap<String, Entry> deviceEntries = new HashMap<String, Entry>();
+
+                for (int i = 0; i < deviceCnt; i++) {
+                    final String macAddress = readString(mappedData).toUpperCase();
+                    final int entryIndex = mappedData.getInt();
+
+                    if (entryIndex < 0 || entryIndex >= entryCnt) {
+                        Log.w(BLE_FOTA_TAG, "Invalid device index of the firmware bundle: " + macAddress);
+                        return null;
+                    }
+                    deviceEntries.put(macAddress, entries[entryIndex]);
+                }
+
+                if (!verifyIndex(mappedData, formatVersion)) {
+                    Log.w(BLE_FOTA_TAG, "Invalid signature of the firmware bundle: " + bundleFile.getPath());
+                    return null;
+                }
+
+                if (!verify) {
+                    for (Entry entry : entries) {
+                        mEntries.put(makeKey(entry.mProductName, entry.mVersion), entry);
+                    }
+                    mDeviceEntries.putAll(deviceEntries);
+                }
+                return entries;
+
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(BLE_FOTA_TAG, "Truncated firmware bundle index: " + bundleFile.getPath());
+        } catch (IllegalArgumentException e) {
+            // A forged index is refused instead of stopping the download service.
+            Log.w(BLE_FOTA_TAG, "Invalid firmware bundle index: " + bundleFile.getPath());
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to read the firmware bundle: " + bundleFile.getPath());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Verify the signature of the header & the indexes.
+     * The signature follows the device index, so the position of the buffer is at the signature.
+     *
+     * @param mappedData is the mapped bundle of which indexes are read.
+     * @param formatVersion is the format version of the bundle.
+     * @return true, if the signature is valid or the unsigned bundle is allowed.
+     */
+    private static boolean verifyIndex(ByteBuffer mappedData, int formatVersion) {
+        if (formatVersion != BUNDLE_VERSION_SIGNED) {
+            return !BflFwManifest.isSignatureRequired();
+        }
+        final int indexSize = mappedData.position();
+        final byte[] signature = new byte[mappedData.getShort() & 0xFFFF];
+        mappedData.get(signature);
+
+        final byte[] index = new byte[indexSize];
+        final ByteBuffer indexData = mappedData.duplicate();
+        indexData.position(0);
+        indexData.get(index);
+        return BflFwManifest.verifySignedData(index, signature);
+    }
+
+    /**
+     * Verify the sequence information & hashes of the framed image.
+     *
+     * @param entry is the image of the bundle.
+     * @return true, if the framed image is matched with the index.
+     */
+    private static boolean verifyEntry(Entry entry) {
+        final MessageDigest sha256;
+        final MessageDigest sha1;
+
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            sha1 = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return false;
+        }
+        final ByteBuffer framedData = entry.mFramedData.duplicate();
+        final int frameCnt = BflUtil.getFrameCount(entry.mLength);
+        final byte[] frame = new byte[BflFwUploadService.EACH_CONN_DATA_SIZE];
+        long remaining = entry.mLength;
+
+        for (int seqNum = 0; seqNum < frameCnt; seqNum++) {
+            final int pureConnSize = (int) Math.min(BflFwUploadService.PURE_EACH_CONN_DATA_SIZE, remaining);
+            final int connSize = pureConnSize + BflFwUploadService.EACH_CONN_DATA_INFO;
+            framedData.get(frame, 0, connSize);
+
+            if (frame[0] != (byte) (seqNum & 0xFF) || (((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF)) != connSize) {
+                return false;
+            }
+            sha256.update(frame, BflFwUploadService.EACH_CONN_DATA_INFO, pureConnSize);
+            sha1.update(frame, BflFwUploadService.EACH_CONN_DATA_INFO, pureConnSize);
+            remaining -= pureConnSize;
+        }
+        return entry.mHash.equals(BflUtil.toHexString(sha256.digest())) &&
+                Arrays.equals(entry.mDigest, sha1.digest());
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void copyFile(File source, File target) throws IOException {
+        FileInputStream sourceInput = new FileInputStream(source);
+        FileOutputStream targetOutput = null;
+
+        try {
+            targetOutput = new FileOutputStream(target);
+            FileChannel sourceChannel = sourceInput.getChannel();
+            FileChannel targetChannel = targetOutput.getChannel();
+            long position = 0;
+            final long size = sourceChannel.size();
+
+            while (position < size) {
+                position += sourceChannel.transferTo(position, size - position, targetChannel);
+            }
+            targetChannel.force(false);
+        } finally {
+            sourceInput.close();
+
+            if (targetOutput != null) {
+                targetOutput.close();
+            }
+        }
+    }
+
+    private static String makeKey(String productName, String version) {
+        return productName + "/" + version;
+    }
+}
@@ -0,0 +1,393 @@
+package kr.co.sevencore.blefotalib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Properties;
+
+/**
+ * BflFwCache.java
+ * BLE FOTA Library local firmware cache.
+ * Firmware files are stored in the private directory named by SHA-256 of the content,
+ * and the index maps product name & firmware version to the content hash.
+ * A cached file is verified by its content hash before use, so a corrupted file is never uploaded.
+ * The least recently used files are evicted when the cache exceeds the size quota.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-17
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ * @see kr.co.sevencore.blefotalib.BflFwFrameCache
+ */
+public class BflFwCache {
+    private final static String BLE_FOTA_TAG = BflFwCache.class.getSimpleName();
+
+    public final static long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;  // Size quota of the cache.
+
+    private final static String CACHE_DIR = "bfl_firmware";
+    private final static String TEMP_DIR = "tmp";
+    private final static String INDEX_FILE = "index";
+    private final static String FIRMWARE_FILE_EXT = ".bin";
+    private final static String VERSION_KEY_PREFIX = "version.";  // version.<product>/<version>: Content hash.
+    private final static String ACCESS_KEY_PREFIX = "access.";    // access.<hash>: Last access time.
+    private final static String VERIFIED_KEY_PREFIX = "verified.";// verified.<hash>: Matched with the hash from the server.
+
+    private static BflFwCache sInstance;
+
+    private final File mCacheDir;
+    private final File mTempDir;
+    private final Properties mIndex = new Properties();
+    private final HashSet<String> mVerifiedHashes = new HashSet<String>(); // Verified in this process.
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+
+
+    private BflFwCache(Context context) {
+        mCacheDir = context.getDir(CACHE_DIR, Context.MODE_PRIVATE);
+        mTempDir = new File(mCacheDir, TEMP_DIR);
+        mTempDir.mkdirs();
+        loadIndex();
+    }
+
+    /**
+     * Get the firmware cache of the application.
+     *
+     * @param context is used to get the private directory.
+     * @return The firmware cache.
+     */
+    public static synchronized BflFwCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BflFwCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Customize the size quota.
+     *
+     * @param maxSize is the maximum size of cached files in bytes.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = Math.max(0, maxSize);
+        evict(null);
+    }
+
+    /**
+     * Get the directory of files being downloaded.
+     *
+     * @return The temporary directory in the cache.
+     */
+    public File getTempDir() {
+        return mTempDir;
+    }
+
+    /**
+     * Get the cached firmware file.
+     * The file is verified by its content hash once in a process.
+     *
+     * @param productName is the product name of the device.
+     * @param version is the firmware version.
+     * @return The firmware file, or null if the version is not cached.
+     */
+    public synchronized File get(String productName, String version) {
+        final String versionKey = makeVersionKey(productName, version);
+        final String hash = mIndex.getProperty(versionKey);
+
+        if (hash == null) {
+            return null;
+        }
+        final File file = getFile(hash);
+
+        if (!mVerifiedHashes.contains(hash)) {
+            if (!hash.equals(getSha256(file))) {
+                Log.w(BLE_FOTA_TAG, "Cached firmware is corrupted: " + versionKey);
+                remove(hash);
+                saveIndex();
+                return null;
+            }
+            mVerifiedHashes.add(hash);
+        }
+        mIndex.setProperty(ACCESS_KEY_PREFIX + hash, Long.toString(System.currentTimeMillis()));
+        saveIndex();
+        return file;
+    }
+
+    /**
+     * Move the downloaded firmware file into the cache.
+     * Only the firmware matched with the expected hash is indexed by its version.
+     *
+     * @param productName is the product name of the device.
+     * @param version is the firmware version.
+     * @param source is the downloaded firmware file. It is moved or deleted.
+     * @param expectedHash is SHA-256 hex string from the server. null: Not provided.
+     * @return The cached firmware file, or null if the hash is not matched.
+     */
+    public File put(String productName, String version, File source, String expectedHash) {
+        return put(productName, version, source, expectedHash, null);
+    }
+
+    /**
+     * Move the downloaded firmware file into the cache.
+     * The hash calculated while downloading is used, so the file is not read again.
+     *
+     * @param productName is the product name of the device.
+     * @param version is the firmware version.
+     * @param source is the downloaded firmware file. It is moved or deleted.
+     * @param expectedHash is SHA-256 hex string from the server. null: Not provided.
+     * @param sourceHash is SHA-256 hex string of the source. null: Calculated from the source.
+     * @return The cached firmware file, or null if the hash is not matched.
+     */
+    public synchronized File put(String productName, String version, File source,
+                                 String expectedHash, String sourceHash) {
+        final String hash = (sourceHash != null) ? sourceHash : getSha256(source);
+
+        if (hash == null || (expectedHash != null && !expectedHash.equalsIgnoreCase(hash))) {
+            Log.e(BLE_FOTA_TAG, "Firmware hash is not matched: " + hash + ", expected: " + expectedHash);
+            source.delete();
+            return null;
+        }
+        final File file = getFile(hash);
+
+        // The same content may be cached under another version.
+        if (file.exists()) {
+            source.delete();
+        } else if (!source.renameTo(file)) {
+            Log.e(BLE_FOTA_TAG, "Unable to move the firmware file: " + source.getPath());
+            source.delete();
+            return null;
+        }
+        mVerifiedHashes.add(hash);
+
+        // The hash from the server or the signed manifest proves the origin of the content.
+        // Unverified content is not found by the version, so it is never served to another request.
+        if (expectedHash != null) {
+            mIndex.setProperty(VERIFIED_KEY_PREFIX + hash, Boolean.TRUE.toString());
+            mIndex.setProperty(makeVersionKey(productName, version), hash);
+        }
+        mIndex.setProperty(ACCESS_KEY_PREFIX + hash, Long.toString(System.currentTimeMillis()));
+        evict(hash);
+        saveIndex();
+
+        Log.d(BLE_FOTA_TAG, "Firmware is cached: " + makeVersionKey(productName, version) + " -> " + hash +
+                ((expectedHash != null) ? "" : " (unverified)"));
+        return file;
+    }
+
+    /**
+     * Check the file is stored in the cache.
+     *
+     * @param filePath is the location of the firmware file.
+     * @return true, if the file is a cached firmware file.
+     */
+    public boolean contains(String filePath) {
+        return filePath != null && mCacheDir.equals(new File(filePath).getParentFile());
+    }
+
+    /**
+     * Check the cached file is matched with the hash from the server or the signed manifest.
+     * The content is verified by its hash once in a process.
+     *
+     * @param filePath is the location of the firmware file.
+     * @return true, if the file is a verified cached firmware file.
+     */
+    public synchronized boolean isVerified(String filePath) {
+        if (!contains(filePath)) {
+            return false;
+        }
+        String hash = new File(filePath).getName();
+
+        if (!hash.endsWith(FIRMWARE_FILE_EXT)) {
+            return false;
+        }
+        hash = hash.substring(0, hash.length() - FIRMWARE_FILE_EXT.length());
+
+        if (mIndex.getProperty(VERIFIED_KEY_PREFIX + hash) == null) {
+            return false;
+        }
+
+        if (!mVerifiedHashes.contains(hash)) {
+            if (!hash.equals(getSha256(getFile(hash)))) {
+                Log.w(BLE_FOTA_TAG, "Cached firmware is corrupted: " + hash);
+                remove(hash);
+                saveIndex();
+                return false;
+            }
+            mVerifiedHashes.add(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Evict the least recently used files until the cache fits in the size quota.
+     *
+     * @param keepHash is the content hash not to be evicted. null: Every file can be evicted.
+     */
+    private void evict(String keepHash) {
+        long totalSize = 0;
+        ArrayList<String> hashes = new ArrayList<String>();
+
+        for (String key : mIndex.stringPropertyNames()) {
+            if (key.startsWith(ACCESS_KEY_PREFIX)) {
+                final String hash = key.substring(ACCESS_KEY_PREFIX.length());
+                hashes.add(hash);
+                totalSize += getStoredSize(hash);
+            }
+        }
+
+        while (totalSize > mMaxSize && !hashes.isEmpty()) {
+            String oldestHash = null;
+            long oldestAccess = Long.MAX_VALUE;
+
+            for (String hash : hashes) {
+                long access = parseLong(mIndex.getProperty(ACCESS_KEY_PREFIX + hash));
+
+                if (!hash.equals(keepHash) && access < oldestAccess) {
+                    oldestHash = hash;
+                    oldestAccess = access;
+                }
+            }
+
+            if (oldestHash == null) {
+                break;
+            }
+            totalSize -= getStoredSize(oldestHash);
+            hashes.remove(oldestHash);
+            remove(oldestHash);
+            Log.d(BLE_FOTA_TAG, "Firmware is evicted: " + oldestHash);
+        }
+    }
+
+    /**
+     * Remove the firmware file, its frame cache & index entries.
+     *
+     * @param hash is the content hash.
+     */
+    private void remove(String hash) {
+        final File file = getFile(hash);
+
+        file.delete();
+        BflFwFrameCache.getCacheFile(file).delete();
+        mVerifiedHashes.remove(hash);
+        mIndex.remove(ACCESS_KEY_PREFIX + hash);
+        mIndex.remove(VERIFIED_KEY_PREFIX + hash);
+
+        for (String key : mIndex.stringPropertyNames()) {
+            if (key.startsWith(VERSION_KEY_PREFIX) && hash.equals(mIndex.getProperty(key))) {
+                mIndex.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get the stored size of the content including its frame cache.
+     *
+     * @param hash is the content hash.
+     * @return The size in bytes.
+     */
+    private long getStoredSize(String hash) {
+        final File file = getFile(hash);
+        return file.length() + BflFwFrameCache.getCacheFile(file).length();
+    }
+
+    private File getFile(String hash) {
+        return new File(mCacheDir, hash + FIRMWARE_FILE_EXT);
+    }
+
+    private static String makeVersionKey(String productName, String version) {
+        return VERSION_KEY_PREFIX + productName + "/" + version;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return (value != null) ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void loadIndex() {
+        final File indexFile = new File(mCacheDir, INDEX_FILE);
+
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            InputStream indexInput = new FileInputStream(indexFile);
+            try {
+                mIndex.load(indexInput);
+            } finally {
+                indexInput.close();
+            }
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to read the firmware cache index.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the index into a temporary file & rename it, so a crash never leaves a broken index.
+     */
+    private void saveIndex() {
+        final File indexFile = new File(mCacheDir, INDEX_FILE);
+        final File tempFile = new File(mCacheDir, INDEX_FILE + ".tmp");
+
+        try {
+            OutputStream indexOutput = new FileOutputStream(tempFile);
+            try {
+                mIndex.store(indexOutput, null);
+            } finally {
+                indexOutput.close();
+            }
+
+            if (!tempFile.renameTo(indexFile)) {
+                Log.e(BLE_FOTA_TAG, "Unable to replace the firmware cache index.");
+            }
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to write the firmware cache index.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Calculate SHA-256 of the file.
+     *
+     * @param file is the file.
+     * @return SHA-256 hex string, or null if the file is not readable.
+     */
+    public static String getSha256(File file) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            InputStream fileInput = new FileInputStream(file);
+            byte[] buffer = BflBufferPool.acquire();
+            int count;
+
+            try {
+                while ((count = fileInput.read(buffer)) != -1) {
+                    messageDigest.update(buffer, 0, count);
+                }
+            } finally {
+                BflBufferPool.release(buffer);
+                fileInput.close();
+            }
+            return BflUtil.toHexString(messageDigest.digest());
+
+        } catch (IOException e) {
+            Log.w(BLE_FOTA_TAG, "Unable to read the file: " + file.getPath());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
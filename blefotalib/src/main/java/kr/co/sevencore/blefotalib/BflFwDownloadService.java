@@ -6,21 +6,43 @@ import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import kr.co.sevencore.blefotalib.BflCodeList.DownloadCode;
 
@@ -29,11 +51,12 @@ import kr.co.sevencore.blefotalib.BflCodeList.DownloadCode;
  * BLE FOTA Library Firmware Download service.
  * This service downloads the firmware data from the firmware managing server.
  *
+ * Firmware metadata is requested by a single call (getfirmwareinfo.php),
+ * and the chained product name, version & URL requests are used only if the metadata is not available.
+ * Downloaded firmware is stored in the private firmware cache, and a cached version is not downloaded again.
+ *
  * Debugging mode:
  * - sDeviceAddress = intent.getStringExtra("MAC_ADDRESS"); is disabled.
- * - Firmware saved directory is changed.
- *  -> Internal directory (disabled): dir = getDir(sProductName, Context.MODE_PRIVATE); dirPath = dir.getAbsolutePath() + "/" + fileName;
- *  -> External storage for debugging: dirPath = "/storage/sdcard0/Download/" + fileName;
  *
  * !Notice: 
  *  - Insert your server URL. (FIRMWARE_MANAGING_SERVER_URL)
@@ -51,30 +74,60 @@ import kr.co.sevencore.blefotalib.BflCodeList.DownloadCode;
 public class BflFwDownloadService extends Service {
     private final static String BLE_FOTA_TAG = BflFwDownloadService.class.getSimpleName();
 
+    private MetadataConnection mMetadataConnection;
     private ServerConnection mServerConnection;
     private FirmwareDownload mFirmwareDownload;
     private int mSvcId;
+    private int mPrefetchSvcId = -1;      // Start ID of the running prefetch. -1: Not running.
+    private int mPrefetchPendingCnt = 0;  // Firmware downloads of the prefetch not finished yet.
 
     private static PowerManager sPowerManager;
-    private static PowerManager.WakeLock sCpuWakeLock = null;
+    private static PowerManager.WakeLock sCpuWakeLock = null; // Reference counted. Held by each running task.
+    private final static Object sWakeLockLock = new Object();
 
     private static String sDeviceAddress;// MAC address of the device.
     private static String sProductName;  // Product name of the device.
     private static String sFirmwareName; // Firmware file name.
     private static String sVersion;      // Firmware version information from the server.
     private static String sUrl;          // Firmware download URL.
+    private static String sFirmwareHash; // SHA-256 hex string of the firmware from the server. null: Not provided.
+    private static long sFirmwareSize = -1; // Firmware data size from the server. -1: Not provided.
+    private static BflFwMetadata sMetadata; // Firmware metadata. null: The chained requests are used.
+    private static boolean sPipelinedMode = false; // true: The upload starts while the firmware is downloaded.
+    private static BflFwBundle sBundle;  // Imported offline firmware bundles.
+
+    private static XmlPullParserFactory sXmlPullParserFactory; // Shared by every server connection.
+
+    // Identical in-flight requests are run once & the result is shared.
+    private final static BflSingleFlight<BflFwMetadataCache.Entry> sMetadataFlight =
+            new BflSingleFlight<BflFwMetadataCache.Entry>();
+    private final static BflSingleFlight<String> sInfoFlight = new BflSingleFlight<String>();
+    private final static BflSingleFlight<String> sDownloadFlight = new BflSingleFlight<String>();
+
+    // Metadata requests & firmware downloads run in the bounded lanes owned by the service.
+    private final static BflFwTaskExecutor sTaskExecutor = BflFwTaskExecutor.getInstance();
+    private final static String FLEET_SESSION = "fleet"; // Session of the tasks without the device.
+    final static String PREFETCH_SESSION = "prefetch";   // Session of the background prefetch.
+
+    // Hosts which rejected range requests are downloaded by a single request for a while.
+    private final static HashMap<String, Long> sRangeRejectedHosts = new HashMap<String, Long>(); // Time by host.
+    private final static long RANGE_REJECTED_HOST_TTL = 60 * 60 * 1000; // The host is asked for ranges after an hour.
 
     private final static String FIRMWARE_MANAGING_SERVER_URL = ""; //Insert your server URL.
     private final static String FIRMWARE_MANAGING_SERVER_DIR = "BLE_FIRMWARE/";
     private final static String FIRMWARE_MANAGING_SERVER_GETPRODUCTNAME = "getproductname.php";
     private final static String FIRMWARE_MANAGING_SERVER_GETURL = "geturl.php";
     private final static String FIRMWARE_MANAGING_SERVER_GETVERSION = "getversion.php";
+    private final static String FIRMWARE_MANAGING_SERVER_GETFIRMWAREINFO = "getfirmwareinfo.php";
+    private final static String FIRMWARE_MANAGING_SERVER_GETFLEETINFO = "getfleetinfo.php";
     private final static String FIRMWARE_MANAGING_SERVER_SERVER_ACCOUNT_ID = "dbuser=account_ID"; // Insert server DB account ID.
     private final static String FIRMWARE_MANAGING_SERVER_ACCOUNT_PWD = "dbpasswd=pwd";      // Insert server DB passwd.
     private final static String FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER = "?mac=";
 
     public final static String ACTION_ERROR_UNKNOWN_DEVICE =
             "kr.co.sevencore.ble.fota.lib.download.ACTION_ERROR_UNKNOWN_DEVICE";
+    public final static String ACTION_ERROR_NETWORK_UNAVAILABLE =
+            "kr.co.sevencore.ble.fota.lib.download.ACTION_ERROR_NETWORK_UNAVAILABLE";
     public final static String ACTION_ERROR_FIRMWARE_DATA_INTEGRITY =
             "kr.co.sevencore.ble.fota.lib.download.ACTION_ERROR_FIRMWARE_DATA_INTEGRITY";
     public final static String ACTION_PRODUCT_NAME =
@@ -89,8 +142,36 @@ public class BflFwDownloadService extends Service {
             "kr.co.sevencore.ble.fota.lib.download.ACTION_FIRMWARE_DOWNLOADING";
     public final static String ACTION_FIRMWARE_DOWNLOAD_FINISH =
             "kr.co.sevencore.ble.fota.lib.download.ACTION_FINISHING_DOWNLOAD";
+    public final static String ACTION_PREFETCH =
+            "kr.co.sevencore.ble.fota.lib.download.ACTION_PREFETCH";
+    public final static String ACTION_FIRMWARE_PIPELINE_READY =
+            "kr.co.sevencore.ble.fota.lib.download.ACTION_FIRMWARE_PIPELINE_READY";
     public final static String EXTRA_DATA =
             "kr.co.sevencore.ble.fota.lib.download.ACTION_EXTRA_DATA";
+    // Image of ACTION_FIRMWARE_DOWNLOAD_FINISH. Fleet campaigns find the finished group by them.
+    public final static String EXTRA_PRODUCT_NAME_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_PRODUCT_NAME_DATA";
+    public final static String EXTRA_VERSION_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_VERSION_DATA";
+
+    // Fleet information grouped by distinct image. Image lists are parallel arrays indexed by group.
+    public final static String ACTION_FLEET_INFO =
+            "kr.co.sevencore.ble.fota.lib.download.ACTION_FLEET_INFO";
+    public final static String EXTRA_FLEET_PRODUCT_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_PRODUCT_LIST_DATA";
+    public final static String EXTRA_FLEET_VERSION_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_VERSION_LIST_DATA";
+    public final static String EXTRA_FLEET_URL_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_URL_LIST_DATA";
+    public final static String EXTRA_FLEET_SIZE_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_SIZE_LIST_DATA";
+    public final static String EXTRA_FLEET_HASH_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_HASH_LIST_DATA";
+    // Devices are parallel arrays of MAC address & group index. Group index -1: Unknown device.
+    public final static String EXTRA_FLEET_MAC_ADDRESS_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_MAC_ADDRESS_LIST_DATA";
+    public final static String EXTRA_FLEET_GROUP_INDEX_LIST_DATA =
+            "kr.co.sevencore.ble.fota.lib.download.EXTRA_FLEET_GROUP_INDEX_LIST_DATA";
 
 
     public BflFwDownloadService() {}
@@ -102,10 +183,17 @@ public class BflFwDownloadService extends Service {
             //sDeviceAddress = "80:EA:CA:00:00:01"; // Used for debugging.
         }
 
-        // Get the product name of the device.
-        getFirmwareInfo(FIRMWARE_MANAGING_SERVER_URL +
-                FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETPRODUCTNAME +
-                FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress);
+        // Get the firmware metadata of the device.
+        // Without the device, the service is used for the fleet information.
+        sMetadata = null;
+        sFirmwareHash = null;
+        sFirmwareSize = -1;
+
+        if (sDeviceAddress != null) {
+            getFirmwareMetadata(FIRMWARE_MANAGING_SERVER_URL +
+                    FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETFIRMWAREINFO +
+                    FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress, getSession());
+        }
 
         return mBflFwDownloadBinder;
     }
@@ -115,25 +203,19 @@ public class BflFwDownloadService extends Service {
         /**
          * Check initial state of network to download firmware data from the server.
          *
-         * @return true, if mobile or WiFi network is available.
+         * @return true, if mobile or WiFi network is available, or the offline firmware bundle is imported.
          * @throws RemoteException
          */
         @Override
         public boolean initDownloader() throws RemoteException {
-            // TODO: Classifying a kind of available networks to response to charged network usage.
-            // Default network check item: Mobile communication & WiFi.
-            ConnectivityManager connectivityManager;
-            NetworkInfo networkInfo;
-
-            connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            networkInfo = connectivityManager.getActiveNetworkInfo();
+            if (isNetworkAvailable()) {
+                return true;
+            }
 
-            if (networkInfo != null) {
-                if (networkInfo.getType() == 0 || networkInfo.getType() == 1) {
-                    // Type 0: Mobile communication network enabled.
-                    // Type 1: WiFi network enabled.
-                    return true;
-                }
+            // Images of the offline bundle are served without the network.
+            if (!sBundle.isEmpty()) {
+                Log.i(BLE_FOTA_TAG, "Network is not able to use. Offline firmware bundle is used.");
+                return true;
             }
 
             Log.e(BLE_FOTA_TAG, "Network is not able to use");
@@ -148,9 +230,81 @@ public class BflFwDownloadService extends Service {
          */
         @Override
         public void getFirmwareUrl() throws RemoteException {
+            // The cached version is used without the download URL.
+            if (finishWithCachedFirmware(sProductName, sVersion)) {
+                return;
+            }
+
+            // The download URL is already received with the metadata.
+            if (sMetadata != null) {
+                broadcastUpdate(ACTION_FIRMWARE_URL, sMetadata.getUrl());
+                getFirmware(sMetadata.getUrl(), sProductName, sVersion, sFirmwareHash, sMetadata.getSize(),
+                        getSession());
+                return;
+            }
             getFirmwareInfo(FIRMWARE_MANAGING_SERVER_URL +
                     FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETURL +
-                    FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress);
+                    FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress, getSession());
+        }
+
+        /**
+         * Get firmware information of many devices by a few requests.
+         * The result is broadcast grouped by distinct image.
+         *
+         * @param macAddresses is MAC addresses of the devices.
+         * @throws RemoteException
+         */
+        @Override
+        public void queryFleetInfo(String[] macAddresses) throws RemoteException {
+            if (macAddresses == null || macAddresses.length == 0) {
+                return;
+            }
+            executeTask(new FleetConnection(), BflFwTaskExecutor.LANE_METADATA, FLEET_SESSION, macAddresses);
+        }
+
+        /**
+         * Download the firmware image of a group.
+         * The cached image is used without downloading.
+         *
+         * @param productName is the product name of the image.
+         * @param version is the firmware version of the image.
+         * @param url is the full download URL of the image.
+         * @param hash is SHA-256 hex string of the image. null: Not provided.
+         * @param size is the firmware data size of the image. -1: Not provided.
+         * @throws RemoteException
+         */
+        @Override
+        public void downloadFirmware(String productName, String version, String url, String hash, long size)
+                throws RemoteException {
+            if (finishWithCachedFirmware(productName, version)) {
+                return;
+            }
+            getFirmware(url, productName, version, hash, size, getSession());
+        }
+
+        /**
+         * Set the pipelined mode of the firmware download.
+         * In the pipelined mode, the firmware data is framed while it is downloaded,
+         * and ACTION_FIRMWARE_PIPELINE_READY notifies the pipeline path to start the upload early.
+         *
+         * @param enable is true to upload while the firmware is downloaded.
+         * @throws RemoteException
+         * @see kr.co.sevencore.blefotalib.BflFwGrowingImage
+         */
+        @Override
+        public void setPipelinedMode(boolean enable) throws RemoteException {
+            sPipelinedMode = enable;
+        }
+
+        /**
+         * Cancel every queued & running request of a session.
+         *
+         * @param macAddress is MAC address of the device. null: The fleet requests are cancelled.
+         * @throws RemoteException
+         */
+        @Override
+        public void cancelTasks(String macAddress) throws RemoteException {
+            sTaskExecutor.cancel((macAddress != null) ? macAddress : FLEET_SESSION);
         }
 
         @Override
@@ -163,6 +317,59 @@ public class BflFwDownloadService extends Service {
         return super.onUnbind(intent);
     }
 
+    /**
+     * Check mobile or WiFi network is available.
+     *
+     * @return true, if the network is able to use.
+     */
+    private boolean isNetworkAvailable() {
+        // TODO: Classifying a kind of available networks to response to charged network usage.
+        // Default network check item: Mobile communication & WiFi.
+        ConnectivityManager connectivityManager;
+        NetworkInfo networkInfo;
+
+        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        networkInfo = connectivityManager.getActiveNetworkInfo();
+
+        if (networkInfo != null) {
+            if (networkInfo.getType() == 0 || networkInfo.getType() == 1) {
+                // Type 0: Mobile communication network enabled.
+                // Type 1: WiFi network enabled.
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finish the download with the firmware of the offline bundle or the cached firmware.
+     *
+     * @param productName is the product name of the firmware.
+     * @param version is the firmware version.
+     * @return true, if the firmware is bundled or cached.
+     * @see kr.co.sevencore.blefotalib.BflFwBundle
+     * @see kr.co.sevencore.blefotalib.BflFwCache
+     */
+    private boolean finishWithCachedFirmware(String productName, String version) {
+        if (productName == null || version == null) {
+            return false;
+        }
+        // The bundled image is mapped without reading or hashing the firmware data.
+        String firmwarePath = sBundle.getPath(productName, version);
+
+        if (firmwarePath == null) {
+            File cachedFile = BflFwCache.getInstance(this).get(productName, version);
+
+            if (cachedFile == null) {
+                return false;
+            }
+            firmwarePath = cachedFile.getAbsolutePath();
+        }
+        Log.i(BLE_FOTA_TAG, "Firmware is already cached: " + firmwarePath);
+        broadcastFinish(firmwarePath, productName, version);
+        return true;
+    }
+
     /**
      * Make a firmware file name by firmware version information.
      *
@@ -173,24 +380,188 @@ public class BflFwDownloadService extends Service {
         sFirmwareName = firmwareName + sFirmwareFileExt;
     }
 
+    /**
+     * Get the firmware metadata by a single request.
+     *
+     * @param serverUrl is the URL of firmware managing server to be able to request firmware metadata.
+     * @param session is the session of the request.
+     */
+    private void getFirmwareMetadata(String serverUrl, String session) {
+        mMetadataConnection = new MetadataConnection(session);
+        executeTask(mMetadataConnection, BflFwTaskExecutor.LANE_METADATA, session, serverUrl, sDeviceAddress);
+    }
+
+    /**
+     * Get a new XML pull parser from the shared factory.
+     *
+     * @return The XML pull parser.
+     * @throws XmlPullParserException
+     */
+    private static synchronized XmlPullParser newXmlPullParser() throws XmlPullParserException {
+        if (sXmlPullParserFactory == null) {
+            sXmlPullParserFactory = XmlPullParserFactory.newInstance();
+        }
+        return sXmlPullParserFactory.newPullParser();
+    }
+
     /**
      * Get firmware information to be updated.
      *
      * @param serverUrl is the URL of firmware managing server to be able to request firmware information.
+     * @param session is the session of the request.
      */
-    private void getFirmwareInfo(String serverUrl) {
-        mServerConnection = new ServerConnection();
-        mServerConnection.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, serverUrl);
+    private void getFirmwareInfo(String serverUrl, String session) {
+        mServerConnection = new ServerConnection(session);
+        executeTask(mServerConnection, BflFwTaskExecutor.LANE_METADATA, session, serverUrl);
     }
 
     /**
      * Get firmware data.
      *
      * @param downloadUrl is the URL of firmware managing server to get firmware data.
+     * @param productName is the product name of the firmware.
+     * @param version is the firmware version.
+     * @param hash is SHA-256 hex string of the firmware. null: Not provided.
+     * @param size is the firmware data size. -1: Not provided.
+     * @param session is the session of the request.
+     */
+    private void getFirmware(String downloadUrl, String productName, String version, String hash, long size,
+                             String session) {
+        mFirmwareDownload = new FirmwareDownload(session, productName, version, hash, size, false);
+        if (!executeTask(mFirmwareDownload, BflFwTaskExecutor.LANE_DOWNLOAD, session, downloadUrl)) {
+            Log.e(BLE_FOTA_TAG, "Firmware download is not able to be queued: " + downloadUrl);
+        }
+    }
+
+    /**
+     * Refresh the firmware metadata of every known device & preload the images into the firmware cache.
+     * The result is not broadcast, so the clients are not disturbed.
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwPrefetcher
+     */
+    private void startPrefetch() {
+        final String[] macAddresses = BflFwMetadataCache.getInstance(this).getMacAddresses();
+
+        if (macAddresses.length == 0 ||
+                !executeTask(new FleetConnection(true), BflFwTaskExecutor.LANE_METADATA, PREFETCH_SESSION, macAddresses)) {
+            Log.d(BLE_FOTA_TAG, "Nothing to prefetch.");
+            finishPrefetch();
+            return;
+        }
+        Log.i(BLE_FOTA_TAG, "Prefetch is started: " + macAddresses.length + " devices");
+    }
+
+    /**
+     * Preload the images of the groups which are not cached yet.
+     *
+     * @param groups is the devices grouped by image.
+     */
+    private void prefetchImages(ArrayList<BflFwImageGroup> groups) {
+        final BflFwCache firmwareCache = BflFwCache.getInstance(this);
+
+        for (BflFwImageGroup group : groups) {
+            if (sBundle.contains(group.getProductName(), group.getVersion()) ||
+                    firmwareCache.get(group.getProductName(), group.getVersion()) != null) {
+                continue;
+            }
+            FirmwareDownload firmwareDownload = new FirmwareDownload(PREFETCH_SESSION, group.getProductName(),
+                    group.getVersion(), group.getHash(), group.getSize(), true);
+
+            if (executeTask(firmwareDownload, BflFwTaskExecutor.LANE_DOWNLOAD, PREFETCH_SESSION, group.getUrl())) {
+                mPrefetchPendingCnt++;
+            }
+        }
+        Log.i(BLE_FOTA_TAG, "Prefetch images: " + mPrefetchPendingCnt + "/" + groups.size());
+
+        if (mPrefetchPendingCnt == 0) {
+            finishPrefetch();
+        }
+    }
+
+    /**
+     * Count a finished prefetch download & stop the prefetch after the last one.
+     */
+    private void finishPrefetchDownload() {
+        if (mPrefetchPendingCnt > 0 && --mPrefetchPendingCnt == 0) {
+            finishPrefetch();
+        }
+    }
+
+    private void finishPrefetch() {
+        Log.i(BLE_FOTA_TAG, "Prefetch is finished.");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            BflFwPrefetchJobService.finishJob();
+        }
+
+        // The service keeps running while a client is bound.
+        if (mPrefetchSvcId != -1) {
+            stopSelf(mPrefetchSvcId);
+            mPrefetchSvcId = -1;
+        }
+    }
+
+    /**
+     * Check the host rejected range requests recently.
+     *
+     * @param host is the host of the firmware download URL.
+     * @return true, if the firmware is downloaded by a single request.
+     */
+    private static boolean isRangeRejected(String host) {
+        synchronized (sRangeRejectedHosts) {
+            final Long rejectedTime = sRangeRejectedHosts.get(host);
+
+            if (rejectedTime == null) {
+                return false;
+            }
+
+            if (SystemClock.elapsedRealtime() - rejectedTime >= RANGE_REJECTED_HOST_TTL) {
+                sRangeRejectedHosts.remove(host);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static void rejectRanges(String host) {
+        synchronized (sRangeRejectedHosts) {
+            sRangeRejectedHosts.put(host, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return (value != null) ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the firmware metadata of the device from the offline bundle.
+     *
+     * @param macAddress is MAC address of the device.
+     * @return The answer of the bundle, or null if the device is not in the bundle.
+     * @see kr.co.sevencore.blefotalib.BflFwBundle
+     */
+    private static BflFwMetadataCache.Entry getBundledMetadata(String macAddress) {
+        final BflFwMetadata metadata = sBundle.getMetadata(macAddress);
+
+        if (metadata == null) {
+            return null;
+        }
+        Log.d(BLE_FOTA_TAG, "Firmware metadata of the offline bundle is used: " + macAddress);
+        return new BflFwMetadataCache.Entry(metadata, null, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the session of the tasks requested by the current client.
+     * It is read when a request is made by the client. Chained tasks keep the session of the first task.
+     *
+     * @return MAC address of the device, or the fleet session without the device.
      */
-    private void getFirmware(String downloadUrl) {
-        mFirmwareDownload = new FirmwareDownload();
-        mFirmwareDownload.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, downloadUrl);
+    private static String getSession() {
+        return (sDeviceAddress != null) ? sDeviceAddress : FLEET_SESSION;
     }
 
     /**
@@ -227,11 +598,34 @@ public class BflFwDownloadService extends Service {
         sendBroadcast(fwDownloadIntent);
     }
 
+    /**
+     * Notify the location of the firmware & the image it belongs to.
+     *
+     * @param firmwarePath is the location of the downloaded or cached firmware.
+     * @param productName is the product name of the image. null: Unknown.
+     * @param version is the firmware version of the image. null: Unknown.
+     */
+    private void broadcastFinish(final String firmwarePath, final String productName, final String version) {
+        final Intent fwDownloadIntent = new Intent(ACTION_FIRMWARE_DOWNLOAD_FINISH);
+        fwDownloadIntent.putExtra(EXTRA_DATA, firmwarePath);
+        fwDownloadIntent.putExtra(EXTRA_PRODUCT_NAME_DATA, productName);
+        fwDownloadIntent.putExtra(EXTRA_VERSION_DATA, version);
+        sendBroadcast(fwDownloadIntent);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        mSvcId = startId;
+        Log.d(BLE_FOTA_TAG, "onStartCommand service start ID: " + startId);
 
-        Log.d(BLE_FOTA_TAG, "onStartCommand service start ID: " + mSvcId);
+        if (intent != null && ACTION_PREFETCH.equals(intent.getAction())) {
+            // The prefetch is not restarted while it is running.
+            if (mPrefetchSvcId == -1) {
+                mPrefetchSvcId = startId;
+                startPrefetch();
+            }
+            return START_NOT_STICKY;
+        }
+        mSvcId = startId;
         return START_REDELIVER_INTENT;
     }
 
@@ -240,110 +634,667 @@ public class BflFwDownloadService extends Service {
         super.onCreate();
 
         // CPU wake lock is used to keep service running.
-        // CPU wake lock is managed by each service(especially scan service) or the main application.
+        // CPU wake lock is acquired by each task of the service, and it is released when the last task finishes.
         sPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        sCpuWakeLock = sPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FIRMWARE_DOWNLOAD");
-        sCpuWakeLock.acquire();
+
+        synchronized (sWakeLockLock) {
+            sCpuWakeLock = sPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FIRMWARE_DOWNLOAD");
+            sCpuWakeLock.setReferenceCounted(true);
+        }
+
+        // Only the index of each imported bundle is read.
+        sBundle = BflFwBundle.getInstance(this);
     }
 
     /**
-     * FOTA is managed by firmware managing server.
-     * Server connection is used to get information to manage a firmware version.
+     * Execute the task holding the CPU wake lock until the task finishes.
      *
-     * @see kr.co.sevencore.blefotalib.BflFwDownloader
-     * @see kr.co.sevencore.blefotalib.BflFwDownloadService
-     * @see kr.co.sevencore.blefotalib.BflFwDownloadService.FirmwareDownload
+     * @param task is the task to be executed.
+     * @param lane is the lane of the task executor.
+     * @param session is the session of the task.
+     * @param params is the parameters of the task.
+     * @return true, if the task is queued. false: The lane queue is full.
+     * @see kr.co.sevencore.blefotalib.BflFwTaskExecutor
      */
-    private class ServerConnection extends AsyncTask<String, Integer, String> {
+    private static boolean executeTask(WakefulTask<?> task, int lane, String session, String... params) {
+        task.acquireWakeLock();
+        // The rejected task is cancelled, so its wake lock is released by onCancelled method.
+        return sTaskExecutor.execute(task, lane, session, params);
+    }
 
-        private final static int SERVER_CONNECTION_TIMEOUT = 3000;
+    /**
+     * Task of the service holding the CPU wake lock.
+     * The wake lock is acquired when the task is executed,
+     * and it is released exactly once when the task finishes or is cancelled.
+     */
+    private static abstract class WakefulTask<Result> extends AsyncTask<String, Integer, Result> {
+        private PowerManager.WakeLock mWakeLock;  // The wake lock acquired by the task. null: Not held.
+
+        private void acquireWakeLock() {
+            synchronized (sWakeLockLock) {
+                if (sCpuWakeLock != null && mWakeLock == null) {
+                    sCpuWakeLock.acquire();
+                    mWakeLock = sCpuWakeLock;
+                }
+            }
+        }
 
-        private String mEncoding = "UTF-8";
-        private int mEventType;
+        private void releaseWakeLock() {
+            synchronized (sWakeLockLock) {
+                // The wake lock of the destroyed service is already released.
+                if (mWakeLock != null && mWakeLock.isHeld()) {
+                    mWakeLock.release();
+                }
+                mWakeLock = null;
+            }
+        }
 
-        private String mTagMac = "mac";
-        private String mTagProduct = "product";
-        private String mTagFwVer = "firmwareversion";
-        private String mTagFwUrl = "firmwareurl";
+        @Override
+        protected final void onPostExecute(Result result) {
+            try {
+                onFinished(result);
+            } finally {
+                releaseWakeLock();
+            }
+        }
 
         @Override
-        protected String doInBackground(String... urls) {
+        protected final void onCancelled(Result result) {
             try {
-                InputStream inputStream = null;
+                onCancelledTask(result);
+            } finally {
+                releaseWakeLock();
+            }
+        }
 
-                URL url = new URL(urls[0]);
-                HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        /**
+         * Called on the main thread after doInBackground method, in place of onPostExecute method.
+         *
+         * @param result is the result of doInBackground method.
+         */
+        protected abstract void onFinished(Result result);
 
-                if (httpURLConnection != null) {
-                    httpURLConnection.setConnectTimeout(SERVER_CONNECTION_TIMEOUT);
-                    httpURLConnection.setUseCaches(false);
+        /**
+         * Called on the main thread when the task is cancelled, in place of onCancelled method.
+         *
+         * @param result is the result of doInBackground method, or null.
+         */
+        protected void onCancelledTask(Result result) {}
+    }
 
-                    // Numeric status code HttpURLConnection.HTTP_OK: 200
-                    if (httpURLConnection.getResponseCode() == 200) {
-                        inputStream = url.openStream();
-                    }
-                    httpURLConnection.disconnect();
-                }
+    /**
+     * Firmware metadata request.
+     * Product name, firmware version, download URL, size & hash are received by a single request.
+     * If the metadata is not available, the chained requests of ServerConnection are used.
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwMetadata
+     * @see kr.co.sevencore.blefotalib.BflFwDownloadService.ServerConnection
+     */
+    private class MetadataConnection extends WakefulTask<BflFwMetadataCache.Entry> {
+
+        private final static int SERVER_CONNECTION_TIMEOUT = 3000;
+        private final static int HTTP_NOT_MODIFIED = 304;
 
-                return parseData(inputStream);
+        private final String mSession;     // Session of the request, kept by the chained requests.
+        private String mEncoding = "UTF-8";
+        private boolean mOffline = false;  // true: The metadata is requested without the network.
 
-            } catch (Exception e) {
-                mServerConnection.cancel(true);
-                Log.e(BLE_FOTA_TAG, "Firmware information download error.");
+        MetadataConnection(String session) {
+            mSession = session;
+        }
 
-                if (sCpuWakeLock != null) {
-                    sCpuWakeLock.release();
-                    sCpuWakeLock = null;
-                }
+        /**
+         * Get the firmware metadata of the device.
+         *
+         * Without the network, the cached answer even if it is stale, or the offline bundle answers
+         * without waiting for the connection timeout.
+         *
+         * @param params is the URL of the firmware metadata & MAC address of the device.
+         * @return The answer of the server or the offline bundle, or null if the metadata is not available.
+         */
+        @Override
+        protected BflFwMetadataCache.Entry doInBackground(final String... params) {
+            if (!isNetworkAvailable()) {
+                mOffline = true;
+                return getOfflineMetadata(params[1]);
+            }
+
+            try {
+                // The same metadata requested by other sessions is fetched once.
+                BflFwMetadataCache.Entry entry = sMetadataFlight.execute(params[0], new Callable<BflFwMetadataCache.Entry>() {
+                    @Override
+                    public BflFwMetadataCache.Entry call() throws Exception {
+                        return fetchMetadata(params[0], params[1]);
+                    }
+                });
 
+                if (entry != null) {
+                    return entry;
+                }
+            } catch (Exception e) {
+                Log.w(BLE_FOTA_TAG, "Firmware metadata download error.");
                 e.printStackTrace();
             }
-            return null;
+            return getBundledMetadata(params[1]);
         }
 
         /**
-         * Get firmware information by parsing XML data.
+         * Get the firmware metadata without the network.
+         * The cached or prefetched answer is used first. The unknown device answer is used after the offline bundle.
          *
-         * @param inputStream is XML data.
-         * @return firmware information.
+         * @param macAddress is MAC address of the device.
+         * @return The cached answer or the offline bundle answer, or null if the metadata is not available.
+         * @see kr.co.sevencore.blefotalib.BflFwMetadataCache
          */
-        private String parseData(InputStream inputStream) {
-            try {
-                XmlPullParserFactory xmlPullParserFactory = XmlPullParserFactory.newInstance();
-                XmlPullParser xmlPullParser = xmlPullParserFactory.newPullParser();
-                xmlPullParser.setInput(inputStream, mEncoding);
-                mEventType = xmlPullParser.getEventType();
+        private BflFwMetadataCache.Entry getOfflineMetadata(String macAddress) {
+            final BflFwMetadataCache.Entry cachedEntry =
+                    BflFwMetadataCache.getInstance(BflFwDownloadService.this).get(macAddress);
 
-                while (mEventType != XmlPullParser.END_DOCUMENT) {
-                    if (isCancelled()) {
-                        Log.i(BLE_FOTA_TAG, "AsyncTask of ServerConnection is cancelled.");
-                        //break; // "break" is replaced with "return null".
-                        return null;
-                    }
+            if (cachedEntry != null && !cachedEntry.isNegative()) {
+                Log.d(BLE_FOTA_TAG, "Cached firmware metadata is used without the network: " + macAddress);
+                return cachedEntry;
+            }
+            final BflFwMetadataCache.Entry bundledEntry = getBundledMetadata(macAddress);
+            return (bundledEntry != null) ? bundledEntry : cachedEntry;
+        }
 
-                    switch (mEventType) {
-                        case XmlPullParser.START_TAG:
-                            String startTag = xmlPullParser.getName();
+        /**
+         * Fetch the firmware metadata.
+         * A fresh cached answer is used without the network, and a stale answer is revalidated.
+         *
+         * @param serverUrl is the URL of the firmware metadata.
+         * @param macAddress is MAC address of the device.
+         * @return The answer of the server, or null if the metadata is not available.
+         * @throws Exception
+         * @see kr.co.sevencore.blefotalib.BflFwMetadataCache
+         */
+        private BflFwMetadataCache.Entry fetchMetadata(String serverUrl, String macAddress) throws Exception {
+            BflFwMetadataCache metadataCache = BflFwMetadataCache.getInstance(BflFwDownloadService.this);
+            BflFwMetadataCache.Entry cachedEntry = metadataCache.get(macAddress);
 
-                            if (startTag.equals(mTagMac)) {
-                                mEventType = xmlPullParser.next();
+            if (cachedEntry != null && metadataCache.isFresh(cachedEntry)) {
+                Log.d(BLE_FOTA_TAG, "Cached firmware metadata is used: " + macAddress);
+                return cachedEntry;
+            }
+            HttpURLConnection httpURLConnection = null;
 
-                                if (sDeviceAddress.equals(xmlPullParser.getText())) {
-                                    sDeviceAddress = xmlPullParser.getText();
-                                    Log.i(BLE_FOTA_TAG, "Device MAC address: " + sDeviceAddress);
+            try {
+                URL url = new URL(serverUrl);
+                httpURLConnection = (HttpURLConnection) url.openConnection();
+                httpURLConnection.setConnectTimeout(SERVER_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(SERVER_CONNECTION_TIMEOUT);
+                httpURLConnection.setUseCaches(false);
+
+                if (cachedEntry != null && !cachedEntry.isNegative()) {
+                    if (cachedEntry.getETag() != null) {
+                        httpURLConnection.setRequestProperty("If-None-Match", cachedEntry.getETag());
+                    }
 
-                                } else {
-                                    return DownloadCode.SERVER_CONN_ERROR_UNKNOWN_DEVICE.getCode();
-                                }
+                    if (cachedEntry.getLastModified() != null) {
+                        httpURLConnection.setRequestProperty("If-Modified-Since", cachedEntry.getLastModified());
+                    }
+                }
+                final int responseCode = httpURLConnection.getResponseCode();
 
-                            } else if (startTag.equals(mTagProduct)) {
-                                mEventType = xmlPullParser.next();
-                                sProductName = xmlPullParser.getText();
+                if (responseCode == HTTP_NOT_MODIFIED && cachedEntry != null && !cachedEntry.isNegative()) {
+                    Log.d(BLE_FOTA_TAG, "Firmware metadata is not modified: " + macAddress);
+                    metadataCache.refresh(cachedEntry);
+                    return cachedEntry;
+                }
 
-                                broadcastUpdate(ACTION_PRODUCT_NAME, sProductName);
-                                Log.d(BLE_FOTA_TAG, "Product name from the server: " + sProductName);
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    Log.w(BLE_FOTA_TAG, "Firmware metadata is not available: " + responseCode);
+                    return null;
+                }
+                InputStream inputStream = httpURLConnection.getInputStream();
+                BflFwMetadata metadata;
+
+                try {
+                    XmlPullParser xmlPullParser = newXmlPullParser();
+                    xmlPullParser.setInput(inputStream, mEncoding);
+                    metadata = BflFwMetadata.readElement(xmlPullParser, null);
+                } finally {
+                    inputStream.close();
+                }
 
-                                return DownloadCode.SERVER_CONN_PROCESS_CHECKING_VERSION.getCode();
+                // The server answers without firmware information or with another device for unknown devices.
+                if (!metadata.isComplete() ||
+                        (metadata.getMacAddress() != null && !metadata.getMacAddress().equalsIgnoreCase(macAddress))) {
+                    metadataCache.putNegative(macAddress);
+                    return new BflFwMetadataCache.Entry(null, null, null, System.currentTimeMillis());
+                }
+                return metadataCache.put(macAddress, metadata,
+                        httpURLConnection.getHeaderField("ETag"), httpURLConnection.getHeaderField("Last-Modified"));
+
+            } catch (IOException e) {
+                // The stale answer is better than nothing, when the server is not reachable.
+                if (cachedEntry != null && !cachedEntry.isNegative()) {
+                    Log.w(BLE_FOTA_TAG, "Stale firmware metadata is used: " + macAddress);
+                    return cachedEntry;
+                }
+                throw e;
+
+            } finally {
+                if (httpURLConnection != null) {
+                    httpURLConnection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        protected void onFinished(BflFwMetadataCache.Entry entry) {
+            if (entry == null && mOffline) {
+                // The chained requests are not able to reach the server either.
+                Log.w(BLE_FOTA_TAG, "Firmware metadata is not available without the network.");
+                broadcastUpdate(ACTION_ERROR_NETWORK_UNAVAILABLE);
+                return;
+            }
+
+            if (entry == null) {
+                // Fall back to the chained requests. Get the product name of the device.
+                getFirmwareInfo(FIRMWARE_MANAGING_SERVER_URL +
+                        FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETPRODUCTNAME +
+                        FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress, mSession);
+                return;
+            }
+
+            if (entry.isNegative()) {
+                broadcastUpdate(ACTION_ERROR_UNKNOWN_DEVICE);
+                return;
+            }
+            final BflFwMetadata metadata = entry.getMetadata();
+
+            sMetadata = metadata;
+            sProductName = metadata.getProductName();
+            sVersion = metadata.getVersion();
+            sFirmwareHash = metadata.getHash();
+            makeFirmwareFileName(sVersion);
+
+            broadcastUpdate(ACTION_PRODUCT_NAME, sProductName);
+            Log.d(BLE_FOTA_TAG, "Product name from the server: " + sProductName);
+
+            // The version checker requests the firmware, if the device has to be updated.
+            broadcastUpdate(ACTION_FIRMWARE_VERSION, sVersion);
+            Log.d(BLE_FOTA_TAG, "Firmware version from the server: " + sVersion);
+        }
+    }
+
+    /**
+     * Fleet information request.
+     * MAC addresses are sent in batches, and each response is parsed while it is streamed.
+     * Devices are grouped by distinct image, so each image is downloaded once for the campaign.
+     *
+     * Response format:
+     * <fleetinfo>
+     *     <device> Elements of the firmware metadata. </device>
+     *     ...
+     * </fleetinfo>
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwImageGroup
+     * @see kr.co.sevencore.blefotalib.BflFwMetadata
+     */
+    private class FleetConnection extends WakefulTask<ArrayList<BflFwImageGroup>> {
+
+        private final static int SERVER_CONNECTION_TIMEOUT = 3000;
+        private final static int SERVER_READ_TIMEOUT = 10000;
+        private final static int MAX_FLEET_QUERY_SIZE = 500;    // MAC addresses per request.
+
+        private String mEncoding = "UTF-8";
+        private String mTagDevice = "device";
+
+        private String[] mMacAddresses;
+        private HashMap<String, Integer> mGroupIndexes = new HashMap<String, Integer>(); // Group index by MAC address.
+        private HashMap<String, Integer> mKeyIndexes = new HashMap<String, Integer>();   // Group index by image key.
+        private final boolean mPrefetch;   // true: The metadata cache is refreshed & the images are preloaded.
+        private final ArrayList<BflFwMetadata> mRefreshedMetadata = new ArrayList<BflFwMetadata>(); // Batch to be cached.
+
+        FleetConnection() {
+            this(false);
+        }
+
+        FleetConnection(boolean prefetch) {
+            mPrefetch = prefetch;
+        }
+
+        @Override
+        protected ArrayList<BflFwImageGroup> doInBackground(String... macAddresses) {
+            mMacAddresses = macAddresses;
+            LinkedHashMap<String, BflFwImageGroup> groups = new LinkedHashMap<String, BflFwImageGroup>();
+            final boolean online = isNetworkAvailable();
+
+            for (int from = 0; from < macAddresses.length; from += MAX_FLEET_QUERY_SIZE) {
+                if (isCancelled()) {
+                    return null;
+                }
+                final int to = Math.min(macAddresses.length, from + MAX_FLEET_QUERY_SIZE);
+
+                try {
+                    if (online) {
+                        queryBatch(macAddresses, from, to, groups);
+                        continue;
+                    }
+                } catch (Exception e) {
+                    Log.e(BLE_FOTA_TAG, "Fleet information download error.");
+                    e.printStackTrace();
+                } finally {
+                    // Later connections of the devices use the refreshed metadata without the network.
+                    if (!mRefreshedMetadata.isEmpty()) {
+                        BflFwMetadataCache.getInstance(BflFwDownloadService.this).putAll(mRefreshedMetadata);
+                        mRefreshedMetadata.clear();
+                    }
+                }
+
+                // Devices of the failed batch are answered by the offline bundle, or reported as unknown.
+                if (!mPrefetch) {
+                    addBundledDevices(macAddresses, from, to, groups);
+                }
+            }
+            return new ArrayList<BflFwImageGroup>(groups.values());
+        }
+
+        /**
+         * Add the devices assigned by the offline bundle into the groups.
+         *
+         * @param macAddresses is MAC addresses of the devices.
+         * @param from is the first index of the batch.
+         * @param to is the index after the last of the batch.
+         * @param groups is the groups by image key.
+         */
+        private void addBundledDevices(String[] macAddresses, int from, int to,
+                                       LinkedHashMap<String, BflFwImageGroup> groups) {
+            for (int i = from; i < to; i++) {
+                if (macAddresses[i] == null || mGroupIndexes.containsKey(macAddresses[i].toUpperCase())) {
+                    continue;
+                }
+                final BflFwMetadata metadata = sBundle.getMetadata(macAddresses[i]);
+
+                if (metadata != null) {
+                    addDevice(metadata, groups);
+                }
+            }
+        }
+
+        /**
+         * Request the firmware information of a batch of devices.
+         *
+         * @param macAddresses is MAC addresses of the devices.
+         * @param from is the first index of the batch.
+         * @param to is the index after the last of the batch.
+         * @param groups is the groups by image key.
+         * @throws IOException
+         * @throws XmlPullParserException
+         */
+        private void queryBatch(String[] macAddresses, int from, int to, LinkedHashMap<String, BflFwImageGroup> groups)
+                throws IOException, XmlPullParserException {
+            StringBuilder body = new StringBuilder("mac=");
+
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    body.append(',');
+                }
+                body.append(macAddresses[i]);
+            }
+            final byte[] bodyBytes = body.toString().getBytes(mEncoding);
+
+            URL url = new URL(FIRMWARE_MANAGING_SERVER_URL +
+                    FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETFLEETINFO);
+            HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+
+            try {
+                httpURLConnection.setConnectTimeout(SERVER_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(SERVER_READ_TIMEOUT);
+                httpURLConnection.setUseCaches(false);
+                httpURLConnection.setDoOutput(true);
+                httpURLConnection.setRequestMethod("POST");
+                httpURLConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                httpURLConnection.setFixedLengthStreamingMode(bodyBytes.length);
+
+                OutputStream requestOutput = httpURLConnection.getOutputStream();
+                try {
+                    requestOutput.write(bodyBytes);
+                } finally {
+                    requestOutput.close();
+                }
+
+                if (httpURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected response code: " + httpURLConnection.getResponseCode());
+                }
+                InputStream inputStream = httpURLConnection.getInputStream();
+
+                try {
+                    XmlPullParser xmlPullParser = newXmlPullParser();
+                    xmlPullParser.setInput(inputStream, mEncoding);
+                    int eventType = xmlPullParser.getEventType();
+
+                    while (eventType != XmlPullParser.END_DOCUMENT) {
+                        if (isCancelled()) {
+                            return;
+                        }
+
+                        if (eventType == XmlPullParser.START_TAG && mTagDevice.equals(xmlPullParser.getName())) {
+                            addDevice(BflFwMetadata.readElement(xmlPullParser, mTagDevice), groups);
+                        }
+                        eventType = xmlPullParser.next();
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            } finally {
+                httpURLConnection.disconnect();
+            }
+        }
+
+        /**
+         * Add the device into the group of its image.
+         *
+         * @param metadata is the firmware metadata of the device.
+         * @param groups is the groups by image key.
+         */
+        private void addDevice(BflFwMetadata metadata, LinkedHashMap<String, BflFwImageGroup> groups) {
+            if (metadata.getMacAddress() == null || !metadata.isComplete()) {
+                return;
+            }
+            if (mPrefetch) {
+                // The metadata cache is written once for each batch.
+                mRefreshedMetadata.add(metadata);
+            }
+            final String key = BflFwImageGroup.makeKey(metadata);
+            BflFwImageGroup group = groups.get(key);
+
+            if (group == null) {
+                group = new BflFwImageGroup(metadata.getProductName(), metadata.getVersion(),
+                        metadata.getUrl(), metadata.getSize(), metadata.getHash());
+                groups.put(key, group);
+                mKeyIndexes.put(key, groups.size() - 1);
+            }
+            group.addMacAddress(metadata.getMacAddress());
+            mGroupIndexes.put(metadata.getMacAddress().toUpperCase(), mKeyIndexes.get(key));
+        }
+
+        @Override
+        protected void onCancelledTask(ArrayList<BflFwImageGroup> groups) {
+            if (mPrefetch) {
+                finishPrefetch();
+            }
+        }
+
+        @Override
+        protected void onFinished(ArrayList<BflFwImageGroup> groups) {
+            if (mPrefetch) {
+                if (groups != null) {
+                    prefetchImages(groups);
+                } else {
+                    finishPrefetch();
+                }
+                return;
+            }
+
+            if (groups == null) {
+                return;
+            }
+            final int groupCnt = groups.size();
+            String[] productNames = new String[groupCnt];
+            String[] versions = new String[groupCnt];
+            String[] urls = new String[groupCnt];
+            long[] sizes = new long[groupCnt];
+            String[] hashes = new String[groupCnt];
+
+            for (int i = 0; i < groupCnt; i++) {
+                BflFwImageGroup group = groups.get(i);
+                productNames[i] = group.getProductName();
+                versions[i] = group.getVersion();
+                urls[i] = group.getUrl();
+                sizes[i] = group.getSize();
+                hashes[i] = group.getHash();
+            }
+
+            // Every requested device is reported. Devices not in the response are unknown.
+            int[] groupIndexes = new int[mMacAddresses.length];
+
+            for (int i = 0; i < mMacAddresses.length; i++) {
+                Integer groupIndex = (mMacAddresses[i] != null) ? mGroupIndexes.get(mMacAddresses[i].toUpperCase()) : null;
+                groupIndexes[i] = (groupIndex != null) ? groupIndex : -1;
+            }
+
+            final Intent fleetInfoIntent = new Intent(ACTION_FLEET_INFO);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_PRODUCT_LIST_DATA, productNames);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_VERSION_LIST_DATA, versions);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_URL_LIST_DATA, urls);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_SIZE_LIST_DATA, sizes);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_HASH_LIST_DATA, hashes);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_MAC_ADDRESS_LIST_DATA, mMacAddresses);
+            fleetInfoIntent.putExtra(EXTRA_FLEET_GROUP_INDEX_LIST_DATA, groupIndexes);
+            sendBroadcast(fleetInfoIntent);
+
+            Log.d(BLE_FOTA_TAG, "Fleet information: " + mMacAddresses.length + " devices, " + groupCnt + " images");
+        }
+    }
+
+    /**
+     * FOTA is managed by firmware managing server.
+     * Server connection is used to get information to manage a firmware version.
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwDownloader
+     * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+     * @see kr.co.sevencore.blefotalib.BflFwDownloadService.FirmwareDownload
+     */
+    private class ServerConnection extends WakefulTask<String> {
+
+        private final static int SERVER_CONNECTION_TIMEOUT = 3000;
+
+        private final String mSession;     // Session of the request, kept by the chained requests.
+        private String mEncoding = "UTF-8";
+        private int mEventType;
+
+        private String mTagMac = "mac";
+        private String mTagProduct = "product";
+        private String mTagFwVer = "firmwareversion";
+        private String mTagFwUrl = "firmwareurl";
+        private String mTagFwHash = "firmwarehash";
+        private String mTagFwSize = "firmwaresize";
+
+        ServerConnection(String session) {
+            mSession = session;
+        }
+
+        @Override
+        protected String doInBackground(final String... urls) {
+            try {
+                // The same request of other sessions is sent once.
+                return sInfoFlight.execute(urls[0], new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return requestInfo(urls[0]);
+                    }
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        /**
+         * Request firmware information to the server.
+         *
+         * @param serverUrl is the URL of firmware managing server.
+         * @return The result code of the firmware information.
+         */
+        private String requestInfo(String serverUrl) {
+            try {
+                InputStream inputStream = null;
+
+                URL url = new URL(serverUrl);
+                HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+
+                try {
+                    httpURLConnection.setConnectTimeout(SERVER_CONNECTION_TIMEOUT);
+                    httpURLConnection.setReadTimeout(SERVER_CONNECTION_TIMEOUT);
+                    httpURLConnection.setUseCaches(false);
+
+                    // Numeric status code HttpURLConnection.HTTP_OK: 200
+                    // The body is read from the same connection.
+                    if (httpURLConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                        inputStream = httpURLConnection.getInputStream();
+                    }
+                    return parseData(inputStream);
+
+                } finally {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                    httpURLConnection.disconnect();
+                }
+
+            } catch (Exception e) {
+                mServerConnection.cancel(true);
+                Log.e(BLE_FOTA_TAG, "Firmware information download error.");
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        /**
+         * Get firmware information by parsing XML data.
+         *
+         * @param inputStream is XML data.
+         * @return firmware information.
+         */
+        private String parseData(InputStream inputStream) {
+            try {
+                XmlPullParser xmlPullParser = newXmlPullParser();
+                xmlPullParser.setInput(inputStream, mEncoding);
+                mEventType = xmlPullParser.getEventType();
+
+                while (mEventType != XmlPullParser.END_DOCUMENT) {
+                    if (isCancelled()) {
+                        Log.i(BLE_FOTA_TAG, "AsyncTask of ServerConnection is cancelled.");
+                        //break; // "break" is replaced with "return null".
+                        return null;
+                    }
+
+                    switch (mEventType) {
+                        case XmlPullParser.START_TAG:
+                            String startTag = xmlPullParser.getName();
+
+                            if (startTag.equals(mTagMac)) {
+                                mEventType = xmlPullParser.next();
+
+                                if (sDeviceAddress.equals(xmlPullParser.getText())) {
+                                    sDeviceAddress = xmlPullParser.getText();
+                                    Log.i(BLE_FOTA_TAG, "Device MAC address: " + sDeviceAddress);
+
+                                } else {
+                                    return DownloadCode.SERVER_CONN_ERROR_UNKNOWN_DEVICE.getCode();
+                                }
+
+                            } else if (startTag.equals(mTagProduct)) {
+                                mEventType = xmlPullParser.next();
+                                sProductName = xmlPullParser.getText();
+
+                                broadcastUpdate(ACTION_PRODUCT_NAME, sProductName);
+                                Log.d(BLE_FOTA_TAG, "Product name from the server: " + sProductName);
+
+                                return DownloadCode.SERVER_CONN_PROCESS_CHECKING_VERSION.getCode();
 
                             } else if (startTag.equals(mTagFwVer)) {
                                 mEventType = xmlPullParser.next();
@@ -362,6 +1313,18 @@ public class BflFwDownloadService extends Service {
                                 Log.d(BLE_FOTA_TAG, "Firmware download URL: " + sUrl);
 
                                 return DownloadCode.SERVER_CONN_PROCESS_GETTING_FIRMWARE.getCode();
+
+                            } else if (startTag.equals(mTagFwHash)) {
+                                // Optional. It has to precede the firmware URL.
+                                mEventType = xmlPullParser.next();
+                                sFirmwareHash = xmlPullParser.getText();
+                                Log.d(BLE_FOTA_TAG, "Firmware hash from the server: " + sFirmwareHash);
+
+                            } else if (startTag.equals(mTagFwSize)) {
+                                // Optional. It has to precede the firmware URL.
+                                mEventType = xmlPullParser.next();
+                                sFirmwareSize = parseLong(xmlPullParser.getText());
+                                Log.d(BLE_FOTA_TAG, "Firmware size from the server: " + sFirmwareSize);
                             }
                             break;
 
@@ -372,34 +1335,35 @@ public class BflFwDownloadService extends Service {
                     mEventType = xmlPullParser.next();
                 }
             } catch (Exception e) {
-                if (sCpuWakeLock != null) {
-                    sCpuWakeLock.release();
-                    sCpuWakeLock = null;
-                }
                 e.printStackTrace();
             }
             return null;
         }
 
-        protected void onPostExecute(String result) {
+        @Override
+        protected void onFinished(String result) {
             Log.d(BLE_FOTA_TAG,
-                    "onPostExecute result code of ServerConnection AsyncTask: " + result);
+                    "onFinished result code of ServerConnection AsyncTask: " + result);
 
             if (result != null) {
                 if (DownloadCode.SERVER_CONN_ERROR_UNKNOWN_DEVICE.getCode().equals(result)) {
+                    BflFwMetadataCache.getInstance(BflFwDownloadService.this).putNegative(sDeviceAddress);
                     broadcastUpdate(ACTION_ERROR_UNKNOWN_DEVICE);
 
                 } else if (DownloadCode.SERVER_CONN_PROCESS_CHECKING_VERSION.getCode().equals(result)) {
                     // Get the new version information of the device.
                     getFirmwareInfo(FIRMWARE_MANAGING_SERVER_URL +
                             FIRMWARE_MANAGING_SERVER_DIR + FIRMWARE_MANAGING_SERVER_GETVERSION +
-                            FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress);
+                            FIRMWARE_MANAGING_SERVER_MAC_ID_IDENTIFIER + sDeviceAddress, mSession);
 
                 } else if (DownloadCode.SERVER_CONN_PROCESS_GETTING_VERSION_NAME.getCode().equals(result)) {
                     makeFirmwareFileName(sVersion);
 
                 } else if (DownloadCode.SERVER_CONN_PROCESS_GETTING_FIRMWARE.getCode().equals(result)) {
-                    getFirmware(sUrl + sFirmwareName);
+                    if (!finishWithCachedFirmware(sProductName, sVersion)) {
+                        getFirmware(sUrl + sFirmwareName, sProductName, sVersion, sFirmwareHash, sFirmwareSize,
+                                mSession);
+                    }
                 }
             } else {
                 stopSelf(mSvcId);
@@ -407,6 +1371,34 @@ public class BflFwDownloadService extends Service {
         }
     }
 
+    /**
+     * Parse Content-Range header formed into "bytes start-end/total".
+     *
+     * @param contentRange is Content-Range header.
+     * @return {start, end, total}, or null if the header is invalid. total is -1 if it is unknown.
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        final int dash = contentRange.indexOf('-');
+        final int slash = contentRange.indexOf('/');
+
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+
+        try {
+            final long start = Long.parseLong(contentRange.substring(6, dash).trim());
+            final long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+            final String total = contentRange.substring(slash + 1).trim();
+
+            return new long[] {start, end, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Firmware download from the server.
      *
@@ -414,109 +1406,1132 @@ public class BflFwDownloadService extends Service {
      * @see kr.co.sevencore.blefotalib.BflFwDownloadService
      * @see kr.co.sevencore.blefotalib.BflFwDownloadService.ServerConnection
      */
-    private class FirmwareDownload extends AsyncTask<String, Integer, String> {
-        @Override
-        protected String doInBackground(String... urls) {
-            try {
-                URL url = new URL(urls[0]);
-                HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-                httpURLConnection.connect();
-
-                File file, dir;
-                String dirPath, fileName;
-                int fileSize;
-                int count;
-                int progressCount = 0;
-
-                fileSize = httpURLConnection.getContentLength();
-                broadcastUpdate(ACTION_FIRMWARE_DOWNLOAD_START, fileSize);
-                Log.i(BLE_FOTA_TAG, "Firmware data size from the server: " + fileSize);
-
-                fileName = new File(urls[0]).getName();
-                Log.i(BLE_FOTA_TAG, "Firmware file name from the server: " + fileName);
+    private class FirmwareDownload extends WakefulTask<String> {
+
+        private final static int DOWNLOAD_CONNECTION_TIMEOUT = 5000;
+        private final static int DOWNLOAD_READ_TIMEOUT = 10000;
+        private final static int MAX_DOWNLOAD_ATTEMPTS = 5;    // Each attempt resumes from the partial file.
+        private final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+        private final static long RANGE_DOWNLOAD_MIN_SIZE = 128 * 1024; // Smaller firmware is downloaded by a single request.
+        private final static long RANGE_MIN_SIZE = 64 * 1024;           // Minimum size of each range.
+        private final static int MAX_RANGE_CONNECTIONS = 4;             // Concurrent connections of a download.
+        private final static int MAX_CHUNK_ATTEMPTS = 3;                // Each corrupted chunk is fetched again.
+
+        private final static String PARTIAL_FILE_EXT = ".part";
+        private final static String PARTIAL_META_EXT = ".meta";
+        private final static String META_VALIDATOR = "validator";
+        private final static String META_LENGTH = "length";
+        private final static String META_HASH_PREFIX = "sha256:";           // Validator of ranges guarded by the hash.
+        private final static String META_RANGES = "ranges";            // Count of ranges. Only in a range download.
+        private final static String META_RANGE_PREFIX = "range.";      // range.<index>: Next position of the range.
+        private final static long META_SAVE_SIZE = 256 * 1024;          // Range progress is stored by this size.
+
+        private final String mProductName;
+        private final String mVersion;
+        private final String mExpectedHash;    // SHA-256 hex string from the server. null: Not provided.
+        private final long mExpectedSize;      // Firmware data size from the server. -1: Not provided.
+
+        private long mTotalSize = -1;          // Firmware data size. -1: Unknown.
+        private boolean mStartNotified = false;
+        private String mFirmwarePath;          // Location of the cached firmware.
+        private final String mSession;         // Session of the download.
+        private String mFlightKey;             // Image key of the shared download.
+        private boolean mLeader = false;       // false: The download of another session is shared.
+        private String mDownloadHash;          // SHA-256 hex string calculated while downloading.
+        private BflFwGrowingImage mGrowingImage; // Framed firmware data uploaded while downloading. null: Not pipelined.
+        private final boolean mPrefetch;       // true: The firmware is preloaded without notifying the clients.
+        private BflFwManifest mManifest;       // Chunk hashes of the firmware. null: The manifest is not served.
+        private BflFwManifest.ChunkVerifier mChunkVerifier; // Verifier of the single request download.
+
+        FirmwareDownload(String session, String productName, String version, String expectedHash, long expectedSize,
+                         boolean prefetch) {
+            mSession = session;
+            mProductName = productName;
+            mVersion = version;
+            mExpectedHash = expectedHash;
+            mExpectedSize = expectedSize;
+            mPrefetch = prefetch;
+        }
 
-                //dir = getDir(sProductName, Context.MODE_PRIVATE);
-                //dirPath = dir.getAbsolutePath() + "/" + fileName;
-                dirPath = "/storage/sdcard0/Download/" + fileName; // Used for debugging.
-                Log.d(BLE_FOTA_TAG, "Firmware data stored at: " + dirPath);
+        // The prefetch runs quietly. Clients sharing the prefetch are notified by their own sessions.
+        private void broadcastUpdate(final String action) {
+            if (!mPrefetch) {
+                BflFwDownloadService.this.broadcastUpdate(action);
+            }
+        }
 
-                file = new File(dirPath);
+        private void broadcastUpdate(final String action, final String info) {
+            if (!mPrefetch) {
+                BflFwDownloadService.this.broadcastUpdate(action, info);
+            }
+        }
 
-                // If existing file is valid, finish firmware download task.
-                // If existing file is invalid, delete file and resume firmware download process.
-                if (file.exists()) {
-                    if (!checkIntegrity(file, fileSize)) {
-                        file.delete();
-                        broadcastUpdate(ACTION_ERROR_FIRMWARE_DATA_INTEGRITY);
-                        Log.d(BLE_FOTA_TAG, "New firmware file is invalid data.");
-                    } else {
-                        //file.delete(); // Used for debug. Unconditionally delete file & download firmware data.
-                        httpURLConnection.disconnect();
-                        return DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode();
-                    }
-                }
+        private void broadcastUpdate(final String action, final int info) {
+            if (!mPrefetch) {
+                BflFwDownloadService.this.broadcastUpdate(action, info);
+            }
+        }
 
-                InputStream firmwareInputData = new BufferedInputStream(url.openStream());
-                OutputStream firmwareOutputData = new FileOutputStream(file);
+        /**
+         * Check the download is stopped by the cancellation.
+         * The download run for other sessions is kept, even if the session which started it is cancelled.
+         * It is stopped when no session is waiting for it anymore.
+         *
+         * @return true, if the download has to stop.
+         */
+        private boolean isAbandoned() {
+            if (!isCancelled()) {
+                return false;
+            }
+            return !mLeader || mFlightKey == null || !sDownloadFlight.hasWaiters(mFlightKey);
+        }
 
-                if (fileSize > 0) {
-                    byte data[] = new byte[fileSize];
+        @Override
+        protected String doInBackground(final String... urls) {
+            // The same image requested by other sessions is downloaded once.
+            final String key = (mProductName != null && mVersion != null) ? (mProductName + "/" + mVersion) : urls[0];
+            mFlightKey = key;
 
-                    try {
-                        while ((count = firmwareInputData.read(data)) != -1) {
-                            if (isCancelled()) {
-                                Log.i(BLE_FOTA_TAG, "AsyncTask of FirmwareDownload is cancelled.");
-                                break; // "break" is replaced with "return null".
-                                //return null;
+            try {
+                final BflSingleFlight.Outcome<String> outcome = sDownloadFlight.join(key, new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String firmwarePath = null;
+                        mLeader = true;
+
+                        try {
+                            firmwarePath = downloadToCache(urls[0]);
+                            return firmwarePath;
+                        } finally {
+                            finishPipeline(firmwarePath);
+
+                            // The quiet prefetch & the cancelled session do not notify the clients,
+                            // so one of the sessions sharing the download notifies them.
+                            if (mPrefetch || isCancelled()) {
+                                sDownloadFlight.handOff(key);
                             }
-                            firmwareOutputData.write(data, 0, count);
-
-                            // Used for notifying progress.
-                            progressCount += count;
-                            broadcastUpdate(ACTION_FIRMWARE_DOWNLOADING, progressCount);
                         }
-                    } catch (Exception e) {
-                        Log.e(BLE_FOTA_TAG, "Firmware download error.");
-                        e.printStackTrace();
                     }
-                }
+                });
+                mFirmwarePath = outcome.getResult();
 
-                firmwareOutputData.flush();
-                firmwareOutputData.close();
-                firmwareInputData.close();
-                httpURLConnection.disconnect();
-                return DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode();
+                if (outcome.isHandedOff()) {
+                    mLeader = true;
+                }
 
-            } catch (Exception e) {
-                if (sCpuWakeLock != null) {
-                    sCpuWakeLock.release();
-                    sCpuWakeLock = null;
+                if (mFirmwarePath != null) {
+                    return DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode();
                 }
+            } catch (Exception e) {
                 e.printStackTrace();
             }
             return null;
         }
 
         /**
-         * Check download file integrity.
-         * TODO: checkIntegrity method is going to be replaced with checksum check method.
+         * Download the firmware data & move it into the firmware cache.
          *
-         * @param file is firmware data.
-         * @param fileSize is firmware data size information from the remote server.
-         * @return true, if the firmware data integrity is valid.
+         * @param downloadUrl is the firmware download URL.
+         * @return The location of the cached firmware, or null if the download fails.
+         * @throws IOException
          */
-        private boolean checkIntegrity(File file, int fileSize) {
-            return (fileSize == (int) file.length());
-        }
+        private String downloadToCache(String downloadUrl) throws IOException {
+            URL url = new URL(downloadUrl);
+            BflFwCache firmwareCache = BflFwCache.getInstance(BflFwDownloadService.this);
+            File file;
+            String fileName;
+
+            fileName = new File(downloadUrl).getName();
+            Log.i(BLE_FOTA_TAG, "Firmware file name from the server: " + fileName);
+
+            // Downloaded in the temporary directory & moved into the cache after the hash is verified.
+            // The temporary file is named by the image, so the same file name of other products is not shared.
+            if (mProductName != null && mVersion != null) {
+                fileName = (mProductName + "_" + mVersion + "_" + fileName).replaceAll("[^A-Za-z0-9._-]", "_");
+            }
+            file = new File(firmwareCache.getTempDir(), fileName);
+            file.delete();
 
-        protected void onPostExecute(String result) {
-            if (result != null && DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode().equals(result)) {
-                broadcastUpdate(ACTION_FIRMWARE_DOWNLOAD_FINISH);
+            // The signed manifest verifies each chunk while downloading.
+            mManifest = fetchManifest(downloadUrl);
 
-                if (sCpuWakeLock != null) {
-                    sCpuWakeLock.release();
-                    sCpuWakeLock = null;
-                }
+            if ((mManifest == null) ? BflFwManifest.isSignatureRequired() : !mManifest.verifySignature()) {
+                broadcastUpdate(ACTION_ERROR_FIRMWARE_DATA_INTEGRITY);
+                Log.e(BLE_FOTA_TAG, "Firmware manifest is not verified: " + downloadUrl);
+                return null;
+            }
+            String expectedHash = mExpectedHash;
+
+            if (mManifest != null) {
+                if (mExpectedHash != null && !mExpectedHash.equalsIgnoreCase(mManifest.getHash())) {
+                    broadcastUpdate(ACTION_ERROR_FIRMWARE_DATA_INTEGRITY);
+                    Log.e(BLE_FOTA_TAG, "Firmware manifest is not matched with the firmware information.");
+                    return null;
+                }
+                expectedHash = mManifest.getHash();
+            }
+
+            // Each attempt resumes from the bytes already stored in the partial file.
+            for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+                if (isAbandoned()) {
+                    Log.i(BLE_FOTA_TAG, "AsyncTask of FirmwareDownload is cancelled.");
+                    return null;
+                }
+
+                if (isCancelled()) {
+                    // Other sessions are waiting. The interrupt of the cancelled session is cleared to continue.
+                    Log.i(BLE_FOTA_TAG, "Session is cancelled, but the download is kept for other sessions: " + mSession);
+                    Thread.interrupted();
+                }
+
+                try {
+                    // A failed range download keeps its progress, so the next attempt fetches only the missing ranges.
+                    final boolean completed = downloadInRanges(url, file);
+
+                    if (completed || (!isRangeDownloadKept(file) && download(url, file))) {
+                        File cachedFile = firmwareCache.put(mProductName, mVersion, file, expectedHash, mDownloadHash);
+
+                        if (cachedFile == null) {
+                            broadcastUpdate(ACTION_ERROR_FIRMWARE_DATA_INTEGRITY);
+                            Log.e(BLE_FOTA_TAG, "New firmware file is invalid data.");
+                            continue;
+                        }
+                        return cachedFile.getAbsolutePath();
+                    }
+                } catch (IOException e) {
+                    Log.e(BLE_FOTA_TAG, "Firmware download error. Attempt: " + attempt);
+                    e.printStackTrace();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Fetch the signed manifest served next to the firmware data.
+         *
+         * @param downloadUrl is the firmware download URL.
+         * @return The manifest, or null if the manifest is not served or invalid.
+         */
+        private BflFwManifest fetchManifest(String downloadUrl) {
+            HttpURLConnection httpURLConnection = null;
+
+            try {
+                httpURLConnection = (HttpURLConnection) new URL(downloadUrl + BflFwManifest.MANIFEST_FILE_EXT).openConnection();
+                httpURLConnection.setConnectTimeout(DOWNLOAD_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(DOWNLOAD_READ_TIMEOUT);
+
+                final int responseCode = httpURLConnection.getResponseCode();
+
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    Log.w(BLE_FOTA_TAG, "Firmware manifest is not available: " + responseCode);
+                    return null;
+                }
+                InputStream inputStream = httpURLConnection.getInputStream();
+
+                try {
+                    XmlPullParser xmlPullParser = newXmlPullParser();
+                    xmlPullParser.setInput(inputStream, null);
+                    return BflFwManifest.parse(xmlPullParser);
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (XmlPullParserException e) {
+                e.printStackTrace();
+            } finally {
+                if (httpURLConnection != null) {
+                    httpURLConnection.disconnect();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Download the firmware data by a single request.
+         * The partial file is resumed by the range request validated by ETag or Last-Modified.
+         * If the server ignores the range request or the firmware data is changed, the whole data is downloaded.
+         * The data streams through a pooled buffer into the file channel, and it is hashed while streaming.
+         * Each chunk is verified by the manifest as soon as it arrives, and only corrupted chunks are fetched again.
+         *
+         * @param url is the firmware download URL.
+         * @param file is the downloaded firmware file.
+         * @return true, if the firmware file is completed. false: Retry is needed.
+         * @throws IOException
+         */
+        private boolean download(URL url, File file) throws IOException {
+            final File partFile = new File(file.getPath() + PARTIAL_FILE_EXT);
+            final File metaFile = new File(partFile.getPath() + PARTIAL_META_EXT);
+            final Properties meta = readMeta(metaFile);
+            final String validator = meta.getProperty(META_VALIDATOR);
+            long offset = 0;
+
+            if (partFile.exists() && validator != null) {
+                offset = partFile.length();
+            }
+
+            final MessageDigest messageDigest = newSha256();
+            final BflFwManifest.ChunkVerifier chunkVerifier = (mManifest != null) ? mManifest.newChunkVerifier() : null;
+            String rangeValidator = validator;
+            mDownloadHash = null;
+            mChunkVerifier = chunkVerifier;
+
+            if (offset > 0) {
+                // Stored bytes are hashed locally instead of being fetched again.
+                hashFile(partFile, offset, messageDigest, chunkVerifier);
+            }
+
+            HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+            InputStream firmwareInputData = null;
+            FileOutputStream firmwareOutputData = null;
+            byte[] data = null;
+
+            try {
+                httpURLConnection.setConnectTimeout(DOWNLOAD_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(DOWNLOAD_READ_TIMEOUT);
+                httpURLConnection.setUseCaches(false);
+
+                if (offset > 0) {
+                    // If-Range: The server sends the whole data instead of the range, when the data is changed.
+                    httpURLConnection.setRequestProperty("Range", "bytes=" + offset + "-");
+                    httpURLConnection.setRequestProperty("If-Range", validator);
+                }
+                final int responseCode = httpURLConnection.getResponseCode();
+
+                if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    // The partial file already has every byte.
+                    final long length = parseLong(meta.getProperty(META_LENGTH));
+
+                    if (offset > 0 && offset == length) {
+                        mTotalSize = length;
+                        notifyStart();
+                        startPipeline(partFile, offset);
+                        mDownloadHash = BflUtil.toHexString(messageDigest.digest());
+                        return (chunkVerifier == null || repairChunks(url, partFile, chunkVerifier.finish(), validator)) &&
+                                completeFile(partFile, metaFile, file);
+                    }
+                    Log.w(BLE_FOTA_TAG, "Partial firmware file is invalid.");
+                    deletePartialFile(partFile, metaFile);
+                    return false;
+                }
+
+                if (responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                    final long[] range = parseContentRange(httpURLConnection.getHeaderField("Content-Range"));
+
+                    if (range == null || range[0] != offset) {
+                        Log.w(BLE_FOTA_TAG, "Unexpected content range: " + httpURLConnection.getHeaderField("Content-Range"));
+                        deletePartialFile(partFile, metaFile);
+                        return false;
+                    }
+                    mTotalSize = range[2];
+                    Log.i(BLE_FOTA_TAG, "Firmware download is resumed from: " + offset);
+
+                } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                    // The server ignored the range request or the firmware data is changed.
+                    if (mGrowingImage != null && mGrowingImage.getWrittenLength() > 0) {
+                        // Frames already uploaded may not match the new data.
+                        Log.w(BLE_FOTA_TAG, "Pipelined firmware download is restarted.");
+                        finishPipeline(null);
+                    }
+                    offset = 0;
+                    messageDigest.reset();
+
+                    if (chunkVerifier != null) {
+                        chunkVerifier.reset();
+                    }
+                    mTotalSize = httpURLConnection.getContentLength();
+
+                    if (mTotalSize < 0) {
+                        mTotalSize = mExpectedSize;
+                    }
+                    rangeValidator = getValidator(httpURLConnection);
+                    writeMeta(metaFile, rangeValidator, mTotalSize);
+
+                } else {
+                    throw new IOException("Unexpected response code: " + responseCode);
+                }
+                notifyStart();
+                startPipeline(partFile, offset);
+                Log.i(BLE_FOTA_TAG, "Firmware data size from the server: " + mTotalSize);
+
+                firmwareInputData = httpURLConnection.getInputStream();
+                firmwareOutputData = new FileOutputStream(partFile, offset > 0);
+                FileChannel firmwareChannel = firmwareOutputData.getChannel();
+
+                data = BflBufferPool.acquire();
+                long progressCount = offset;
+                int count;
+
+                while ((count = firmwareInputData.read(data)) != -1) {
+                    if (isAbandoned()) {
+                        // Stored bytes are kept to be resumed.
+                        Log.i(BLE_FOTA_TAG, "AsyncTask of FirmwareDownload is cancelled.");
+                        return false;
+                    }
+                    ByteBuffer dataBuffer = ByteBuffer.wrap(data, 0, count);
+
+                    while (dataBuffer.hasRemaining()) {
+                        firmwareChannel.write(dataBuffer);
+                    }
+                    messageDigest.update(data, 0, count);
+
+                    if (chunkVerifier != null) {
+                        chunkVerifier.update(data, 0, count);
+                    }
+
+                    if (mGrowingImage != null) {
+                        mGrowingImage.append(data, 0, count);
+                        updatePipeline();
+                    }
+
+                    // Used for notifying progress.
+                    progressCount += count;
+                    broadcastUpdate(ACTION_FIRMWARE_DOWNLOADING, (int) progressCount);
+                }
+                firmwareOutputData.close();
+                firmwareOutputData = null;
+
+                if (mTotalSize >= 0 && partFile.length() != mTotalSize) {
+                    throw new IOException("Firmware data is truncated: " + partFile.length() + "/" + mTotalSize);
+                }
+                mDownloadHash = BflUtil.toHexString(messageDigest.digest());
+                return (chunkVerifier == null || repairChunks(url, partFile, chunkVerifier.finish(), rangeValidator)) &&
+                        completeFile(partFile, metaFile, file);
+
+            } finally {
+                BflBufferPool.release(data);
+
+                if (firmwareOutputData != null) {
+                    firmwareOutputData.close();
+                }
+
+                if (firmwareInputData != null) {
+                    firmwareInputData.close();
+                }
+                httpURLConnection.disconnect();
+            }
+        }
+
+        /**
+         * Download the firmware data by concurrent range requests.
+         * The partial file is preallocated & each range is written at its position through the file channel.
+         * The next position of each range is stored in the meta file,
+         * so a failed or interrupted download fetches only the missing part of each range.
+         * The hash & the chunks are verified from the completed file, because the ranges arrive out of order.
+         * It is used only for large firmware which is not pipelined,
+         * and the single request is used when the server rejects the range requests.
+         * When the size & hash are known, the ranges are requested without HEAD, and the hash guards mixed data.
+         *
+         * @param url is the firmware download URL.
+         * @param file is the downloaded firmware file.
+         * @return true, if the firmware file is completed.
+         *         false: The single request is needed, or the kept ranges are resumed by the next attempt.
+         */
+        private boolean downloadInRanges(final URL url, final File file) {
+            final File partFile = new File(file.getPath() + PARTIAL_FILE_EXT);
+            final File metaFile = new File(partFile.getPath() + PARTIAL_META_EXT);
+            final boolean resumable = isRangeDownloadKept(file);
+
+            if (partFile.exists() && !resumable) {
+                // The partial file of the single request is resumed by the single request.
+                return false;
+            }
+
+            final long knownSize = (mManifest != null) ? mManifest.getSize() : mExpectedSize;
+            final String knownHash = (mManifest != null) ? mManifest.getHash() : mExpectedHash;
+
+            if (sPipelinedMode || isRangeRejected(url.getHost()) ||
+                    (knownSize >= 0 && knownSize < RANGE_DOWNLOAD_MIN_SIZE)) {
+                deletePartialFile(partFile, metaFile);
+                return false;
+            }
+            ExecutorService rangeExecutor = null;
+            RandomAccessFile firmwareOutputData = null;
+            AtomicLongArray positions = null;
+            String validator = null;    // ETag or Last-Modified sent by If-Range. null: The hash guards the ranges.
+            String resumeKey = null;    // Identity of the stored ranges.
+            long totalSize = -1;
+
+            try {
+                if (knownSize > 0 && knownHash != null) {
+                    // The completed file is verified by the hash, so ranges of changed data are not kept.
+                    totalSize = knownSize;
+                    resumeKey = META_HASH_PREFIX + knownHash.toLowerCase();
+                } else {
+                    // Firmware data size & validator are checked before the range requests.
+                    HttpURLConnection headConnection = (HttpURLConnection) url.openConnection();
+
+                    try {
+                        headConnection.setConnectTimeout(DOWNLOAD_CONNECTION_TIMEOUT);
+                        headConnection.setReadTimeout(DOWNLOAD_READ_TIMEOUT);
+                        headConnection.setRequestMethod("HEAD");
+
+                        if (headConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                            deletePartialFile(partFile, metaFile);
+                            return false;
+                        }
+                        totalSize = headConnection.getContentLength();
+                        validator = getValidator(headConnection);
+                        resumeKey = validator;
+
+                        if ("none".equalsIgnoreCase(headConnection.getHeaderField("Accept-Ranges"))) {
+                            rejectRanges(url.getHost());
+                            deletePartialFile(partFile, metaFile);
+                            return false;
+                        }
+                    } finally {
+                        headConnection.disconnect();
+                    }
+                }
+
+                // Without the validator or the hash, the ranges may be mixed from different firmware data.
+                if (totalSize < RANGE_DOWNLOAD_MIN_SIZE || resumeKey == null) {
+                    deletePartialFile(partFile, metaFile);
+                    return false;
+                }
+                final int rangeCnt = (int) Math.min(MAX_RANGE_CONNECTIONS, totalSize / RANGE_MIN_SIZE);
+                final long rangeSize = (totalSize + rangeCnt - 1) / rangeCnt;
+                final Properties meta = readMeta(metaFile);
+                long storedCount = 0;
+                positions = new AtomicLongArray(rangeCnt);
+
+                if (resumable && resumeKey.equals(meta.getProperty(META_VALIDATOR)) &&
+                        totalSize == parseLong(meta.getProperty(META_LENGTH)) &&
+                        rangeCnt == parseLong(meta.getProperty(META_RANGES)) && partFile.length() == totalSize) {
+                    for (int i = 0; i < rangeCnt; i++) {
+                        final long start = i * rangeSize;
+                        final long end = Math.min(totalSize, start + rangeSize) - 1;
+                        final long position = parseLong(meta.getProperty(META_RANGE_PREFIX + i));
+
+                        positions.set(i, (position >= start && position <= end + 1) ? position : start);
+                        storedCount += positions.get(i) - start;
+                    }
+                    Log.i(BLE_FOTA_TAG, "Range download is resumed with stored bytes: " + storedCount);
+                } else {
+                    // The firmware data is changed or the ranges are not stored.
+                    deletePartialFile(partFile, metaFile);
+
+                    for (int i = 0; i < rangeCnt; i++) {
+                        positions.set(i, i * rangeSize);
+                    }
+                }
+
+                firmwareOutputData = new RandomAccessFile(partFile, "rw");
+                firmwareOutputData.setLength(totalSize);
+                final FileChannel firmwareChannel = firmwareOutputData.getChannel();
+                final String rangeValidator = validator;
+                final String rangeResumeKey = resumeKey;
+                final AtomicLongArray rangePositions = positions;
+                final long rangeTotalSize = totalSize;
+                writeRangeMeta(metaFile, firmwareChannel, resumeKey, totalSize, positions);
+
+                mTotalSize = totalSize;
+                mDownloadHash = null;
+                notifyStart();
+                Log.i(BLE_FOTA_TAG, "Firmware data is downloaded by " + rangeCnt + " ranges: " + totalSize);
+
+                final AtomicBoolean failed = new AtomicBoolean(false);
+                final AtomicBoolean changed = new AtomicBoolean(false);
+                final AtomicLong progressCount = new AtomicLong(storedCount);
+                List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(rangeCnt);
+                rangeExecutor = Executors.newFixedThreadPool(rangeCnt);
+
+                for (int i = 0; i < rangeCnt; i++) {
+                    final int index = i;
+                    final long end = Math.min(totalSize, i * rangeSize + rangeSize) - 1;
+
+                    results.add(rangeExecutor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return downloadRange(url, rangeValidator, rangeResumeKey, index, end, rangePositions,
+                                    firmwareChannel, metaFile, rangeTotalSize, failed, changed, progressCount);
+                        }
+                    }));
+                }
+                boolean completed = true;
+
+                for (Future<Boolean> result : results) {
+                    try {
+                        completed &= result.get();
+                    } catch (ExecutionException e) {
+                        failed.set(true);
+                        completed = false;
+                        e.getCause().printStackTrace();
+                    }
+                }
+                writeRangeMeta(metaFile, firmwareChannel, resumeKey, totalSize, positions);
+                firmwareOutputData.close();
+                firmwareOutputData = null;
+
+                // The changed firmware data is downloaded from the start by the single request.
+                if (changed.get() || isRangeRejected(url.getHost())) {
+                    deletePartialFile(partFile, metaFile);
+                    return false;
+                }
+
+                if (!completed || isAbandoned()) {
+                    Log.w(BLE_FOTA_TAG, "Range download is stopped. Stored ranges are resumed.");
+                    return false;
+                }
+
+                if (mManifest != null && !repairChunks(url, partFile, mManifest.verifyFile(partFile), validator)) {
+                    deletePartialFile(partFile, metaFile);
+                    return false;
+                }
+                return completeFile(partFile, metaFile, file);
+
+            } catch (IOException e) {
+                Log.w(BLE_FOTA_TAG, "Range download failed. Stored ranges are resumed.");
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (rangeExecutor != null) {
+                    rangeExecutor.shutdownNow();
+                }
+
+                if (firmwareOutputData != null) {
+                    try {
+                        // Bytes written before the failure are kept for the next attempt.
+                        writeRangeMeta(metaFile, firmwareOutputData.getChannel(), resumeKey, totalSize, positions);
+                        firmwareOutputData.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Check the partial file of a range download is kept for the next attempt.
+         *
+         * @param file is the downloaded firmware file.
+         * @return true, if the stored ranges are resumed by downloadInRanges method.
+         */
+        private boolean isRangeDownloadKept(File file) {
+            final File partFile = new File(file.getPath() + PARTIAL_FILE_EXT);
+            final File metaFile = new File(partFile.getPath() + PARTIAL_META_EXT);
+
+            return partFile.exists() && readMeta(metaFile).getProperty(META_RANGES) != null;
+        }
+
+        /**
+         * Download the rest of a range of the firmware data & write it at its position.
+         * The next position of the range is updated as the data is written.
+         *
+         * @param url is the firmware download URL.
+         * @param validator is ETag or Last-Modified of the firmware data. null: If-Range is not sent.
+         * @param resumeKey is the identity of the stored ranges.
+         * @param index is the index of the range.
+         * @param end is the last byte position of the range.
+         * @param positions is the next positions of every range.
+         * @param firmwareChannel is the channel of the preallocated partial file.
+         * @param metaFile is the progress information of the ranges.
+         * @param totalSize is the firmware data size.
+         * @param failed is set when any range fails, so the other ranges stop.
+         * @param changed is set when the firmware data is changed after the validator.
+         * @param progressCount is the downloaded bytes of every range.
+         * @return true, if the range is completed.
+         * @throws IOException
+         */
+        private boolean downloadRange(URL url, String validator, String resumeKey, int index, long end,
+                                      AtomicLongArray positions, FileChannel firmwareChannel, File metaFile,
+                                      long totalSize, AtomicBoolean failed, AtomicBoolean changed,
+                                      AtomicLong progressCount) throws IOException {
+            long position = positions.get(index);
+
+            if (position > end) {
+                // The range is completed by the previous attempt.
+                return true;
+            }
+            HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+            InputStream firmwareInputData = null;
+            byte[] data = null;
+
+            try {
+                httpURLConnection.setConnectTimeout(DOWNLOAD_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(DOWNLOAD_READ_TIMEOUT);
+                httpURLConnection.setUseCaches(false);
+                httpURLConnection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+
+                if (validator != null) {
+                    httpURLConnection.setRequestProperty("If-Range", validator);
+                }
+                final int responseCode = httpURLConnection.getResponseCode();
+
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    if (validator != null) {
+                        // With If-Range, the whole data is sent because the firmware data is changed.
+                        Log.w(BLE_FOTA_TAG, "Firmware data is changed while it is downloaded by ranges.");
+                        changed.set(true);
+                    } else {
+                        Log.w(BLE_FOTA_TAG, "Range request is rejected by the server: " + url.getHost());
+                        rejectRanges(url.getHost());
+                    }
+                    failed.set(true);
+                    return false;
+                }
+                final long[] range = parseContentRange(httpURLConnection.getHeaderField("Content-Range"));
+
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL || range == null ||
+                        range[0] != position || range[1] != end) {
+                    Log.w(BLE_FOTA_TAG, "Unexpected range response: " + responseCode + ", " +
+                            httpURLConnection.getHeaderField("Content-Range"));
+
+                    if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                        // The server does not serve the requested ranges. Retrying the ranges doesn't help.
+                        rejectRanges(url.getHost());
+                    }
+                    failed.set(true);
+                    return false;
+                }
+                firmwareInputData = httpURLConnection.getInputStream();
+                data = BflBufferPool.acquire();
+                long savedPosition = position;
+                int count;
+
+                while (position <= end && (count = firmwareInputData.read(data)) != -1) {
+                    if (failed.get() || isAbandoned()) {
+                        return false;
+                    }
+                    count = (int) Math.min(count, end + 1 - position);
+                    ByteBuffer dataBuffer = ByteBuffer.wrap(data, 0, count);
+
+                    while (dataBuffer.hasRemaining()) {
+                        position += firmwareChannel.write(dataBuffer, position);
+                    }
+                    positions.set(index, position);
+                    broadcastUpdate(ACTION_FIRMWARE_DOWNLOADING, (int) progressCount.addAndGet(count));
+
+                    if (position - savedPosition >= META_SAVE_SIZE) {
+                        writeRangeMeta(metaFile, firmwareChannel, resumeKey, totalSize, positions);
+                        savedPosition = position;
+                    }
+                }
+
+                if (position != end + 1) {
+                    throw new IOException("Firmware data range is truncated: " + position + "-" + end);
+                }
+                return true;
+
+            } catch (IOException e) {
+                failed.set(true);
+                throw e;
+
+            } finally {
+                BflBufferPool.release(data);
+
+                if (firmwareInputData != null) {
+                    firmwareInputData.close();
+                }
+                httpURLConnection.disconnect();
+            }
+        }
+
+        /**
+         * Fetch the corrupted chunks again by range requests & write them at their positions.
+         * The hash of the download is calculated again from the repaired file.
+         *
+         * @param url is the firmware download URL.
+         * @param file is the downloaded firmware file.
+         * @param badChunks is the indexes of the corrupted or missing chunks.
+         * @param validator is ETag or Last-Modified of the firmware data. null: Chunks are checked by the manifest only.
+         * @return true, if every chunk is matched with the manifest.
+         * @throws IOException
+         */
+        private boolean repairChunks(URL url, File file, List<Integer> badChunks, String validator) throws IOException {
+            if (badChunks.isEmpty() && file.length() == mManifest.getSize()) {
+                return true;
+            }
+            Log.w(BLE_FOTA_TAG, "Corrupted firmware chunks are fetched again: " + badChunks);
+            mDownloadHash = null;
+
+            final byte[] chunk = new byte[mManifest.getChunkSize()];
+            RandomAccessFile firmwareOutputData = new RandomAccessFile(file, "rw");
+
+            try {
+                firmwareOutputData.setLength(mManifest.getSize());
+
+                for (int index : badChunks) {
+                    final long start = mManifest.getChunkStart(index);
+                    final int length = mManifest.getChunkLength(index);
+                    boolean repaired = false;
+
+                    for (int attempt = 1; attempt <= MAX_CHUNK_ATTEMPTS && !repaired; attempt++) {
+                        if (isAbandoned()) {
+                            return false;
+                        }
+                        repaired = downloadChunk(url, validator, start, chunk, length) &&
+                                mManifest.isChunkValid(index, chunk, length);
+                    }
+
+                    if (!repaired) {
+                        Log.e(BLE_FOTA_TAG, "Firmware chunk is not able to be repaired: " + index);
+                        return false;
+                    }
+                    firmwareOutputData.seek(start);
+                    firmwareOutputData.write(chunk, 0, length);
+                }
+            } finally {
+                firmwareOutputData.close();
+            }
+            return true;
+        }
+
+        /**
+         * Download a chunk of the firmware data into the memory.
+         *
+         * @param url is the firmware download URL.
+         * @param validator is ETag or Last-Modified of the firmware data. null: Not validated.
+         * @param start is the first byte position of the chunk.
+         * @param chunk is the buffer of the chunk data.
+         * @param length is the length of the chunk.
+         * @return true, if the whole chunk is received.
+         */
+        private boolean downloadChunk(URL url, String validator, long start, byte[] chunk, int length) {
+            HttpURLConnection httpURLConnection = null;
+            InputStream firmwareInputData = null;
+
+            try {
+                httpURLConnection = (HttpURLConnection) url.openConnection();
+                httpURLConnection.setConnectTimeout(DOWNLOAD_CONNECTION_TIMEOUT);
+                httpURLConnection.setReadTimeout(DOWNLOAD_READ_TIMEOUT);
+                httpURLConnection.setUseCaches(false);
+                httpURLConnection.setRequestProperty("Range", "bytes=" + start + "-" + (start + length - 1));
+
+                if (validator != null) {
+                    httpURLConnection.setRequestProperty("If-Range", validator);
+                }
+                final int responseCode = httpURLConnection.getResponseCode();
+                final long[] range = parseContentRange(httpURLConnection.getHeaderField("Content-Range"));
+
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL || range == null || range[0] != start) {
+                    Log.w(BLE_FOTA_TAG, "Unexpected chunk response: " + responseCode + ", " +
+                            httpURLConnection.getHeaderField("Content-Range"));
+                    return false;
+                }
+                firmwareInputData = httpURLConnection.getInputStream();
+                int position = 0;
+                int count;
+
+                while (position < length && (count = firmwareInputData.read(chunk, position, length - position)) != -1) {
+                    position += count;
+                }
+                return position == length;
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+
+            } finally {
+                if (firmwareInputData != null) {
+                    try {
+                        firmwareInputData.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                if (httpURLConnection != null) {
+                    httpURLConnection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Hash the stored bytes of the partial file.
+         *
+         * @param file is the partial file.
+         * @param length is the count of bytes to be hashed.
+         * @param messageDigest is the digest of the download.
+         * @param chunkVerifier is the chunk verifier of the download. null: The manifest is not served.
+         * @throws IOException
+         */
+        private void hashFile(File file, long length, MessageDigest messageDigest,
+                              BflFwManifest.ChunkVerifier chunkVerifier) throws IOException {
+            InputStream fileInput = new FileInputStream(file);
+            byte[] buffer = BflBufferPool.acquire();
+            long remaining = length;
+            int count;
+
+            try {
+                while (remaining > 0 &&
+                        (count = fileInput.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    messageDigest.update(buffer, 0, count);
+
+                    if (chunkVerifier != null) {
+                        chunkVerifier.update(buffer, 0, count);
+                    }
+                    remaining -= count;
+                }
+            } finally {
+                BflBufferPool.release(buffer);
+                fileInput.close();
+            }
+        }
+
+        /**
+         * Start the pipelined upload when the firmware data size & hash are known.
+         * The bytes already stored in the partial file are framed first.
+         * It requires the manifest, because only the chunks verified by the manifest are released to the upload.
+         *
+         * @param partFile is the partial file.
+         * @param offset is the count of bytes stored in the partial file.
+         * @throws IOException
+         * @see kr.co.sevencore.blefotalib.BflFwGrowingImage
+         */
+        private void startPipeline(File partFile, long offset) throws IOException {
+            if (!sPipelinedMode || mPrefetch || mGrowingImage != null || mProductName == null || mVersion == null || mTotalSize <= 0) {
+                return;
+            }
+
+            // Only the chunks verified by the manifest are uploaded before the download finishes.
+            if (mChunkVerifier == null || mChunkVerifier.getBadChunkCount() > 0) {
+                Log.w(BLE_FOTA_TAG, "Unverified firmware download is not pipelined.");
+                return;
+            }
+            final String pipelinePath = BflFwGrowingImage.makePath(mProductName, mVersion);
+            mGrowingImage = BflFwGrowingImage.create(pipelinePath, mTotalSize);
+
+            if (mGrowingImage == null) {
+                Log.w(BLE_FOTA_TAG, "Firmware download is not pipelined: " + pipelinePath);
+                return;
+            }
+
+            if (offset > 0) {
+                InputStream fileInput = new FileInputStream(partFile);
+                byte[] buffer = BflBufferPool.acquire();
+                long remaining = offset;
+                int count;
+
+                try {
+                    while (remaining > 0 &&
+                            (count = fileInput.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                        mGrowingImage.append(buffer, 0, count);
+                        remaining -= count;
+                    }
+                } finally {
+                    BflBufferPool.release(buffer);
+                    fileInput.close();
+                }
+            }
+
+            if (mChunkVerifier != null) {
+                mGrowingImage.setVerifiedLength(mChunkVerifier.getVerifiedLength());
+            }
+            Log.i(BLE_FOTA_TAG, "Firmware download is pipelined: " + pipelinePath);
+            broadcastUpdate(ACTION_FIRMWARE_PIPELINE_READY, pipelinePath);
+        }
+
+        /**
+         * Release the verified chunks to the pipelined upload.
+         * A corrupted chunk stops the pipeline, because the framed data is not rewritten by the repair.
+         */
+        private void updatePipeline() {
+            if (mGrowingImage == null || mChunkVerifier == null) {
+                return;
+            }
+
+            if (mChunkVerifier.getBadChunkCount() > 0) {
+                Log.w(BLE_FOTA_TAG, "Pipelined firmware has a corrupted chunk.");
+                finishPipeline(null);
+                return;
+            }
+            mGrowingImage.setVerifiedLength(mChunkVerifier.getVerifiedLength());
+        }
+
+        /**
+         * Finish the pipelined upload.
+         * The checksum data is released to the upload only after the downloaded firmware is verified.
+         *
+         * @param firmwarePath is the location of the verified firmware. null: The download failed.
+         */
+        private void finishPipeline(String firmwarePath) {
+            if (mGrowingImage == null) {
+                return;
+            }
+
+            if (firmwarePath != null) {
+                mGrowingImage.finish(firmwarePath);
+            } else {
+                mGrowingImage.fail();
+            }
+            mGrowingImage = null;
+        }
+
+        private MessageDigest newSha256() throws IOException {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not supported.");
+            }
+        }
+
+        /**
+         * Notify the firmware data size once, even if the download is resumed.
+         */
+        private void notifyStart() {
+            if (!mStartNotified) {
+                mStartNotified = true;
+                broadcastUpdate(ACTION_FIRMWARE_DOWNLOAD_START, (int) mTotalSize);
+            }
+        }
+
+        /**
+         * Rename the completed partial file to the firmware file.
+         *
+         * @param partFile is the partial file.
+         * @param metaFile is the validator information of the partial file.
+         * @param file is the firmware file.
+         * @return true, if the firmware file is completed.
+         */
+        private boolean completeFile(File partFile, File metaFile, File file) {
+            if (file.exists()) {
+                file.delete();
+            }
+
+            if (!partFile.renameTo(file)) {
+                Log.e(BLE_FOTA_TAG, "Firmware file is not able to be renamed: " + partFile.getPath());
+                return false;
+            }
+            metaFile.delete();
+            return true;
+        }
+
+        private void deletePartialFile(File partFile, File metaFile) {
+            partFile.delete();
+            metaFile.delete();
+        }
+
+        /**
+         * Get the validator of the firmware data.
+         * Weak ETag is not allowed in If-Range, so Last-Modified is used instead.
+         *
+         * @param httpURLConnection is the connection of the firmware data.
+         * @return ETag or Last-Modified. null: The partial file is not able to be resumed.
+         */
+        private String getValidator(HttpURLConnection httpURLConnection) {
+            final String eTag = httpURLConnection.getHeaderField("ETag");
+
+            if (eTag != null && !eTag.startsWith("W/")) {
+                return eTag;
+            }
+            return httpURLConnection.getHeaderField("Last-Modified");
+        }
+
+        private Properties readMeta(File metaFile) {
+            Properties meta = new Properties();
+
+            if (metaFile.exists()) {
+                InputStream metaInput = null;
+
+                try {
+                    metaInput = new FileInputStream(metaFile);
+                    meta.load(metaInput);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (metaInput != null) {
+                        try {
+                            metaInput.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            return meta;
+        }
+
+        /**
+         * Store the validator information of the partial file.
+         * Without the validator, the partial file is downloaded again from the beginning.
+         *
+         * @param metaFile is the validator information file.
+         * @param validator is ETag or Last-Modified of the firmware data.
+         * @param length is the firmware data size.
+         * @throws IOException
+         */
+        private void writeMeta(File metaFile, String validator, long length) throws IOException {
+            if (validator == null) {
+                metaFile.delete();
+                return;
+            }
+            Properties meta = new Properties();
+            meta.setProperty(META_VALIDATOR, validator);
+            meta.setProperty(META_LENGTH, Long.toString(length));
+
+            OutputStream metaOutput = new FileOutputStream(metaFile);
+            try {
+                meta.store(metaOutput, null);
+            } finally {
+                metaOutput.close();
+            }
+        }
+
+        /**
+         * Store the next position of each range of the partial file.
+         * The written data is forced to the storage first, so stored positions never point after lost bytes.
+         *
+         * @param metaFile is the progress information file.
+         * @param firmwareChannel is the channel of the partial file.
+         * @param validator is the identity of the stored ranges. ETag, Last-Modified or the hash of the firmware data.
+         * @param length is the firmware data size.
+         * @param positions is the next positions of every range. null: Nothing to store.
+         */
+        private synchronized void writeRangeMeta(File metaFile, FileChannel firmwareChannel, String validator,
+                                                 long length, AtomicLongArray positions) {
+            if (positions == null || validator == null || !firmwareChannel.isOpen()) {
+                return;
+            }
+            Properties meta = new Properties();
+            meta.setProperty(META_VALIDATOR, validator);
+            meta.setProperty(META_LENGTH, Long.toString(length));
+            meta.setProperty(META_RANGES, Integer.toString(positions.length()));
+
+            for (int i = 0; i < positions.length(); i++) {
+                meta.setProperty(META_RANGE_PREFIX + i, Long.toString(positions.get(i)));
+            }
+            OutputStream metaOutput = null;
+
+            try {
+                firmwareChannel.force(false);
+                metaOutput = new FileOutputStream(metaFile);
+                meta.store(metaOutput, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (metaOutput != null) {
+                    try {
+                        metaOutput.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onCancelledTask(String result) {
+            if (mPrefetch) {
+                finishPrefetchDownload();
+            }
+        }
+
+        @Override
+        protected void onFinished(String result) {
+            if (mPrefetch) {
+                Log.i(BLE_FOTA_TAG, "Firmware is prefetched: " + mFirmwarePath);
+                finishPrefetchDownload();
+                return;
+            }
+
+            if (result != null && DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode().equals(result)) {
+                // The session which ran the download notifies every client.
+                if (mLeader) {
+                    broadcastFinish(mFirmwarePath, mProductName, mVersion);
+                }
             } else {
                 stopSelf(mSvcId);
             }
@@ -527,16 +2542,17 @@ public class BflFwDownloadService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        if (mServerConnection != null) {
-            mServerConnection.cancel(true);
+        // Queued requests are cancelled with the running ones.
+        if (sDeviceAddress != null) {
+            sTaskExecutor.cancel(sDeviceAddress);
         }
+        sTaskExecutor.cancel(FLEET_SESSION);
 
-        if (mFirmwareDownload != null) {
-            mFirmwareDownload.cancel(true);
-        }
-
-        if (sCpuWakeLock != null) {
-            sCpuWakeLock.release();
+        // Cancelled tasks finish after the service is destroyed, so the wake lock is released here.
+        synchronized (sWakeLockLock) {
+            while (sCpuWakeLock != null && sCpuWakeLock.isHeld()) {
+                sCpuWakeLock.release();
+            }
             sCpuWakeLock = null;
         }
     }
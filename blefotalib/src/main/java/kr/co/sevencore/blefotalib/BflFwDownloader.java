@@ -10,6 +10,9 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import kr.co.sevencore.blefotalib.BflCodeList.DownloadCode;
 
 /**
@@ -32,12 +35,16 @@ public class BflFwDownloader {
     public static IBflFwDownloadSvc sBflDownloadBinder;         // Firmware data download service AIDL.
     private Intent mDownloadServiceIntent;
     private String mAddress;                                   // The target device MAC address.
+    private String mFirmwarePath;                              // Location of the downloaded or cached firmware.
 
     private boolean mDownloadProgressFlag = false;         // Prevent creation of download progress AsyncTask.
+    private boolean mPipelinedMode = false;                // Upload while the firmware is downloaded.
 
     private OnDownloadSvcInit mDownloadSvcInitCallback;     // Service initialization result of the firmware download callback.
     private OnFirmwareInfoListener mFirmwareInfoCallback;   // New firmware data information of the target device.
     private OnProgressCountListener mProgressCountCallback; // Firmware download progress information callback.
+    private OnFleetInfoListener mFleetInfoCallback;         // Fleet information grouped by image callback.
+    private OnFirmwareDownloadedListener mFirmwareDownloadedCallback; // Downloaded image callback.
 
 
     public BflFwDownloader(Context context) {
@@ -73,7 +80,9 @@ public class BflFwDownloader {
          * 7100 | Product name information
          * 7102 | Firmware version information
          * 7103 | Firmware download URL information
-         * 7200 | Invalid firmware data error
+         * 7202 | Invalid firmware data error
+         * 7203 | Location of the downloaded or cached firmware
+         * 7204 | Pipeline path of the firmware being downloaded
          *
          * @param code is a identifier of each information.
          * @param info is a firmware and device information.
@@ -110,6 +119,38 @@ public class BflFwDownloader {
         void onProgressCountListener(String state, int size);
     }
 
+    /**
+     * OnFleetInfoListener interface is used to get firmware information of many devices.
+     * If a main application prepares a campaign, use queryFleetInfo method & onFleetInfo method.
+     */
+    public interface OnFleetInfoListener {
+        /**
+         * Firmware information of the devices grouped by distinct image.
+         * Each group is downloaded once by downloadFirmware method.
+         *
+         * @param groups is the devices sharing each firmware image.
+         * @param unknownMacAddresses is MAC addresses of the devices not registered with the server.
+         * @see kr.co.sevencore.blefotalib.BflFwImageGroup
+         */
+        void onFleetInfo(List<BflFwImageGroup> groups, List<String> unknownMacAddresses);
+    }
+
+    /**
+     * OnFirmwareDownloadedListener interface is used to find the image which is downloaded or cached.
+     * If a main application downloads many images for a fleet campaign, use onFirmwareDownloaded method.
+     */
+    public interface OnFirmwareDownloadedListener {
+        /**
+         * The firmware image is ready to be uploaded.
+         *
+         * @param productName is the product name of the image. null: Unknown.
+         * @param version is the firmware version of the image. null: Unknown.
+         * @param firmwarePath is the location of the downloaded or cached firmware.
+         * @see kr.co.sevencore.blefotalib.BflFwImageGroup
+         */
+        void onFirmwareDownloaded(String productName, String version, String firmwarePath);
+    }
+
     /**
      * Save a callback object to mDownloadSvcInitCallback.
      *
@@ -137,6 +178,60 @@ public class BflFwDownloader {
         mProgressCountCallback = callback;
     }
 
+    /**
+     * Save a callback object to mFleetInfoCallback.
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwDownloader.OnFleetInfoListener
+     */
+    public void setOnFleetInfoListener(OnFleetInfoListener callback) {
+        mFleetInfoCallback = callback;
+    }
+
+    /**
+     * Save a callback object to mFirmwareDownloadedCallback.
+     *
+     * @see kr.co.sevencore.blefotalib.BflFwDownloader.OnFirmwareDownloadedListener
+     */
+    public void setOnFirmwareDownloadedListener(OnFirmwareDownloadedListener callback) {
+        mFirmwareDownloadedCallback = callback;
+    }
+
+    /**
+     * Customize the periods of cached firmware metadata.
+     * Cached answers are used without the network during the periods.
+     * It is applied to the metadata request of the next connection.
+     *
+     * @param ttl is the period of a metadata answer in milliseconds. 0: Always revalidated.
+     * @param negativeTtl is the period of an "unknown device" answer in milliseconds. 0: Not cached.
+     * @see kr.co.sevencore.blefotalib.BflFwMetadataCache
+     */
+    public void setMetadataTtl(long ttl, long negativeTtl) {
+        // The download service runs in the same process, so the cache is shared.
+        BflFwMetadataCache.getInstance(mContext).setTtl(ttl, negativeTtl);
+    }
+
+    /**
+     * Set the pipelined mode of the firmware download.
+     * In the pipelined mode, OnFirmwareInfoListener notifies the pipeline path (code 7204)
+     * as soon as the firmware data size is known. The pipeline path is used as the file path of the uploader,
+     * so the upload runs behind the download and the checksum data is written after the download is verified.
+     * The location of the verified firmware is notified by code 7203 as before.
+     *
+     * @param enable is true to upload while the firmware is downloaded.
+     * @see kr.co.sevencore.blefotalib.BflFwGrowingImage
+     */
+    public void setPipelinedMode(boolean enable) {
+        mPipelinedMode = enable;
+
+        if (sBflDownloadBinder != null) {
+            try {
+                sBflDownloadBinder.setPipelinedMode(enable);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Create an object to implement a service connection interface.
      *
@@ -150,6 +245,8 @@ public class BflFwDownloader {
             boolean initResult = true;
 
             try {
+                sBflDownloadBinder.setPipelinedMode(mPipelinedMode);
+
                 if (!sBflDownloadBinder.initDownloader()) {
                     initResult = false;
                     Log.e(BLE_FOTA_TAG, "Unable to initialize firmware downloader");
@@ -189,6 +286,14 @@ public class BflFwDownloader {
                     }
                     Log.e(BLE_FOTA_TAG, "Bluetooth Smart device is not registered with the server.");
 
+                } else if (BflFwDownloadService.ACTION_ERROR_NETWORK_UNAVAILABLE.equals(action)) {
+                    if (mFirmwareInfoCallback != null) {
+                        mFirmwareInfoCallback.onFirmwareInfoListener(
+                                DownloadCode.SERVER_CONN_ERROR_NETWORK_UNAVAILABLE.getCode(), null
+                        );
+                    }
+                    Log.e(BLE_FOTA_TAG, "Firmware information is not available without the network.");
+
                 } else if (BflFwDownloadService.ACTION_ERROR_FIRMWARE_DATA_INTEGRITY.equals(action)) {
                     if (mFirmwareInfoCallback != null) {
                         mFirmwareInfoCallback.onFirmwareInfoListener(
@@ -263,7 +368,23 @@ public class BflFwDownloader {
                         Log.d(BLE_FOTA_TAG, "Firmware download transmission size: " + transmissionSize);
                     }
 
+                } else if (BflFwDownloadService.ACTION_FLEET_INFO.equals(action)) {
+                    updateFleetInfo(intent);
+
+                } else if (BflFwDownloadService.ACTION_FIRMWARE_PIPELINE_READY.equals(action)) {
+                    final String pipelinePath = intent.getStringExtra(BflFwDownloadService.EXTRA_DATA);
+
+                    if (mFirmwareInfoCallback != null) {
+                        mFirmwareInfoCallback.onFirmwareInfoListener(
+                                DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_PIPELINE_READY.getCode(),
+                                pipelinePath
+                        );
+                    }
+                    Log.d(BLE_FOTA_TAG, "Firmware upload is able to start: " + pipelinePath);
+
                 } else if (BflFwDownloadService.ACTION_FIRMWARE_DOWNLOAD_FINISH.equals(action)) {
+                    mFirmwarePath = intent.getStringExtra(BflFwDownloadService.EXTRA_DATA);
+
                     if (mDownloadProgressFlag) {
                         mDownloadProgressFlag = false;
                         // Initialize the reception data size.
@@ -273,8 +394,25 @@ public class BflFwDownloader {
                             );
                         }
                     }
-                    // Finish firmware download service.
-                    disconnectDownloadSvc();
+                    if (mFirmwareInfoCallback != null) {
+                        mFirmwareInfoCallback.onFirmwareInfoListener(
+                                DownloadCode.FIRMWARE_DOWNLOAD_PROCESS_FINISHING_DOWNLOAD.getCode(),
+                                mFirmwarePath
+                        );
+                    }
+                    if (mFirmwareDownloadedCallback != null) {
+                        mFirmwareDownloadedCallback.onFirmwareDownloaded(
+                                intent.getStringExtra(BflFwDownloadService.EXTRA_PRODUCT_NAME_DATA),
+                                intent.getStringExtra(BflFwDownloadService.EXTRA_VERSION_DATA),
+                                mFirmwarePath
+                        );
+                    }
+                    Log.d(BLE_FOTA_TAG, "Firmware data stored at: " + mFirmwarePath);
+
+                    // Finish firmware download service. The fleet keeps the service to download other images.
+                    if (mAddress != null) {
+                        disconnectDownloadSvc();
+                    }
                 }
             } else {
                 Log.e(BLE_FOTA_TAG, "Firmware downloader broadcast data is NULL.");
@@ -282,11 +420,130 @@ public class BflFwDownloader {
         }
     };
 
+    /**
+     * Rebuild the groups from the fleet information broadcast.
+     *
+     * @param intent is the fleet information broadcast.
+     */
+    private void updateFleetInfo(Intent intent) {
+        final String[] productNames = intent.getStringArrayExtra(BflFwDownloadService.EXTRA_FLEET_PRODUCT_LIST_DATA);
+        final String[] versions = intent.getStringArrayExtra(BflFwDownloadService.EXTRA_FLEET_VERSION_LIST_DATA);
+        final String[] urls = intent.getStringArrayExtra(BflFwDownloadService.EXTRA_FLEET_URL_LIST_DATA);
+        final long[] sizes = intent.getLongArrayExtra(BflFwDownloadService.EXTRA_FLEET_SIZE_LIST_DATA);
+        final String[] hashes = intent.getStringArrayExtra(BflFwDownloadService.EXTRA_FLEET_HASH_LIST_DATA);
+        final String[] macAddresses = intent.getStringArrayExtra(BflFwDownloadService.EXTRA_FLEET_MAC_ADDRESS_LIST_DATA);
+        final int[] groupIndexes = intent.getIntArrayExtra(BflFwDownloadService.EXTRA_FLEET_GROUP_INDEX_LIST_DATA);
+
+        if (productNames == null || versions == null || urls == null || sizes == null || hashes == null ||
+                macAddresses == null || groupIndexes == null) {
+            Log.e(BLE_FOTA_TAG, "Fleet information is invalid.");
+            return;
+        }
+        ArrayList<BflFwImageGroup> groups = new ArrayList<BflFwImageGroup>(productNames.length);
+        ArrayList<String> unknownMacAddresses = new ArrayList<String>();
+
+        for (int i = 0; i < productNames.length; i++) {
+            groups.add(new BflFwImageGroup(productNames[i], versions[i], urls[i], sizes[i], hashes[i]));
+        }
+
+        for (int i = 0; i < macAddresses.length && i < groupIndexes.length; i++) {
+            if (groupIndexes[i] >= 0 && groupIndexes[i] < groups.size()) {
+                groups.get(groupIndexes[i]).addMacAddress(macAddresses[i]);
+            } else {
+                unknownMacAddresses.add(macAddresses[i]);
+            }
+        }
+        Log.d(BLE_FOTA_TAG, "Fleet information: " + groups.size() + " images, " + unknownMacAddresses.size() + " unknown devices");
+
+        if (mFleetInfoCallback != null) {
+            mFleetInfoCallback.onFleetInfo(groups, unknownMacAddresses);
+        }
+    }
+
+    /**
+     * Get firmware information of many devices.
+     * The download service has to be connected. The result is notified by OnFleetInfoListener.
+     *
+     * @param macAddresses is MAC addresses of the devices.
+     * @return true, if the request is sent to the download service.
+     * @see kr.co.sevencore.blefotalib.BflFwDownloader.OnFleetInfoListener
+     */
+    public boolean queryFleetInfo(String[] macAddresses) {
+        if (sBflDownloadBinder == null) {
+            Log.e(BLE_FOTA_TAG, "Firmware download service is not connected.");
+            return false;
+        }
+
+        try {
+            sBflDownloadBinder.queryFleetInfo(macAddresses);
+            return true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Download the firmware image of a group.
+     * The cached image is not downloaded again. The progress is notified by OnProgressCountListener.
+     *
+     * @param group is the devices sharing the firmware image.
+     * @return true, if the request is sent to the download service.
+     */
+    public boolean downloadFirmware(BflFwImageGroup group) {
+        if (sBflDownloadBinder == null) {
+            Log.e(BLE_FOTA_TAG, "Firmware download service is not connected.");
+            return false;
+        }
+
+        try {
+            sBflDownloadBinder.downloadFirmware(group.getProductName(), group.getVersion(),
+                    group.getUrl(), group.getHash(), group.getSize());
+            return true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Cancel every queued & running request of this downloader.
+     * The device requests are cancelled, or the fleet requests without the device.
+     *
+     * @return true, if the request is sent to the download service.
+     */
+    public boolean cancelTasks() {
+        if (sBflDownloadBinder == null) {
+            Log.e(BLE_FOTA_TAG, "Firmware download service is not connected.");
+            return false;
+        }
+
+        try {
+            sBflDownloadBinder.cancelTasks(mAddress);
+            return true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Get the task executor of the download service.
+     * It is used to monitor the queue depth of metadata requests & firmware downloads.
+     *
+     * @return The task executor shared in the process.
+     * @see kr.co.sevencore.blefotalib.BflFwTaskExecutor
+     */
+    public BflFwTaskExecutor getTaskExecutor() {
+        // The download service runs in the same process, so the executor is shared.
+        return BflFwTaskExecutor.getInstance();
+    }
+
     /**
      * BLE FOTA firmware download service connection.
      * Create service connection & download firmware from the sever.
      *
-     * @param address is the device MAC address.
+     * @param address is the device MAC address. null: The service is used for the fleet information.
      * @see kr.co.sevencore.blefotalib.BflFwDownloadService
      */
     public void connectDownloadSvc(String address) {
@@ -318,6 +575,16 @@ public class BflFwDownloader {
         }
     }
 
+    /**
+     * Get the location of the downloaded or cached firmware.
+     * It is used as the file path of the firmware uploader.
+     *
+     * @return The firmware file path, or null if the download is not finished.
+     */
+    public String getFirmwarePath() {
+        return mFirmwarePath;
+    }
+
     /**
      * Register broadcast receiver.
      *
@@ -343,6 +610,7 @@ public class BflFwDownloader {
     /**
      * Intent filter for BflFwDownloadService.
      * ACTION_ERROR_UNKNOWN_DEVICE: The device is not registered on the server.
+     * ACTION_ERROR_NETWORK_UNAVAILABLE: Firmware information is not cached or bundled without the network.
      * ACTION_ERROR_FIRMWARE_DATA_INTEGRITY: Firmware data integrity check from the server.
      * ACTION_PRODUCT_NAME: The device name from the server.
      * ACTION_FIRMWARE_VERSION: Firmware version information from the server.
@@ -350,12 +618,15 @@ public class BflFwDownloader {
      * ACTION_FIRMWARE_DOWNLOAD_START: Firmware download started. It is used to notify file size.
      * ACTION_FIRMWARE_DOWNLOADING: Firmware is downloading. It is used to update download progress.
      * ACTION_FIRMWARE_DOWNLOAD_FINISH: Firmware download finished.
+     * ACTION_FLEET_INFO: Firmware information of many devices grouped by image.
+     * ACTION_FIRMWARE_PIPELINE_READY: Pipelined firmware is able to be uploaded.
      *
      * @return Intent filter.
      */
     private static IntentFilter makeDownloadProgressIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BflFwDownloadService.ACTION_ERROR_UNKNOWN_DEVICE);
+        intentFilter.addAction(BflFwDownloadService.ACTION_ERROR_NETWORK_UNAVAILABLE);
         intentFilter.addAction(BflFwDownloadService.ACTION_ERROR_FIRMWARE_DATA_INTEGRITY);
         intentFilter.addAction(BflFwDownloadService.ACTION_PRODUCT_NAME);
         intentFilter.addAction(BflFwDownloadService.ACTION_FIRMWARE_VERSION);
@@ -363,6 +634,8 @@ public class BflFwDownloader {
         intentFilter.addAction(BflFwDownloadService.ACTION_FIRMWARE_DOWNLOAD_START);
         intentFilter.addAction(BflFwDownloadService.ACTION_FIRMWARE_DOWNLOADING);
         intentFilter.addAction(BflFwDownloadService.ACTION_FIRMWARE_DOWNLOAD_FINISH);
+        intentFilter.addAction(BflFwDownloadService.ACTION_FLEET_INFO);
+        intentFilter.addAction(BflFwDownloadService.ACTION_FIRMWARE_PIPELINE_READY);
         intentFilter.addAction(BflFwDownloadService.EXTRA_DATA);
         return intentFilter;
     }
@@ -0,0 +1,168 @@
+package kr.co.sevencore.blefotalib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BflFwFrameCache.java
+ * BLE FOTA Library pre-framed firmware image cache.
+ * The framed representation of the firmware data is persisted next to the firmware data file,
+ * and later sessions memory-map it instead of reading & framing the firmware data again.
+ *
+ * Cache file format (big endian): FIRMWARE_FILE_NAME + ".bfl"
+ *  - Header: magic | format version | firmware size | firmware modified time | frame size | frame count
+ *  - Digest: digest size | SHA-1 digest
+ *  - Data: framed firmware data including sequence information. Each frame is located by the fixed frame size.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-07
+ * @see kr.co.sevencore.blefotalib.BflFwImageStore
+ */
+public class BflFwFrameCache {
+    private final static String BLE_FOTA_TAG = BflFwFrameCache.class.getSimpleName();
+
+    public final static String FRAME_CACHE_FILE_EXT = ".bfl";
+
+    private final static int FRAME_CACHE_MAGIC = 0x42464C46; // "BFLF"
+    private final static int FRAME_CACHE_VERSION = 2;         // Version 1 had the frame index.
+    private final static int FRAME_CACHE_HEADER_SIZE = 32;   // 4 + 4 + 8 + 8 + 4 + 4 bytes.
+    private final static int DIGEST_SIZE = 20;               // SHA-1 digest.
+
+
+    /**
+     * Get the cache file of the firmware data file.
+     *
+     * @param binFile is the firmware data file.
+     * @return The cache file located next to the firmware data file.
+     */
+    public static File getCacheFile(File binFile) {
+        return new File(binFile.getPath() + FRAME_CACHE_FILE_EXT);
+    }
+
+    /**
+     * Memory-map the cached framed image.
+     * The cache is used only if it is made from the current firmware data file.
+     *
+     * @param binFile is the firmware data file.
+     * @return The framed image, or null if the cache does not exist or is out of date.
+     */
+    public static BflFwImageStore.FirmwareImage read(File binFile) {
+        File cacheFile = getCacheFile(binFile);
+
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r");
+            try {
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                // The mapping is kept after the channel is closed.
+                MappedByteBuffer mappedData = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+
+                if (mappedData.remaining() < FRAME_CACHE_HEADER_SIZE ||
+                        mappedData.getInt() != FRAME_CACHE_MAGIC ||
+                        mappedData.getInt() != FRAME_CACHE_VERSION) {
+                    Log.w(BLE_FOTA_TAG, "Invalid frame cache: " + cacheFile.getPath());
+                    return null;
+                }
+
+                long length = mappedData.getLong();
+                long modifiedTime = mappedData.getLong();
+                int frameSize = mappedData.getInt();
+                int frameCnt = mappedData.getInt();
+
+                if (length != binFile.length() || modifiedTime != binFile.lastModified() ||
+                        frameSize != BflFwUploadService.EACH_CONN_DATA_SIZE) {
+                    Log.d(BLE_FOTA_TAG, "Frame cache is out of date: " + cacheFile.getPath());
+                    return null;
+                }
+
+                // Lengths read from the file are checked before they are trusted.
+                if (frameCnt != BflUtil.getFrameCount(length) || mappedData.getInt() != DIGEST_SIZE) {
+                    Log.w(BLE_FOTA_TAG, "Corrupted frame cache: " + cacheFile.getPath());
+                    return null;
+                }
+                byte[] digest = new byte[DIGEST_SIZE];
+                mappedData.get(digest);
+
+                ByteBuffer framedData = mappedData.slice();
+                if (framedData.remaining() != length + ((long) frameCnt * BflFwUploadService.EACH_CONN_DATA_INFO)) {
+                    Log.w(BLE_FOTA_TAG, "Truncated frame cache: " + cacheFile.getPath());
+                    return null;
+                }
+
+                return new BflFwImageStore.FirmwareImage(BflUtil.toHexString(digest), digest, length, framedData);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (Exception e) {
+            Log.e(BLE_FOTA_TAG, "Unable to read the frame cache: " + cacheFile.getPath());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Persist the framed image next to the firmware data file.
+     * The cache file is written to a temporary file and renamed,
+     * so other sessions never map a partially written cache.
+     *
+     * @param binFile is the firmware data file.
+     * @param digest is SHA-1 digest of the firmware data.
+     * @param length is the firmware data size without sequence information.
+     * @param framedData is the firmware data including sequence information.
+     * @return true, if the cache file is written.
+     */
+    public static boolean write(File binFile, byte[] digest, long length, byte[] framedData) {
+        File cacheFile = getCacheFile(binFile);
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        final int frameCnt = BflUtil.getFrameCount(length);
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_CACHE_HEADER_SIZE + 4 + digest.length);
+        header.putInt(FRAME_CACHE_MAGIC);
+        header.putInt(FRAME_CACHE_VERSION);
+        header.putLong(length);
+        header.putLong(binFile.lastModified());
+        header.putInt(BflFwUploadService.EACH_CONN_DATA_SIZE);
+        header.putInt(frameCnt);
+        header.putInt(digest.length);
+        header.put(digest);
+        header.flip();
+
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                fileChannel.truncate(0);
+                ByteBuffer[] buffers = new ByteBuffer[] {header, ByteBuffer.wrap(framedData)};
+
+                while (buffers[1].hasRemaining()) {
+                    fileChannel.write(buffers);
+                }
+                fileChannel.force(false);
+            } finally {
+                randomAccessFile.close();
+            }
+
+            if (tempFile.renameTo(cacheFile)) {
+                Log.d(BLE_FOTA_TAG, "Frame cache is written: " + cacheFile.getPath());
+                return true;
+            }
+        } catch (IOException e) {
+            // A read-only firmware location is not an error. The image is framed in memory.
+            Log.w(BLE_FOTA_TAG, "Unable to write the frame cache: " + cacheFile.getPath());
+        }
+        tempFile.delete();
+        return false;
+    }
+}
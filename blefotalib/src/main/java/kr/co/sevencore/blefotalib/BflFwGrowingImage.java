@@ -0,0 +1,357 @@
+package kr.co.sevencore.blefotalib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * BflFwGrowingImage.java
+ * BLE FOTA Library framed firmware image filled while it is downloaded.
+ * Sequence information of every connection event is written in advance from the firmware size,
+ * and downloaded bytes are copied into the frames, so the upload starts before the download finishes.
+ * The upload waits for each frame behind the download cursor,
+ * and the checksum data is available only after the downloaded firmware is verified.
+ *
+ * The image is identified by a pipeline path formed into "pipeline:<product>/<version>",
+ * which is used as the file path of the uploader.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-25
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ * @see kr.co.sevencore.blefotalib.BflFwUploadService
+ */
+public class BflFwGrowingImage {
+    private final static String BLE_FOTA_TAG = BflFwGrowingImage.class.getSimpleName();
+
+    public final static String PIPELINE_PATH_PREFIX = "pipeline:";
+
+    private static HashMap<String, BflFwGrowingImage> sImages = new HashMap<String, BflFwGrowingImage>(); // Images by pipeline path.
+    private static HashMap<String, String> sFilePaths = new HashMap<String, String>(); // Verified files by pipeline path.
+
+    private final String mPath;
+    private final long mLength;                // Firmware data size without sequence information.
+    private final ByteBuffer mFramedData;
+    private final MessageDigest mSha1;         // Checksum data calculated while the image grows.
+
+    private long mWritten = 0;                 // Downloaded bytes without sequence information.
+    private long mVerifiedLength = 0;          // Bytes verified by the manifest. Nothing is released before.
+    private long mAvailable = 0;               // Bytes able to be transmitted.
+    private byte[] mDigest;                    // SHA-1 digest. null: Not verified yet.
+    private String mFilePath;                  // Location of the verified firmware file.
+    private boolean mFailed = false;
+    private int mRefCount = 0;                 // Count of upload sessions.
+
+
+    private BflFwGrowingImage(String path, long length) throws NoSuchAlgorithmException {
+        mPath = path;
+        mLength = length;
+        mSha1 = MessageDigest.getInstance("SHA1");
+
+        final int frameCnt = BflUtil.getFrameCount(length);
+        mFramedData = ByteBuffer.allocate((int) (length + (long) frameCnt * BflFwUploadService.EACH_CONN_DATA_INFO));
+
+        for (int seqNum = 0; seqNum < frameCnt; seqNum++) {
+            final long pureConnSize = Math.min(BflFwUploadService.PURE_EACH_CONN_DATA_SIZE,
+                    length - (long) seqNum * BflFwUploadService.PURE_EACH_CONN_DATA_SIZE);
+            final int connSize = (int) pureConnSize + BflFwUploadService.EACH_CONN_DATA_INFO;
+            final int position = seqNum * BflFwUploadService.EACH_CONN_DATA_SIZE;
+
+            mFramedData.put(position, (byte) (seqNum & 0xFF));
+            mFramedData.put(position + 1, (byte) ((connSize & 0xFF00) >> 8));
+            mFramedData.put(position + 2, (byte) (connSize & 0xFF));
+        }
+    }
+
+    /**
+     * Make the pipeline path of the firmware.
+     *
+     * @param productName is the product name of the firmware.
+     * @param version is the firmware version.
+     * @return The pipeline path used as the file path of the uploader.
+     */
+    public static String makePath(String productName, String version) {
+        return PIPELINE_PATH_PREFIX + productName + "/" + version;
+    }
+
+    /**
+     * Check the path is the pipeline path.
+     *
+     * @param path is the file path of the uploader.
+     * @return true, if the path is the pipeline path.
+     */
+    public static boolean isPipelinePath(String path) {
+        return path != null && path.startsWith(PIPELINE_PATH_PREFIX);
+    }
+
+    /**
+     * Create the image of the firmware being downloaded.
+     *
+     * @param path is the pipeline path.
+     * @param length is the firmware data size.
+     * @return The new image, or null if the image is not able to be created.
+     */
+    public static synchronized BflFwGrowingImage create(String path, long length) {
+        if (length <= 0 || length > Integer.MAX_VALUE / 2) {
+            return null;
+        }
+
+        try {
+            BflFwGrowingImage image = new BflFwGrowingImage(path, length);
+            BflFwGrowingImage oldImage = sImages.put(path, image);
+
+            if (oldImage != null) {
+                oldImage.fail();
+            }
+            return image;
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Acquire the image of the pipeline path.
+     * Every acquired image has to be returned by release method.
+     *
+     * @param path is the pipeline path.
+     * @return The image, or null if the firmware is not downloaded in the pipelined mode.
+     */
+    public static synchronized BflFwGrowingImage acquire(String path) {
+        BflFwGrowingImage image = sImages.get(path);
+
+        if (image != null) {
+            image.mRefCount++;
+        }
+        return image;
+    }
+
+    /**
+     * Return the image acquired by acquire method.
+     *
+     * @param image is the image.
+     */
+    public static synchronized void release(BflFwGrowingImage image) {
+        if (image == null || image.mRefCount <= 0) {
+            return;
+        }
+
+        if (--image.mRefCount == 0 && image.isFinished()) {
+            removeImage(image);
+        }
+    }
+
+    /**
+     * Get the firmware data size of the pipeline path.
+     *
+     * @param path is the pipeline path.
+     * @return The firmware data size, or -1 if the firmware is not downloaded in the pipelined mode.
+     */
+    public static synchronized long getLength(String path) {
+        BflFwGrowingImage image = sImages.get(path);
+
+        if (image != null) {
+            return image.mLength;
+        }
+        final String filePath = sFilePaths.get(path);
+        return (filePath != null) ? new File(filePath).length() : -1;
+    }
+
+    /**
+     * Get the verified firmware file of the pipeline path.
+     * The image is released after every session finishes, so later sessions use the file instead.
+     *
+     * @param path is the pipeline path.
+     * @return The file path, or null if the firmware is not verified.
+     */
+    public static synchronized String resolve(String path) {
+        return sFilePaths.get(path);
+    }
+
+    private static synchronized void removeImage(BflFwGrowingImage image) {
+        if (sImages.get(image.mPath) == image) {
+            sImages.remove(image.mPath);
+        }
+    }
+
+    /**
+     * Copy downloaded bytes into the frames.
+     *
+     * @param data is the downloaded bytes.
+     * @param offset is the start of the bytes in data.
+     * @param count is the count of the bytes.
+     */
+    public synchronized void append(byte[] data, int offset, int count) {
+        if (mFailed) {
+            return;
+        }
+        count = (int) Math.min(count, mLength - mWritten);
+        mSha1.update(data, offset, count);
+
+        while (count > 0) {
+            final int frame = (int) (mWritten / BflFwUploadService.PURE_EACH_CONN_DATA_SIZE);
+            final int inFrame = (int) (mWritten % BflFwUploadService.PURE_EACH_CONN_DATA_SIZE);
+            final int size = Math.min(count, BflFwUploadService.PURE_EACH_CONN_DATA_SIZE - inFrame);
+            final int position = frame * BflFwUploadService.EACH_CONN_DATA_SIZE + BflFwUploadService.EACH_CONN_DATA_INFO + inFrame;
+
+            ByteBuffer target = mFramedData.duplicate();
+            target.position(position);
+            target.put(data, offset, size);
+
+            offset += size;
+            count -= size;
+            mWritten += size;
+        }
+        updateAvailable();
+    }
+
+    /**
+     * Limit the transmission to the bytes verified by the chunk hashes of the manifest.
+     * Bytes after the verified length are held until they are verified.
+     *
+     * @param length is the length of the leading chunks which are all verified.
+     * @see kr.co.sevencore.blefotalib.BflFwManifest.ChunkVerifier
+     */
+    public synchronized void setVerifiedLength(long length) {
+        mVerifiedLength = length;
+        updateAvailable();
+    }
+
+    private void updateAvailable() {
+        mAvailable = Math.min(mWritten, mVerifiedLength);
+        notifyAll();
+    }
+
+    /**
+     * Get downloaded bytes.
+     *
+     * @return Downloaded bytes without sequence information.
+     */
+    public synchronized long getWrittenLength() {
+        return mWritten;
+    }
+
+    /**
+     * Mark the downloaded firmware verified.
+     *
+     * @param filePath is the location of the verified firmware file.
+     */
+    public void finish(String filePath) {
+        synchronized (this) {
+            if (mFailed || mWritten != mLength) {
+                Log.e(BLE_FOTA_TAG, "Pipelined firmware is not complete: " + mWritten + "/" + mLength);
+                mFailed = true;
+            } else {
+                mDigest = mSha1.digest();
+                mFilePath = filePath;
+                mAvailable = mLength;
+            }
+            notifyAll();
+        }
+
+        final String verifiedPath = getFilePath();
+
+        if (verifiedPath != null) {
+            synchronized (BflFwGrowingImage.class) {
+                sFilePaths.put(mPath, verifiedPath);
+            }
+        }
+        releaseIfUnused();
+    }
+
+    /**
+     * Mark the download failed. Waiting uploads are stopped.
+     */
+    public void fail() {
+        synchronized (this) {
+            mFailed = true;
+            notifyAll();
+        }
+        releaseIfUnused();
+    }
+
+    private void releaseIfUnused() {
+        synchronized (BflFwGrowingImage.class) {
+            if (mRefCount == 0) {
+                removeImage(this);
+            }
+        }
+    }
+
+    private synchronized boolean isFinished() {
+        return mFailed || mDigest != null;
+    }
+
+    /**
+     * Wait until every byte of the frame is downloaded.
+     *
+     * @param frame is the index of the frame.
+     * @return true, if the frame is available. false: The download failed or the thread is interrupted.
+     */
+    public synchronized boolean awaitFrame(int frame) {
+        final long frameEnd = Math.min(mLength, (long) (frame + 1) * BflFwUploadService.PURE_EACH_CONN_DATA_SIZE);
+
+        try {
+            while (mAvailable < frameEnd && !mFailed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !mFailed;
+    }
+
+    /**
+     * Wait until the downloaded firmware is verified.
+     *
+     * @param timeout is the maximum waiting time in milliseconds.
+     * @return The SHA-1 checksum data, or null if the firmware is not verified.
+     */
+    public synchronized byte[] awaitDigest(long timeout) {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            while (mDigest == null && !mFailed) {
+                final long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (mDigest != null) ? mDigest.clone() : null;
+    }
+
+    /**
+     * Get the location of the verified firmware file.
+     *
+     * @return The file path, or null if the firmware is not verified.
+     */
+    public synchronized String getFilePath() {
+        return mFilePath;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Get a read-only view of the framed firmware data.
+     * Each view has an independent position, so a view is used by one session.
+     *
+     * @return The read-only view starting at the first frame.
+     */
+    public ByteBuffer getFramedData() {
+        return mFramedData.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,82 @@
+package kr.co.sevencore.blefotalib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BflFwImageGroup.java
+ * BLE FOTA Library devices sharing the same firmware image.
+ * The fleet information is grouped by distinct image, so each image is downloaded once for the campaign.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-19
+ * @see kr.co.sevencore.blefotalib.BflFwDownloader
+ * @see kr.co.sevencore.blefotalib.BflFwMetadata
+ */
+public class BflFwImageGroup {
+    private final static String BLE_FOTA_TAG = BflFwImageGroup.class.getSimpleName();
+
+    private final String mProductName;
+    private final String mVersion;
+    private final String mUrl;          // Full download URL of the firmware.
+    private final long mSize;           // Firmware data size. -1: Not provided.
+    private final String mHash;         // SHA-256 hex string. null: Not provided.
+    private final ArrayList<String> mMacAddresses = new ArrayList<String>();
+
+
+    public BflFwImageGroup(String productName, String version, String url, long size, String hash) {
+        mProductName = productName;
+        mVersion = version;
+        mUrl = url;
+        mSize = size;
+        mHash = hash;
+    }
+
+    /**
+     * Make the key of the distinct image.
+     * The content hash is used if it is provided, otherwise the download URL is used.
+     *
+     * @param metadata is the firmware metadata of a device.
+     * @return The image key.
+     */
+    public static String makeKey(BflFwMetadata metadata) {
+        return (metadata.getHash() != null) ? metadata.getHash().toLowerCase() : metadata.getUrl();
+    }
+
+    void addMacAddress(String macAddress) {
+        mMacAddresses.add(macAddress);
+    }
+
+    public String getProductName() {
+        return mProductName;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    /**
+     * Get MAC addresses of the devices using the image.
+     *
+     * @return The read-only list of MAC addresses.
+     */
+    public List<String> getMacAddresses() {
+        return Collections.unmodifiableList(mMacAddresses);
+    }
+}
@@ -0,0 +1,253 @@
+package kr.co.sevencore.blefotalib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BflFwImageStore.java
+ * BLE FOTA Library shared firmware image store.
+ * Each firmware image is loaded and framed once, and it is shared by every upload session.
+ * Images are keyed by content hash and reference counted,
+ * so the image is released when the last session finishes.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-05
+ * @see kr.co.sevencore.blefotalib.BflFwUploadService
+ */
+public class BflFwImageStore {
+    private final static String BLE_FOTA_TAG = BflFwImageStore.class.getSimpleName();
+
+    private static HashMap<String, FirmwareImage> sImages = new HashMap<String, FirmwareImage>(); // Images by content hash.
+    private static HashMap<String, String> sPathIndex = new HashMap<String, String>();          // Content hash by file state.
+
+    private final static int MAX_DIGESTS = 64;
+    // Checksum data by file state. It is kept after the image is released.
+    private static LinkedHashMap<String, byte[]> sDigests = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_DIGESTS;
+        }
+    };
+
+
+    /**
+     * Framed firmware image shared by upload sessions.
+     */
+    public static class FirmwareImage {
+        private final String mHash;          // Content hash (SHA-1 hex string).
+        private final byte[] mDigest;        // SHA-1 digest of the firmware data used as checksum data.
+        private final long mLength;          // Firmware data size without sequence information.
+        private final ByteBuffer mFramedData; // Firmware data including sequence information of each connection event.
+        private int mRefCount = 0;
+
+        FirmwareImage(String hash, byte[] digest, long length, ByteBuffer framedData) {
+            mHash = hash;
+            mDigest = digest;
+            mLength = length;
+            mFramedData = framedData;
+        }
+
+        /**
+         * Get the content hash of the image.
+         *
+         * @return SHA-1 hex string.
+         */
+        public String getHash() {
+            return mHash;
+        }
+
+        /**
+         * Get the checksum data of the image.
+         *
+         * @return A copy of SHA-1 digest.
+         */
+        public byte[] getDigest() {
+            return mDigest.clone();
+        }
+
+        /**
+         * Get the firmware data size without sequence information.
+         *
+         * @return The firmware data size.
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Get a read-only view of the framed firmware data.
+         * Each view has an independent position, so a view is used by one session.
+         *
+         * @return The read-only view starting at the first frame.
+         */
+        public ByteBuffer getFramedData() {
+            return mFramedData.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Acquire the framed image of the firmware data file.
+     * The image is loaded and framed only if no session holds the same content.
+     * Every acquired image has to be returned by release method.
+     * The image of a bundle path is mapped from the offline firmware bundle.
+     *
+     * @param filePath is the location of the firmware data, or the bundle path.
+     * @return The shared image, or null if the file is not readable.
+     * @see kr.co.sevencore.blefotalib.BflFwBundle
+     */
+    public static synchronized FirmwareImage acquire(String filePath) {
+        final boolean bundled = BflFwBundle.isBundlePath(filePath);
+        String pathKey = makePathKey(filePath);
+
+        if (pathKey == null) {
+            return null;
+        }
+        String hash = sPathIndex.get(pathKey);
+        FirmwareImage image = (hash != null) ? sImages.get(hash) : null;
+
+        if (image == null) {
+            image = bundled ? BflFwBundle.readImage(filePath) : loadImage(new File(filePath));
+
+            if (image == null) {
+                return null;
+            }
+
+            FirmwareImage sharedImage = sImages.get(image.mHash);
+
+            if (sharedImage != null) {
+                // The same content is already held by another file.
+                image = sharedImage;
+            } else {
+                sImages.put(image.mHash, image);
+                Log.d(BLE_FOTA_TAG, "Firmware image is loaded: " + image.mHash);
+            }
+            sPathIndex.put(pathKey, image.mHash);
+            sDigests.put(pathKey, image.mDigest);
+        }
+        image.mRefCount++;
+        return image;
+    }
+
+    /**
+     * Get the checksum data of the firmware data file.
+     * The checksum data is kept after the image is released,
+     * so the firmware data is not loaded & framed again only for the checksum data.
+     *
+     * @param filePath is the location of the firmware data, or the bundle path.
+     * @return A copy of SHA-1 digest, or null if the file is not readable.
+     */
+    public static synchronized byte[] getDigest(String filePath) {
+        final String pathKey = makePathKey(filePath);
+
+        if (pathKey == null) {
+            return null;
+        }
+        byte[] digest = sDigests.get(pathKey);
+
+        if (digest == null) {
+            FirmwareImage image = acquire(filePath);
+
+            if (image == null) {
+                return null;
+            }
+            digest = image.mDigest;
+            release(image);
+        }
+        return digest.clone();
+    }
+
+    /**
+     * Return the image acquired by acquire method.
+     * When the last session returns the image, the image is released.
+     *
+     * @param image is the shared image.
+     */
+    public static synchronized void release(FirmwareImage image) {
+        if (image == null || image.mRefCount <= 0) {
+            return;
+        }
+
+        if (--image.mRefCount == 0) {
+            sImages.remove(image.mHash);
+
+            // Drop stale file states of the released image.
+            sPathIndex.values().removeAll(Collections.singleton(image.mHash));
+            Log.d(BLE_FOTA_TAG, "Firmware image is released: " + image.mHash);
+        }
+    }
+
+    /**
+     * Make the key of the file state.
+     * A modified file makes a different key, so it is loaded again.
+     *
+     * @param filePath is the location of the firmware data, or the bundle path.
+     * @return Path, size & modified time, or null if the bundled image does not exist.
+     */
+    private static String makePathKey(String filePath) {
+        if (BflFwBundle.isBundlePath(filePath)) {
+            return BflFwBundle.makePathKey(filePath);
+        }
+        File binFile = new File(filePath);
+        return binFile.getAbsolutePath() + ":" + binFile.length() + ":" + binFile.lastModified();
+    }
+
+    /**
+     * Map the frame cache of the firmware data file,
+     * or read, hash & frame the firmware data file and persist the frame cache.
+     *
+     * @param binFile is the firmware data file.
+     * @return The new image, or null if the file is not readable.
+     * @see kr.co.sevencore.blefotalib.BflFwFrameCache
+     */
+    private static FirmwareImage loadImage(File binFile) {
+        FirmwareImage cachedImage = BflFwFrameCache.read(binFile);
+
+        if (cachedImage != null) {
+            return cachedImage;
+        }
+
+        long length = binFile.length();
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        int numRead;
+
+        try {
+            InputStream firmwareInputStream = new FileInputStream(binFile);
+            try {
+                while (offset < bytes.length &&
+                        (numRead = firmwareInputStream.read(bytes, offset, bytes.length - offset)) >= 0) {
+                    offset += numRead;
+                }
+            } finally {
+                firmwareInputStream.close();
+            }
+
+            byte[] digest = MessageDigest.getInstance("SHA1").digest(bytes);
+            byte[] framedData = BflFwUploadService.addSequenceInfo(bytes, length);
+            BflFwFrameCache.write(binFile, digest, length, framedData);
+
+            return new FirmwareImage(BflUtil.toHexString(digest), digest, length, ByteBuffer.wrap(framedData));
+
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to read the firmware data: " + binFile.getPath());
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,401 @@
+package kr.co.sevencore.blefotalib;
+
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BflFwManifest.java
+ * BLE FOTA Library signed firmware manifest.
+ * The manifest is served next to each image and gives the image size, SHA-256 of the whole image
+ * and SHA-256 of each fixed-size chunk, so the downloader verifies chunks as they arrive
+ * and fetches only corrupted chunks again, before any bad byte is transmitted to the device.
+ * If the public key is set, the manifest has to be signed by the firmware managing server.
+ *
+ * Document format (served at "<firmware URL>.manifest"):
+ * <manifest>
+ *     <size>131072</size>
+ *     <hash>SHA-256 hex string of the image</hash>
+ *     <chunksize>16384</chunksize>
+ *     <chunk>SHA-256 hex string of the first chunk</chunk>
+ *     ...
+ *     <signature>Hex string of the signature</signature>
+ * </manifest>
+ *
+ * The signature covers the UTF-8 lines "size", "hash", "chunksize" & every chunk hash, each ending with '\n'.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-28
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ * @see kr.co.sevencore.blefotalib.BflFwCache
+ */
+public class BflFwManifest {
+    private final static String BLE_FOTA_TAG = BflFwManifest.class.getSimpleName();
+
+    public final static String MANIFEST_FILE_EXT = ".manifest";
+    public final static int MAX_CHUNK_SIZE = 1024 * 1024;   // Each chunk is fetched again in memory.
+
+    private final static String TAG_SIZE = "size";
+    private final static String TAG_HASH = "hash";
+    private final static String TAG_CHUNK_SIZE = "chunksize";
+    private final static String TAG_CHUNK = "chunk";
+    private final static String TAG_SIGNATURE = "signature";
+
+    private static PublicKey sPublicKey;                    // null: The signature is not required.
+    private static String sSignatureAlgorithm = "SHA256withRSA";
+
+    private long mSize = -1;
+    private String mHash;
+    private int mChunkSize = -1;
+    private ArrayList<String> mChunkHashes = new ArrayList<String>();
+    private String mSignature;       // Hex string. null: Not signed.
+
+
+    private BflFwManifest() {}
+
+    /**
+     * Create the unsigned manifest of known values.
+     * It is used by unit tests, which can not use XmlPullParser of the platform.
+     *
+     * @param size is the image size.
+     * @param hash is SHA-256 hex string of the image.
+     * @param chunkSize is the chunk size.
+     * @param chunkHashes is SHA-256 hex strings of the chunks.
+     */
+    BflFwManifest(long size, String hash, int chunkSize, List<String> chunkHashes) {
+        mSize = size;
+        mHash = hash;
+        mChunkSize = chunkSize;
+        mChunkHashes.addAll(chunkHashes);
+    }
+
+    /**
+     * Set the public key of the firmware managing server.
+     * Once it is set, images without a correctly signed manifest are not downloaded.
+     *
+     * @param publicKey is the public key. null: The signature is not required.
+     * @param algorithm is the signature algorithm. e.g. "SHA256withRSA", "SHA256withECDSA".
+     */
+    public static synchronized void setPublicKey(PublicKey publicKey, String algorithm) {
+        sPublicKey = publicKey;
+
+        if (algorithm != null) {
+            sSignatureAlgorithm = algorithm;
+        }
+    }
+
+    /**
+     * Check the signed manifest is required for every image.
+     *
+     * @return true, if the public key is set.
+     */
+    public static synchronized boolean isSignatureRequired() {
+        return sPublicKey != null;
+    }
+
+    /**
+     * Read the manifest document.
+     *
+     * @param xmlPullParser is the parser of which input is set.
+     * @return The manifest, or null if the document is incomplete or inconsistent.
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public static BflFwManifest parse(XmlPullParser xmlPullParser) throws XmlPullParserException, IOException {
+        BflFwManifest manifest = new BflFwManifest();
+        int eventType = xmlPullParser.getEventType();
+
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                final String startTag = xmlPullParser.getName();
+
+                if (TAG_SIZE.equals(startTag)) {
+                    manifest.mSize = parseLong(xmlPullParser.nextText());
+                } else if (TAG_HASH.equals(startTag)) {
+                    manifest.mHash = xmlPullParser.nextText().trim().toLowerCase();
+                } else if (TAG_CHUNK_SIZE.equals(startTag)) {
+                    manifest.mChunkSize = (int) Math.min(Integer.MAX_VALUE, parseLong(xmlPullParser.nextText()));
+                } else if (TAG_CHUNK.equals(startTag)) {
+                    manifest.mChunkHashes.add(xmlPullParser.nextText().trim().toLowerCase());
+                } else if (TAG_SIGNATURE.equals(startTag)) {
+                    manifest.mSignature = xmlPullParser.nextText().trim();
+                }
+            }
+            eventType = xmlPullParser.next();
+        }
+
+        if (manifest.mSize <= 0 || manifest.mHash == null || manifest.mChunkSize <= 0 ||
+                manifest.mChunkSize > MAX_CHUNK_SIZE ||
+                manifest.mChunkHashes.size() != (manifest.mSize + manifest.mChunkSize - 1) / manifest.mChunkSize) {
+            Log.e(BLE_FOTA_TAG, "Firmware manifest is invalid.");
+            return null;
+        }
+        return manifest;
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Verify the signature of the manifest by the public key.
+     *
+     * @return true, if the signature is valid or the signature is not required.
+     */
+    public boolean verifySignature() {
+        if (!isSignatureRequired()) {
+            return true;
+        }
+        final byte[] signature = BflUtil.fromHexString(mSignature);
+
+        if (signature == null) {
+            Log.e(BLE_FOTA_TAG, "Firmware manifest is not signed.");
+            return false;
+        }
+
+        try {
+            return verifySignedData(getSignedData(), signature);
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Verify the signature of the data by the public key of the firmware managing server.
+     * The offline firmware bundle index is signed by the same key.
+     *
+     * @param data is the signed data.
+     * @param signature is the signature of the data.
+     * @return true, if the signature is valid or the signature is not required.
+     * @see kr.co.sevencore.blefotalib.BflFwBundle
+     */
+    static boolean verifySignedData(byte[] data, byte[] signature) {
+        final PublicKey publicKey;
+        final String algorithm;
+
+        synchronized (BflFwManifest.class) {
+            publicKey = sPublicKey;
+            algorithm = sSignatureAlgorithm;
+        }
+
+        if (publicKey == null) {
+            return true;
+        }
+
+        if (signature == null) {
+            return false;
+        }
+
+        try {
+            Signature verifier = Signature.getInstance(algorithm);
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
+
+        } catch (GeneralSecurityException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to verify the signature.");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private byte[] getSignedData() throws UnsupportedEncodingException {
+        StringBuilder signedData = new StringBuilder();
+        signedData.append(mSize).append('\n');
+        signedData.append(mHash).append('\n');
+        signedData.append(mChunkSize).append('\n');
+
+        for (String chunkHash : mChunkHashes) {
+            signedData.append(chunkHash).append('\n');
+        }
+        return signedData.toString().getBytes("UTF-8");
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunkCount() {
+        return mChunkHashes.size();
+    }
+
+    public long getChunkStart(int index) {
+        return (long) index * mChunkSize;
+    }
+
+    public int getChunkLength(int index) {
+        return (int) Math.min(mChunkSize, mSize - getChunkStart(index));
+    }
+
+    /**
+     * Check the chunk data.
+     *
+     * @param index is the index of the chunk.
+     * @param data is the chunk data.
+     * @param length is the length of the chunk data.
+     * @return true, if the chunk data is matched with the manifest.
+     */
+    public boolean isChunkValid(int index, byte[] data, int length) {
+        if (length != getChunkLength(index)) {
+            return false;
+        }
+        MessageDigest messageDigest = newSha256();
+        messageDigest.update(data, 0, length);
+        return mChunkHashes.get(index).equals(BflUtil.toHexString(messageDigest.digest()));
+    }
+
+    /**
+     * Check every chunk of the file.
+     *
+     * @param file is the downloaded firmware file.
+     * @return Indexes of the corrupted or missing chunks.
+     * @throws IOException
+     */
+    public List<Integer> verifyFile(File file) throws IOException {
+        ChunkVerifier chunkVerifier = newChunkVerifier();
+        InputStream fileInput = new FileInputStream(file);
+        byte[] buffer = BflBufferPool.acquire();
+        int count;
+
+        try {
+            while ((count = fileInput.read(buffer)) != -1) {
+                chunkVerifier.update(buffer, 0, count);
+            }
+        } finally {
+            BflBufferPool.release(buffer);
+            fileInput.close();
+        }
+        return chunkVerifier.finish();
+    }
+
+    /**
+     * Create a verifier of the streamed image.
+     *
+     * @return The chunk verifier starting at the first byte.
+     */
+    public ChunkVerifier newChunkVerifier() {
+        return new ChunkVerifier();
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported.", e);
+        }
+    }
+
+    /**
+     * Verifier of the chunks of a streamed image.
+     * Each chunk is checked as soon as its last byte arrives.
+     */
+    public class ChunkVerifier {
+        private final MessageDigest mMessageDigest = newSha256();
+        private final ArrayList<Integer> mBadChunks = new ArrayList<Integer>();
+        private long mPosition = 0;
+        private int mChunkIndex = 0;
+        private long mVerifiedLength = 0;    // Length of the leading chunks which are all verified.
+
+        private ChunkVerifier() {}
+
+        /**
+         * Check the next bytes of the image.
+         *
+         * @param data is the bytes.
+         * @param offset is the start of the bytes in data.
+         * @param count is the count of the bytes.
+         */
+        public void update(byte[] data, int offset, int count) {
+            while (count > 0 && mChunkIndex < getChunkCount()) {
+                final long chunkEnd = getChunkStart(mChunkIndex) + getChunkLength(mChunkIndex);
+                final int size = (int) Math.min(count, chunkEnd - mPosition);
+
+                mMessageDigest.update(data, offset, size);
+                offset += size;
+                count -= size;
+                mPosition += size;
+
+                if (mPosition == chunkEnd) {
+                    if (mChunkHashes.get(mChunkIndex).equals(BflUtil.toHexString(mMessageDigest.digest()))) {
+                        if (mBadChunks.isEmpty()) {
+                            mVerifiedLength = chunkEnd;
+                        }
+                    } else {
+                        Log.w(BLE_FOTA_TAG, "Firmware chunk is corrupted: " + mChunkIndex);
+                        mBadChunks.add(mChunkIndex);
+                    }
+                    mChunkIndex++;
+                }
+            }
+        }
+
+        /**
+         * Get the length of the leading chunks which are all verified.
+         * Bytes after the first corrupted chunk are not verified yet.
+         *
+         * @return The verified length.
+         */
+        public long getVerifiedLength() {
+            return mVerifiedLength;
+        }
+
+        public int getBadChunkCount() {
+            return mBadChunks.size();
+        }
+
+        /**
+         * Finish the image. Chunks not received are regarded as corrupted.
+         *
+         * @return Indexes of the corrupted or missing chunks.
+         */
+        public List<Integer> finish() {
+            ArrayList<Integer> badChunks = new ArrayList<Integer>(mBadChunks);
+
+            for (int index = mChunkIndex; index < getChunkCount(); index++) {
+                badChunks.add(index);
+            }
+            return badChunks;
+        }
+
+        /**
+         * Restart the verification from the first byte.
+         */
+        public void reset() {
+            mMessageDigest.reset();
+            mBadChunks.clear();
+            mPosition = 0;
+            mChunkIndex = 0;
+            mVerifiedLength = 0;
+        }
+    }
+}
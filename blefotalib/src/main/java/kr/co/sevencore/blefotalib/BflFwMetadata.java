@@ -0,0 +1,157 @@
+package kr.co.sevencore.blefotalib;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * BflFwMetadata.java
+ * BLE FOTA Library firmware metadata of a device.
+ * Product name, firmware version, download URL, size & hash are received in one document,
+ * so the download is decided by a single round trip to the firmware managing server.
+ *
+ * Document format:
+ * <firmwareinfo>
+ *     <mac>80:EA:CA:00:00:01</mac>
+ *     <product>PRODUCT</product>
+ *     <firmwareversion>01-00-02</firmwareversion>
+ *     <firmwareurl>http://server/BLE_FIRMWARE/PRODUCT/01-00-02.BIN</firmwareurl>
+ *     <firmwaresize>131072</firmwaresize>
+ *     <firmwarehash>SHA-256 hex string</firmwarehash>
+ * </firmwareinfo>
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-18
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflFwMetadata {
+    private final static String BLE_FOTA_TAG = BflFwMetadata.class.getSimpleName();
+
+    private final static String TAG_MAC = "mac";
+    private final static String TAG_PRODUCT = "product";
+    private final static String TAG_FW_VER = "firmwareversion";
+    private final static String TAG_FW_URL = "firmwareurl";
+    private final static String TAG_FW_SIZE = "firmwaresize";
+    private final static String TAG_FW_HASH = "firmwarehash";
+
+    private String mMacAddress;
+    private String mProductName;
+    private String mVersion;
+    private String mUrl;          // Full download URL of the firmware.
+    private long mSize = -1;      // Firmware data size. -1: Not provided.
+    private String mHash;         // SHA-256 hex string. null: Not provided.
+
+
+    private BflFwMetadata() {}
+
+    BflFwMetadata(String macAddress, String productName, String version, String url, long size, String hash) {
+        mMacAddress = macAddress;
+        mProductName = productName;
+        mVersion = version;
+        mUrl = url;
+        mSize = size;
+        mHash = hash;
+    }
+
+    /**
+     * Read the metadata document.
+     *
+     * @param xmlPullParser is the parser of which input is set.
+     * @return The metadata, or null if the document has no product name, firmware version or download URL.
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public static BflFwMetadata parse(XmlPullParser xmlPullParser) throws XmlPullParserException, IOException {
+        BflFwMetadata metadata = readElement(xmlPullParser, null);
+        return metadata.isComplete() ? metadata : null;
+    }
+
+    /**
+     * Read the metadata fields until the end tag.
+     * It is used to read each device element of the fleet information document.
+     *
+     * @param xmlPullParser is the parser positioned in the element.
+     * @param endTag is the name of the element. null: Read until the end of the document.
+     * @return The metadata. It may not be complete.
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static BflFwMetadata readElement(XmlPullParser xmlPullParser, String endTag)
+            throws XmlPullParserException, IOException {
+        BflFwMetadata metadata = new BflFwMetadata();
+        int eventType = xmlPullParser.getEventType();
+
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                final String startTag = xmlPullParser.getName();
+
+                if (TAG_MAC.equals(startTag)) {
+                    metadata.mMacAddress = trim(xmlPullParser.nextText());
+                } else if (TAG_PRODUCT.equals(startTag)) {
+                    metadata.mProductName = trim(xmlPullParser.nextText());
+                } else if (TAG_FW_VER.equals(startTag)) {
+                    metadata.mVersion = trim(xmlPullParser.nextText());
+                } else if (TAG_FW_URL.equals(startTag)) {
+                    metadata.mUrl = trim(xmlPullParser.nextText());
+                } else if (TAG_FW_SIZE.equals(startTag)) {
+                    try {
+                        metadata.mSize = Long.parseLong(trim(xmlPullParser.nextText()));
+                    } catch (NumberFormatException e) {
+                        metadata.mSize = -1;
+                    }
+                } else if (TAG_FW_HASH.equals(startTag)) {
+                    metadata.mHash = trim(xmlPullParser.nextText());
+                }
+            } else if (eventType == XmlPullParser.END_TAG && endTag != null && endTag.equals(xmlPullParser.getName())) {
+                break;
+            }
+            eventType = xmlPullParser.next();
+        }
+        return metadata;
+    }
+
+    /**
+     * Check the metadata has enough information to download the firmware.
+     *
+     * @return true, if product name, firmware version & download URL are provided.
+     */
+    public boolean isComplete() {
+        return mProductName != null && mVersion != null && mUrl != null;
+    }
+
+    private static String trim(String text) {
+        if (text == null) {
+            return null;
+        }
+        text = text.trim();
+        return (text.length() > 0) ? text : null;
+    }
+
+    public String getMacAddress() {
+        return mMacAddress;
+    }
+
+    public String getProductName() {
+        return mProductName;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+}
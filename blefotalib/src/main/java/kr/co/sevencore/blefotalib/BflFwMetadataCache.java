@@ -0,0 +1,331 @@
+package kr.co.sevencore.blefotalib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * BflFwMetadataCache.java
+ * BLE FOTA Library firmware metadata cache.
+ * Metadata answers of the server are kept in memory & on disk by MAC address of the device.
+ * A fresh answer is used without the network, and a stale answer is revalidated by a conditional request.
+ * "Unknown device" answers are cached for a shorter period, so unregistered devices are not queried on every connection.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-21
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ * @see kr.co.sevencore.blefotalib.BflFwMetadata
+ */
+public class BflFwMetadataCache {
+    private final static String BLE_FOTA_TAG = BflFwMetadataCache.class.getSimpleName();
+
+    public final static long DEFAULT_TTL = 10 * 60 * 1000;          // Period of a fresh metadata answer.
+    public final static long DEFAULT_NEGATIVE_TTL = 60 * 1000;      // Period of a fresh "unknown device" answer.
+    private final static long MAX_ENTRY_AGE = 7 * 24 * 60 * 60 * 1000L; // Entries are dropped after a week.
+
+    private final static String CACHE_FILE = "bfl_metadata";
+    private final static String FIELD_PRODUCT = ".product";
+    private final static String FIELD_VERSION = ".version";
+    private final static String FIELD_URL = ".url";
+    private final static String FIELD_SIZE = ".size";
+    private final static String FIELD_HASH = ".hash";
+    private final static String FIELD_ETAG = ".etag";
+    private final static String FIELD_LAST_MODIFIED = ".modified";
+    private final static String FIELD_FETCHED = ".fetched";
+    private final static String FIELD_NEGATIVE = ".negative";
+
+    private static BflFwMetadataCache sInstance;
+
+    private final File mCacheFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>(); // Entries by MAC address.
+    private long mTtl = DEFAULT_TTL;
+    private long mNegativeTtl = DEFAULT_NEGATIVE_TTL;
+
+
+    /**
+     * Cached answer of the server.
+     */
+    public static class Entry {
+        private final BflFwMetadata mMetadata;   // null: Unknown device.
+        private final String mETag;              // Validators of the answer. null: Not provided.
+        private final String mLastModified;
+        private long mFetched;                   // Wall clock time of the last validation.
+
+        Entry(BflFwMetadata metadata, String eTag, String lastModified, long fetched) {
+            mMetadata = metadata;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mFetched = fetched;
+        }
+
+        /**
+         * Get the metadata of the answer.
+         *
+         * @return The metadata, or null if the device is unknown to the server.
+         */
+        public BflFwMetadata getMetadata() {
+            return mMetadata;
+        }
+
+        public boolean isNegative() {
+            return mMetadata == null;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+    }
+
+
+    private BflFwMetadataCache(Context context) {
+        mCacheFile = new File(context.getCacheDir(), CACHE_FILE);
+        load();
+    }
+
+    /**
+     * Get the firmware metadata cache of the application.
+     *
+     * @param context is used to get the cache directory.
+     * @return The firmware metadata cache.
+     */
+    public static synchronized BflFwMetadataCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BflFwMetadataCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Customize the periods of fresh answers.
+     *
+     * @param ttl is the period of a metadata answer in milliseconds. 0: Always revalidated.
+     * @param negativeTtl is the period of an "unknown device" answer in milliseconds. 0: Not cached.
+     */
+    public synchronized void setTtl(long ttl, long negativeTtl) {
+        mTtl = Math.max(0, ttl);
+        mNegativeTtl = Math.max(0, negativeTtl);
+    }
+
+    /**
+     * Get the cached answer of the device.
+     *
+     * @param macAddress is MAC address of the device.
+     * @return The cached answer, or null if the device is not cached.
+     */
+    public synchronized Entry get(String macAddress) {
+        return (macAddress != null) ? mEntries.get(macAddress.toUpperCase()) : null;
+    }
+
+    /**
+     * Get MAC addresses of every cached device.
+     * They are the known devices refreshed by the background prefetch.
+     *
+     * @return MAC addresses of the cached devices.
+     */
+    public synchronized String[] getMacAddresses() {
+        return mEntries.keySet().toArray(new String[mEntries.size()]);
+    }
+
+    /**
+     * Check the answer is used without the network.
+     *
+     * @param entry is the cached answer.
+     * @return true, if the answer is fresh.
+     */
+    public synchronized boolean isFresh(Entry entry) {
+        final long age = System.currentTimeMillis() - entry.mFetched;
+        return age >= 0 && age < (entry.isNegative() ? mNegativeTtl : mTtl);
+    }
+
+    /**
+     * Cache the metadata answer.
+     *
+     * @param macAddress is MAC address of the device.
+     * @param metadata is the metadata of the answer.
+     * @param eTag is ETag of the answer. null: Not provided.
+     * @param lastModified is Last-Modified of the answer. null: Not provided.
+     * @return The cached answer.
+     */
+    public synchronized Entry put(String macAddress, BflFwMetadata metadata, String eTag, String lastModified) {
+        Entry entry = new Entry(metadata, eTag, lastModified, System.currentTimeMillis());
+        mEntries.put(macAddress.toUpperCase(), entry);
+        save();
+        return entry;
+    }
+
+    /**
+     * Cache the metadata answers of many devices, e.g. a batch of the fleet information.
+     * The cache file is written once for the batch.
+     *
+     * @param metadataList is the firmware metadata of the devices.
+     */
+    public synchronized void putAll(List<BflFwMetadata> metadataList) {
+        if (metadataList.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+
+        for (BflFwMetadata metadata : metadataList) {
+            mEntries.put(metadata.getMacAddress().toUpperCase(), new Entry(metadata, null, null, now));
+        }
+        save();
+    }
+
+    /**
+     * Cache the "unknown device" answer.
+     *
+     * @param macAddress is MAC address of the device.
+     */
+    public synchronized void putNegative(String macAddress) {
+        if (macAddress == null || mNegativeTtl == 0) {
+            return;
+        }
+        mEntries.put(macAddress.toUpperCase(), new Entry(null, null, null, System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Mark the answer fresh again, when the server answers "not modified".
+     *
+     * @param entry is the revalidated answer.
+     */
+    public synchronized void refresh(Entry entry) {
+        entry.mFetched = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * Remove every cached answer.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mCacheFile.delete();
+    }
+
+    private void load() {
+        if (!mCacheFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+
+        try {
+            InputStream cacheInput = new FileInputStream(mCacheFile);
+            try {
+                properties.load(cacheInput);
+            } finally {
+                cacheInput.close();
+            }
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to read the firmware metadata cache.");
+            e.printStackTrace();
+            return;
+        }
+        final long now = System.currentTimeMillis();
+
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.endsWith(FIELD_FETCHED)) {
+                continue;
+            }
+            final String macAddress = key.substring(0, key.length() - FIELD_FETCHED.length());
+            final long fetched = parseLong(properties.getProperty(key), 0);
+
+            if (now - fetched > MAX_ENTRY_AGE) {
+                continue;
+            }
+            BflFwMetadata metadata = null;
+
+            if (!Boolean.parseBoolean(properties.getProperty(macAddress + FIELD_NEGATIVE))) {
+                metadata = new BflFwMetadata(macAddress,
+                        properties.getProperty(macAddress + FIELD_PRODUCT),
+                        properties.getProperty(macAddress + FIELD_VERSION),
+                        properties.getProperty(macAddress + FIELD_URL),
+                        parseLong(properties.getProperty(macAddress + FIELD_SIZE), -1),
+                        properties.getProperty(macAddress + FIELD_HASH));
+
+                if (!metadata.isComplete()) {
+                    continue;
+                }
+            }
+            mEntries.put(macAddress, new Entry(metadata, properties.getProperty(macAddress + FIELD_ETAG),
+                    properties.getProperty(macAddress + FIELD_LAST_MODIFIED), fetched));
+        }
+    }
+
+    /**
+     * Write the entries into a temporary file & rename it, so a crash never leaves a broken cache.
+     */
+    private void save() {
+        Properties properties = new Properties();
+
+        for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+            final String macAddress = item.getKey();
+            final Entry entry = item.getValue();
+
+            properties.setProperty(macAddress + FIELD_FETCHED, Long.toString(entry.mFetched));
+
+            if (entry.isNegative()) {
+                properties.setProperty(macAddress + FIELD_NEGATIVE, Boolean.TRUE.toString());
+                continue;
+            }
+            final BflFwMetadata metadata = entry.mMetadata;
+            properties.setProperty(macAddress + FIELD_PRODUCT, metadata.getProductName());
+            properties.setProperty(macAddress + FIELD_VERSION, metadata.getVersion());
+            properties.setProperty(macAddress + FIELD_URL, metadata.getUrl());
+            properties.setProperty(macAddress + FIELD_SIZE, Long.toString(metadata.getSize()));
+
+            if (metadata.getHash() != null) {
+                properties.setProperty(macAddress + FIELD_HASH, metadata.getHash());
+            }
+
+            if (entry.mETag != null) {
+                properties.setProperty(macAddress + FIELD_ETAG, entry.mETag);
+            }
+
+            if (entry.mLastModified != null) {
+                properties.setProperty(macAddress + FIELD_LAST_MODIFIED, entry.mLastModified);
+            }
+        }
+        final File tempFile = new File(mCacheFile.getPath() + ".tmp");
+
+        try {
+            OutputStream cacheOutput = new FileOutputStream(tempFile);
+            try {
+                properties.store(cacheOutput, null);
+            } finally {
+                cacheOutput.close();
+            }
+
+            if (!tempFile.renameTo(mCacheFile)) {
+                Log.e(BLE_FOTA_TAG, "Unable to replace the firmware metadata cache.");
+            }
+        } catch (IOException e) {
+            Log.e(BLE_FOTA_TAG, "Unable to write the firmware metadata cache.");
+            e.printStackTrace();
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return (value != null) ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package kr.co.sevencore.blefotalib;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * BflFwPrefetchJobService.java
+ * BLE FOTA Library firmware prefetch job.
+ * JobScheduler runs the job while the smart device is charging on an unmetered network,
+ * and the prefetch runs in the firmware download service which holds its own wake lock.
+ * The job is kept until the prefetch is finished, so JobScheduler stops it when the conditions are lost.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-27
+ * @see kr.co.sevencore.blefotalib.BflFwPrefetcher
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BflFwPrefetchJobService extends JobService {
+    private final static String BLE_FOTA_TAG = BflFwPrefetchJobService.class.getSimpleName();
+
+    private static BflFwPrefetchJobService sRunningJob;   // Job waiting for the prefetch. null: Not running.
+    private static JobParameters sRunningParams;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(BLE_FOTA_TAG, "Firmware prefetch job is started.");
+
+        synchronized (BflFwPrefetchJobService.class) {
+            sRunningJob = this;
+            sRunningParams = params;
+        }
+
+        if (!BflFwPrefetcher.requestPrefetch(this, true)) {
+            synchronized (BflFwPrefetchJobService.class) {
+                sRunningJob = null;
+                sRunningParams = null;
+            }
+            return false;
+        }
+
+        // The job runs until the download service finishes the prefetch.
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(BLE_FOTA_TAG, "Firmware prefetch job is stopped.");
+
+        // The stopped job is not finished again by the cancelled prefetch.
+        synchronized (BflFwPrefetchJobService.class) {
+            sRunningJob = null;
+            sRunningParams = null;
+        }
+        BflFwTaskExecutor.getInstance().cancel(BflFwDownloadService.PREFETCH_SESSION);
+        return false;
+    }
+
+    /**
+     * Finish the job waiting for the prefetch.
+     * It is called by the firmware download service when the prefetch is finished.
+     */
+    static synchronized void finishJob() {
+        if (sRunningJob != null) {
+            sRunningJob.jobFinished(sRunningParams, false);
+            sRunningJob = null;
+            sRunningParams = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package kr.co.sevencore.blefotalib;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * BflFwPrefetchReceiver.java
+ * BLE FOTA Library power & connectivity receiver of the firmware prefetch.
+ * The running prefetch is stopped when the power is disconnected or the network becomes metered.
+ * Before API 21, the prefetch is started when the smart device is charging on an unmetered network.
+ * It is enabled only while the prefetch is scheduled.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-27
+ * @see kr.co.sevencore.blefotalib.BflFwPrefetcher
+ */
+public class BflFwPrefetchReceiver extends BroadcastReceiver {
+    private final static String BLE_FOTA_TAG = BflFwPrefetchReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+
+        if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+            BflFwTaskExecutor.getInstance().cancel(BflFwDownloadService.PREFETCH_SESSION);
+            return;
+        }
+
+        // Images are not prefetched on a metered network, e.g. WiFi is handed over to the mobile network.
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action) &&
+                !BflFwPrefetcher.isUnmeteredNetworkConnected(context)) {
+            if (BflFwTaskExecutor.getInstance().cancel(BflFwDownloadService.PREFETCH_SESSION) > 0) {
+                Log.d(BLE_FOTA_TAG, "Firmware prefetch is stopped by the metered network.");
+            }
+            return;
+        }
+
+        // JobScheduler checks the conditions on API 21 or later.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP && BflFwPrefetcher.isPrefetchAllowed(context)) {
+            if (BflFwPrefetcher.requestPrefetch(context, false)) {
+                Log.d(BLE_FOTA_TAG, "Firmware prefetch is started by: " + action);
+            }
+        }
+    }
+}
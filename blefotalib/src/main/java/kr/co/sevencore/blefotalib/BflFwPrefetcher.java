@@ -0,0 +1,185 @@
+package kr.co.sevencore.blefotalib;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * BflFwPrefetcher.java
+ * BLE FOTA Library background prefetch of firmware metadata & images.
+ * While the smart device is charging on an unmetered network, the metadata of every known device is refreshed
+ * and the latest images are preloaded into the firmware cache, so field updates start from local storage.
+ * JobScheduler runs the prefetch on API 21 or later, and the power & connectivity broadcasts are used on API 18 ~ 20.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-27
+ * @see kr.co.sevencore.blefotalib.BflFwPrefetchJobService
+ * @see kr.co.sevencore.blefotalib.BflFwPrefetchReceiver
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflFwPrefetcher {
+    private final static String BLE_FOTA_TAG = BflFwPrefetcher.class.getSimpleName();
+
+    public final static long DEFAULT_INTERVAL = 12 * 60 * 60 * 1000;  // Prefetch period: 12 hours.
+
+    private final static int PREFETCH_JOB_ID = 7300;
+    private final static String PREFERENCES_NAME = "bfl_prefetch";
+    private final static String KEY_ENABLED = "enabled";
+    private final static String KEY_INTERVAL = "interval";
+    private final static String KEY_LAST_PREFETCH = "last_prefetch";
+
+
+    /**
+     * Schedule the background prefetch.
+     *
+     * @param context is used to schedule the prefetch.
+     * @param interval is the minimum period between prefetches in milliseconds.
+     */
+    public static void schedule(Context context, long interval) {
+        context = context.getApplicationContext();
+        getPreferences(context).edit()
+                .putBoolean(KEY_ENABLED, true)
+                .putLong(KEY_INTERVAL, interval)
+                .apply();
+
+        // The receiver stops the prefetch when the power is disconnected, and it triggers the prefetch before API 21.
+        setReceiverEnabled(context, true);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context, interval);
+        }
+        Log.i(BLE_FOTA_TAG, "Firmware prefetch is scheduled: " + interval);
+    }
+
+    /**
+     * Cancel the background prefetch. The running prefetch is stopped.
+     *
+     * @param context is used to cancel the prefetch.
+     */
+    public static void cancel(Context context) {
+        context = context.getApplicationContext();
+        getPreferences(context).edit().putBoolean(KEY_ENABLED, false).apply();
+        setReceiverEnabled(context, false);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            cancelJob(context);
+        }
+        BflFwTaskExecutor.getInstance().cancel(BflFwDownloadService.PREFETCH_SESSION);
+    }
+
+    /**
+     * Check the prefetch is scheduled.
+     *
+     * @param context is used to read the prefetch settings.
+     * @return true, if the prefetch is scheduled.
+     */
+    public static boolean isScheduled(Context context) {
+        return getPreferences(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    /**
+     * Check the smart device is charging on an unmetered network.
+     *
+     * @param context is used to get the network & battery state.
+     * @return true, if the prefetch is allowed now.
+     */
+    public static boolean isPrefetchAllowed(Context context) {
+        if (!isUnmeteredNetworkConnected(context)) {
+            return false;
+        }
+
+        // Sticky battery broadcast is read without a receiver.
+        Intent batteryStatus = context.getApplicationContext()
+                .registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Check the smart device is connected to an unmetered network.
+     *
+     * @param context is used to get the network state.
+     * @return true, if the network is connected & not metered.
+     */
+    static boolean isUnmeteredNetworkConnected(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+
+        return networkInfo != null && networkInfo.isConnected() && !connectivityManager.isActiveNetworkMetered();
+    }
+
+    /**
+     * Start the prefetch in the firmware download service.
+     *
+     * @param context is used to start the service.
+     * @param force is true to ignore the prefetch period. e.g. The job is already scheduled by the period.
+     * @return true, if the prefetch is started.
+     */
+    static boolean requestPrefetch(Context context, boolean force) {
+        final SharedPreferences preferences = getPreferences(context);
+        final long now = System.currentTimeMillis();
+
+        if (!preferences.getBoolean(KEY_ENABLED, false)) {
+            return false;
+        }
+
+        if (!force) {
+            final long elapsed = now - preferences.getLong(KEY_LAST_PREFETCH, 0);
+
+            if (elapsed >= 0 && elapsed < preferences.getLong(KEY_INTERVAL, DEFAULT_INTERVAL)) {
+                return false;
+            }
+        }
+        preferences.edit().putLong(KEY_LAST_PREFETCH, now).apply();
+
+        Intent prefetchIntent = new Intent(context, BflFwDownloadService.class);
+        prefetchIntent.setAction(BflFwDownloadService.ACTION_PREFETCH);
+        context.startService(prefetchIntent);
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, long interval) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo jobInfo = new JobInfo.Builder(PREFETCH_JOB_ID, new ComponentName(context, BflFwPrefetchJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(interval)
+                .build();
+
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(BLE_FOTA_TAG, "Unable to schedule the firmware prefetch job.");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void cancelJob(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(PREFETCH_JOB_ID);
+    }
+
+    private static void setReceiverEnabled(Context context, boolean enable) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, BflFwPrefetchReceiver.class),
+                enable ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,258 @@
+package kr.co.sevencore.blefotalib;
+
+import android.os.AsyncTask;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BflFwTaskExecutor.java
+ * BLE FOTA Library bounded executor of the firmware download service.
+ * Small metadata requests & bulk firmware downloads run in separate lanes,
+ * so metadata requests are not queued behind large downloads and the shared AsyncTask pool of the application is not used.
+ * Each lane has a fixed number of threads & a bounded queue. Tasks are tagged by session to be cancelled together.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-26
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflFwTaskExecutor {
+    private final static String BLE_FOTA_TAG = BflFwTaskExecutor.class.getSimpleName();
+
+    public final static int LANE_METADATA = 0;  // Metadata, version & fleet information requests.
+    public final static int LANE_DOWNLOAD = 1;  // Firmware data downloads.
+
+    private final static int[] LANE_THREADS = {2, 2};
+    private final static int[] LANE_QUEUE_CAPACITY = {64, 16};
+    private final static String[] LANE_NAMES = {"metadata", "download"};
+    private final static long KEEP_ALIVE_TIME = 30;  // Idle threads are terminated after 30 seconds.
+
+    private static BflFwTaskExecutor sInstance;
+
+    private final ThreadPoolExecutor[] mLanes = new ThreadPoolExecutor[LANE_THREADS.length];
+    private final int[] mMaxQueueDepth = new int[LANE_THREADS.length];   // Highest queue depth of each lane.
+    private final int[] mRejectedCnt = new int[LANE_THREADS.length];
+    private final HashMap<String, HashSet<SessionTask>> mSessions = new HashMap<String, HashSet<SessionTask>>();
+
+
+    /**
+     * AsyncTask tagged by session. It is untracked when it finishes.
+     */
+    private class SessionTask implements Runnable {
+        private final int mLane;
+        private final String mSession;
+        private final AsyncTask<?, ?, ?> mAsyncTask;
+        private final Runnable mRunnable;   // Future of the AsyncTask.
+
+        SessionTask(int lane, String session, AsyncTask<?, ?, ?> asyncTask, Runnable runnable) {
+            mLane = lane;
+            mSession = session;
+            mAsyncTask = asyncTask;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRunnable.run();
+            } finally {
+                untrack(this);
+            }
+        }
+    }
+
+    private BflFwTaskExecutor() {
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            final int priority = (lane == LANE_METADATA) ?
+                    Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+
+            mLanes[lane] = new ThreadPoolExecutor(LANE_THREADS[lane], LANE_THREADS[lane],
+                    KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(LANE_QUEUE_CAPACITY[lane]),
+                    new LaneThreadFactory(LANE_NAMES[lane], priority));
+            mLanes[lane].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Get the task executor of the download service.
+     *
+     * @return The task executor.
+     */
+    public static synchronized BflFwTaskExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new BflFwTaskExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Execute the AsyncTask in a lane for the session.
+     *
+     * @param asyncTask is the task to be executed.
+     * @param lane is LANE_METADATA or LANE_DOWNLOAD.
+     * @param session is the session of the task. e.g. MAC address of the device.
+     * @param params is the parameters of the task.
+     * @return true, if the task is queued. false: The lane queue is full.
+     */
+    public <Params> boolean execute(final AsyncTask<Params, ?, ?> asyncTask, final int lane, final String session,
+                                    Params... params) {
+        try {
+            asyncTask.executeOnExecutor(new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    submit(lane, session, asyncTask, runnable);
+                }
+            }, params);
+            return true;
+
+        } catch (RejectedExecutionException e) {
+            asyncTask.cancel(false);
+            return false;
+        }
+    }
+
+    private void submit(int lane, String session, AsyncTask<?, ?, ?> asyncTask, Runnable runnable) {
+        final SessionTask sessionTask = new SessionTask(lane, session, asyncTask, runnable);
+        track(sessionTask);
+
+        try {
+            mLanes[lane].execute(sessionTask);
+        } catch (RejectedExecutionException e) {
+            untrack(sessionTask);
+
+            synchronized (this) {
+                mRejectedCnt[lane]++;
+            }
+            Log.e(BLE_FOTA_TAG, "The " + LANE_NAMES[lane] + " lane is full. Task is rejected: " + session);
+            throw e;
+        }
+
+        synchronized (this) {
+            mMaxQueueDepth[lane] = Math.max(mMaxQueueDepth[lane], mLanes[lane].getQueue().size());
+        }
+    }
+
+    /**
+     * Cancel every queued & running task of the session.
+     * Queued tasks are removed, and running tasks are interrupted & notified by onCancelled method.
+     *
+     * @param session is the session of the tasks.
+     * @return The count of cancelled tasks.
+     */
+    public int cancel(String session) {
+        final ArrayList<SessionTask> sessionTasks;
+
+        synchronized (this) {
+            HashSet<SessionTask> tasks = mSessions.remove(session);
+
+            if (tasks == null) {
+                return 0;
+            }
+            sessionTasks = new ArrayList<SessionTask>(tasks);
+        }
+
+        for (SessionTask sessionTask : sessionTasks) {
+            mLanes[sessionTask.mLane].remove(sessionTask);
+            sessionTask.mAsyncTask.cancel(true);
+        }
+        Log.d(BLE_FOTA_TAG, "Tasks are cancelled: " + session + ", " + sessionTasks.size());
+        return sessionTasks.size();
+    }
+
+    private synchronized void track(SessionTask sessionTask) {
+        HashSet<SessionTask> tasks = mSessions.get(sessionTask.mSession);
+
+        if (tasks == null) {
+            tasks = new HashSet<SessionTask>();
+            mSessions.put(sessionTask.mSession, tasks);
+        }
+        tasks.add(sessionTask);
+    }
+
+    private synchronized void untrack(SessionTask sessionTask) {
+        HashSet<SessionTask> tasks = mSessions.get(sessionTask.mSession);
+
+        if (tasks != null && tasks.remove(sessionTask) && tasks.isEmpty()) {
+            mSessions.remove(sessionTask.mSession);
+        }
+    }
+
+    /**
+     * Get the count of tasks waiting in the lane.
+     *
+     * @param lane is LANE_METADATA or LANE_DOWNLOAD.
+     * @return The queue depth.
+     */
+    public int getQueueDepth(int lane) {
+        return mLanes[lane].getQueue().size();
+    }
+
+    /**
+     * Get the highest count of tasks waiting in the lane since the process started.
+     *
+     * @param lane is LANE_METADATA or LANE_DOWNLOAD.
+     * @return The maximum queue depth.
+     */
+    public synchronized int getMaxQueueDepth(int lane) {
+        return mMaxQueueDepth[lane];
+    }
+
+    /**
+     * Get the count of tasks running in the lane.
+     *
+     * @param lane is LANE_METADATA or LANE_DOWNLOAD.
+     * @return The approximate count of running tasks.
+     */
+    public int getActiveCount(int lane) {
+        return mLanes[lane].getActiveCount();
+    }
+
+    /**
+     * Get the count of tasks rejected because the lane queue was full.
+     *
+     * @param lane is LANE_METADATA or LANE_DOWNLOAD.
+     * @return The count of rejected tasks.
+     */
+    public synchronized int getRejectedCount(int lane) {
+        return mRejectedCnt[lane];
+    }
+
+    /**
+     * Create lane threads with the lane name & background priority.
+     */
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mThreadCnt = new AtomicInteger(1);
+
+        LaneThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mPriority);
+                    runnable.run();
+                }
+            }, "BflFw-" + mName + "-" + mThreadCnt.getAndIncrement());
+        }
+    }
+}
@@ -21,8 +21,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -71,15 +70,19 @@ public class BflFwUploadService extends Service {
 
     public static int sLeftConnCnt = 0;
     private static boolean sConnCheck = true;
+    private static boolean sVerifiedImageRequired = false; // true: Only verified cached firmware is transmitted.
 
     public final static int PURE_EACH_CONN_DATA_SIZE = 509; // Maximum firmware data size of each connection event: 509 bytes.
     public final static int EACH_CONN_DATA_SIZE = 512;      // Maximum data size of each connection event: 512 bytes.
     public final static int EACH_CONN_DATA_INFO = 3;        // Sequence number & data size inforamtion of each connection event.
+    private final static long PIPELINE_VERIFICATION_TIMEOUT = 30000; // Waiting time for the download hash verification.
 
     public final static String ERROR_LOST_GATT =
             "kr.co.sevencore.ble.fota.lib.upload.ERROR_LOST_GATT";
     public final static String ERROR_LOST_DEVICE_INFORMATION =
             "kr.co.sevencore.ble.fota.lib.upload.ERROR_LOST_DEVICE_INFORMATION";
+    public final static String ERROR_UNVERIFIED_FIRMWARE =
+            "kr.co.sevencore.ble.fota.lib.upload.ERROR_UNVERIFIED_FIRMWARE";
     public final static String ACTION_GATT_CONNECTING =
             "kr.co.sevencore.ble.fota.lib.upload.ACTION_GATT_CONNECTING";
     public final static String ACTION_GATT_CONNECTED =
@@ -344,13 +347,33 @@ public class BflFwUploadService extends Service {
             final BluetoothGattCharacteristic characteristic = mBflGattCharacteristics.
                     get(serviceIdx).get(characteristicIdx);
 
-            File binFile = new File(filePath);
-            long length = binFile.length();
-            byte[] byteData = getByteFromFile(binFile, length);
-
             int checkedSeqNumber = checkNegative(sequenceNumber);
 
-            SplitBytesThread splitBytesThread = new SplitBytesThread(byteData, length, checkedSeqNumber, characteristic);
+            // Unverified firmware data does not cost any airtime.
+            if (filePath == null || !isImageVerified(filePath)) {
+                Log.e(BLE_FOTA_TAG, "Firmware data is not verified: " + filePath);
+                broadcastUpdate(ERROR_UNVERIFIED_FIRMWARE);
+                return;
+            }
+
+            if (BflFwGrowingImage.isPipelinePath(filePath)) {
+                // The firmware data being downloaded is transmitted behind the download cursor.
+                BflFwGrowingImage growingImage = BflFwGrowingImage.acquire(filePath);
+                if (growingImage != null) {
+                    new SplitBytesThread(growingImage, checkedSeqNumber, characteristic).start();
+                    return;
+                }
+                filePath = BflFwGrowingImage.resolve(filePath);
+            }
+
+            // The framed image is shared with other sessions transmitting the same firmware data.
+            BflFwImageStore.FirmwareImage image = (filePath != null) ? BflFwImageStore.acquire(filePath) : null;
+            if (image == null) {
+                Log.e(BLE_FOTA_TAG, "Unable to load the firmware data: " + filePath);
+                return;
+            }
+
+            SplitBytesThread splitBytesThread = new SplitBytesThread(image, checkedSeqNumber, characteristic);
             splitBytesThread.start();
         }
 
@@ -395,17 +418,30 @@ public class BflFwUploadService extends Service {
             final BluetoothGattCharacteristic characteristic = mBflGattCharacteristics.
                     get(serviceIdx).get(characteristicIdx);
 
-            File binFile = new File(filePath);
-            long length = binFile.length();
+            if (filePath == null || !isImageVerified(filePath)) {
+                Log.e(BLE_FOTA_TAG, "Firmware data is not verified: " + filePath);
+                broadcastUpdate(ERROR_UNVERIFIED_FIRMWARE);
+                return;
+            }
 
-            try {
-                byte[] byteData = makeChecksum(binFile, length);
+            if (BflFwGrowingImage.isPipelinePath(filePath)) {
+                final BflFwGrowingImage growingImage = BflFwGrowingImage.acquire(filePath);
+                if (growingImage != null) {
+                    writePipelinedChecksumData(growingImage, characteristic);
+                    return;
+                }
+                filePath = BflFwGrowingImage.resolve(filePath);
+            }
 
-                characteristic.setValue(byteData);
-                writeBflCharacteristic(characteristic);
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
+            // SHA-1 checksum data is computed once when the image is loaded, and it is kept after the upload.
+            final byte[] digest = (filePath != null) ? BflFwImageStore.getDigest(filePath) : null;
+            if (digest == null) {
+                Log.e(BLE_FOTA_TAG, "Unable to load the firmware data: " + filePath);
+                return;
             }
+
+            characteristic.setValue(digest);
+            writeBflCharacteristic(characteristic);
         }
 
         /**
@@ -1100,6 +1136,61 @@ public class BflFwUploadService extends Service {
         mBflBluetoothGatt.writeCharacteristic(characteristic);
     }
 
+    /**
+     * Set the verified image requirement.
+     * The firmware cache marks the image of which hash is matched with the firmware server or the signed manifest.
+     * The requirement is not released while the public key of the signed manifest is set.
+     *
+     * @param required is true to refuse firmware data out of the cache or not verified by the server.
+     */
+    static void setVerifiedImageRequired(boolean required) {
+        sVerifiedImageRequired = required;
+    }
+
+    /**
+     * Check the verified image requirement.
+     * The verified image is always required when the public key of the signed manifest is set.
+     *
+     * @return true, if only the verified firmware data is transmitted.
+     * @see kr.co.sevencore.blefotalib.BflFwManifest#setPublicKey(java.security.PublicKey, String)
+     */
+    static boolean isVerifiedImageRequired() {
+        return sVerifiedImageRequired || BflFwManifest.isSignatureRequired();
+    }
+
+    /**
+     * Check the firmware data is able to be transmitted.
+     * Corrupted cached firmware is refused, even if the verified image is not required.
+     *
+     * @param filePath is the location of the firmware data.
+     * @return true, if the firmware data is able to be transmitted.
+     */
+    private boolean isImageVerified(String filePath) {
+        final BflFwCache firmwareCache = BflFwCache.getInstance(this);
+        final boolean required = isVerifiedImageRequired();
+
+        // Images of the offline bundle are verified when the bundle is imported.
+        if (BflFwBundle.isBundlePath(filePath)) {
+            return BflFwBundle.getLength(filePath) > 0;
+        }
+
+        // The growing image releases only the chunks verified by the manifest.
+        // After the download, the pipeline path is resolved to the verified cache file.
+        if (BflFwGrowingImage.isPipelinePath(filePath)) {
+            final String resolvedPath = BflFwGrowingImage.resolve(filePath);
+
+            if (resolvedPath != null) {
+                return isImageVerified(resolvedPath);
+            }
+            return BflFwGrowingImage.getLength(filePath) > 0;
+        }
+
+        if (firmwareCache.contains(filePath)) {
+            return firmwareCache.isVerified(filePath) || (!required && new File(filePath).exists());
+        }
+        return !required;
+    }
+
     /**
      * Check a negative parameter to prevent overflow.
      *
@@ -1143,78 +1234,70 @@ public class BflFwUploadService extends Service {
             e.printStackTrace();
         }
 
-        int indexStart = 0;
-        int indexEnd = PURE_EACH_CONN_DATA_SIZE;
-        int indexSeqInfo = 0;
-        int pureConnDataCnt = (int) (length / PURE_EACH_CONN_DATA_SIZE);
-        final int pureLastConnSize = (int) (length % PURE_EACH_CONN_DATA_SIZE);
-        final int pureLastConnSizePlusThree = (int) ((length % PURE_EACH_CONN_DATA_SIZE) +3);
-        //Log.d(BLE_FOTA_TAG, "Pure last connection size: " + pureLastConnSize);
-        int pureTotalConnDataCnt;
-        int totalLength;
-        int seqNum;
-        int addedBytesIndex;
-
-        if(pureLastConnSize != 0) {
-            pureTotalConnDataCnt = (pureConnDataCnt + 1);
-            totalLength = (int) (length + ((pureConnDataCnt + 1) * EACH_CONN_DATA_INFO));
-        } else {
-            pureTotalConnDataCnt = pureConnDataCnt;
-            totalLength = (int) (length + (pureConnDataCnt * EACH_CONN_DATA_INFO));
-        }
-
-        byte[] addedBytes = new byte[totalLength];
-        //Log.d(BLE_FOTA_TAG, "Total length: " + totalLength);
-
-        if(pureLastConnSize != 0) {
-            for (int i=0; i<pureTotalConnDataCnt; i++) {
-                seqNum = i;
-                addedBytesIndex = ((i + 1) * EACH_CONN_DATA_INFO);
+        return addSequenceInfo(bytes, length);
+    }
 
-                if (i != pureConnDataCnt) {
-                    //Log.d(BLE_FOTA_TAG, "Insert index number: " + i +
-                    //        ", Total count: " + pureTotalConnDataCnt + ", Total length: " + totalLength);
+    /**
+     * Write the checksum data of the pipelined firmware.
+     * The checksum data is written only after the downloaded firmware is verified,
+     * so the device never accepts firmware data failing the download hash.
+     *
+     * @param growingImage is the acquired image. It is released after the checksum data is written.
+     * @param characteristic is the checksum data characteristic.
+     * @see kr.co.sevencore.blefotalib.BflFwGrowingImage
+     */
+    private void writePipelinedChecksumData(final BflFwGrowingImage growingImage,
+                                            final BluetoothGattCharacteristic characteristic) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] digest;
+
+                try {
+                    digest = growingImage.awaitDigest(PIPELINE_VERIFICATION_TIMEOUT);
+                } finally {
+                    BflFwGrowingImage.release(growingImage);
+                }
 
-                    for (int j = indexStart; j < indexEnd; j++) {
-                        addedBytes[j + addedBytesIndex] = bytes[j];
-                    }
+                if (digest == null) {
+                    Log.e(BLE_FOTA_TAG, "Pipelined firmware data is not verified. Checksum data is not written.");
+                    return;
+                }
+                characteristic.setValue(digest);
+                writeBflCharacteristic(characteristic);
+            }
+        }).start();
+    }
 
-                    addedBytes[indexSeqInfo] |= (byte) (seqNum & 0xFF);
-                    addedBytes[indexSeqInfo + 1] |= (byte) ((EACH_CONN_DATA_SIZE & 0xFF00) >> 8);
-                    addedBytes[indexSeqInfo + 2] |= (byte) (EACH_CONN_DATA_SIZE & 0xFF);
+    /**
+     * Insert sequence index number & data size information in front of each connection event data.
+     *
+     * @param bytes is the firmware data.
+     * @param length of the firmware data.
+     * @return Byte data including sequence information.
+     * @see kr.co.sevencore.blefotalib.BflFwImageStore
+     */
+    public static byte[] addSequenceInfo(byte[] bytes, long length) {
+        final int pureTotalConnDataCnt = BflUtil.getFrameCount(length);
+        final int totalLength = (int) (length + (pureTotalConnDataCnt * EACH_CONN_DATA_INFO));
+        byte[] addedBytes = new byte[totalLength];
+        //Log.d(BLE_FOTA_TAG, "Total length: " + totalLength);
 
-                    indexStart += PURE_EACH_CONN_DATA_SIZE;
-                    indexEnd += PURE_EACH_CONN_DATA_SIZE;
-                    indexSeqInfo += EACH_CONN_DATA_SIZE;
-                } else {
-                    //Log.d(BLE_FOTA_TAG , "Insert index number else case:: " + i);
-                    indexEnd += (pureLastConnSize - PURE_EACH_CONN_DATA_SIZE);
+        int indexStart = 0;
+        int indexSeqInfo = 0;
 
-                    for (int j = indexStart; j < indexEnd; j++) {
-                        addedBytes[j + addedBytesIndex] = bytes[j];
-                    }
+        for (int seqNum = 0; seqNum < pureTotalConnDataCnt; seqNum++) {
+            // The last connection event carries the rest of the firmware data.
+            final int pureConnSize = Math.min(PURE_EACH_CONN_DATA_SIZE, (int) length - indexStart);
+            final int connSize = pureConnSize + EACH_CONN_DATA_INFO;
 
-                    addedBytes[indexSeqInfo] |= (byte) (seqNum & 0xFF);
-                    addedBytes[indexSeqInfo + 1] |= (byte) ((pureLastConnSizePlusThree & 0xFF00) >> 8);
-                    addedBytes[indexSeqInfo + 2] |= (byte) (pureLastConnSizePlusThree & 0xFF);
-                }
-            }
-        } else {
-            for (int i = 0; i < pureTotalConnDataCnt; i++) {
-                seqNum = i;
-                addedBytesIndex = ((i + 1) * EACH_CONN_DATA_INFO);
-                //Log.d(BLE_FOTA_TAG, "Insert index number: " + i);
-                for (int j = indexStart; j < indexEnd; j++) {
-                    addedBytes[j + addedBytesIndex] = bytes[j];
-                }
+            addedBytes[indexSeqInfo] = (byte) (seqNum & 0xFF);
+            addedBytes[indexSeqInfo + 1] = (byte) ((connSize & 0xFF00) >> 8);
+            addedBytes[indexSeqInfo + 2] = (byte) (connSize & 0xFF);
+            System.arraycopy(bytes, indexStart, addedBytes, indexSeqInfo + EACH_CONN_DATA_INFO, pureConnSize);
 
-                addedBytes[indexSeqInfo] |= (byte) (seqNum & 0xFF);
-                addedBytes[indexSeqInfo+1] |= (byte) ((EACH_CONN_DATA_SIZE & 0xFF00) >> 8);
-                addedBytes[indexSeqInfo+2] |= (byte) (EACH_CONN_DATA_SIZE & 0xFF);
-                indexStart += PURE_EACH_CONN_DATA_SIZE;
-                indexEnd += PURE_EACH_CONN_DATA_SIZE;
-                indexSeqInfo += EACH_CONN_DATA_SIZE;
-            }
+            indexStart += pureConnSize;
+            indexSeqInfo += connSize;
         }
         //Log.d(BLE_FOTA_TAG, "Input source sequence numbering: " + Arrays.toString(addedBytes));
         return addedBytes;
@@ -1222,26 +1305,52 @@ public class BflFwUploadService extends Service {
 
     /**
      * Split thread in bytes to send a firmware data.
+     * Each connection event data is sliced from the read-only view of the shared image,
+     * and the image is returned to the image store when the thread finishes.
+     * The pipelined image is transmitted frame by frame behind the download cursor.
      *
      * @see kr.co.sevencore.blefotalib.BflFwUploadService
+     * @see kr.co.sevencore.blefotalib.BflFwImageStore
+     * @see kr.co.sevencore.blefotalib.BflFwGrowingImage
      */
     class SplitBytesThread extends Thread {
-        ArrayList<byte[]> byteList = new ArrayList<byte[]>();
-
-        private byte[] byteData;
+        private BflFwImageStore.FirmwareImage image;
+        private BflFwGrowingImage growingImage;     // null: The firmware data is completed.
+        private ByteBuffer framedData;
         private long length;
         private int sequenceNum;
         private BluetoothGattCharacteristic characteristic;
 
-        public SplitBytesThread(byte[] byteData, long length, int sequenceNum, BluetoothGattCharacteristic characteristic) {
-            byteList = new ArrayList<byte[]>();
+        public SplitBytesThread(BflFwImageStore.FirmwareImage image, int sequenceNum, BluetoothGattCharacteristic characteristic) {
+            this.image = image;
+            this.framedData = image.getFramedData();
+            this.length = image.getLength();
+            this.sequenceNum = sequenceNum;
+            this.characteristic = characteristic;
+        }
 
-            this.byteData = byteData;
-            this.length = length;
+        public SplitBytesThread(BflFwGrowingImage growingImage, int sequenceNum, BluetoothGattCharacteristic characteristic) {
+            this.growingImage = growingImage;
+            this.framedData = growingImage.getFramedData();
+            this.length = growingImage.getLength();
             this.sequenceNum = sequenceNum;
             this.characteristic = characteristic;
         }
 
+        /**
+         * Wait until the frame is downloaded, when the firmware data is pipelined.
+         *
+         * @param frame is the index of the frame from the beginning of the firmware data.
+         * @return true, if the frame is able to be transmitted.
+         */
+        private boolean awaitFrame(int frame) {
+            if (growingImage == null || growingImage.awaitFrame(frame)) {
+                return true;
+            }
+            Log.e(BLE_FOTA_TAG, "Pipelined firmware download failed. Transmission is stopped.");
+            return false;
+        }
+
         public void run() {
             // connDataCnt + (lastConnData != 0 ? 1 : 0) = TOTAL CONNECTION EVENT
             // MAXIMUM CONNECTION EVENTS: connDataCnt <= 200 (100KB)
@@ -1263,118 +1372,81 @@ public class BflFwUploadService extends Service {
                 totalLength = leftLength + (pureConnDataCnt * EACH_CONN_DATA_INFO);
             }
 
-            int connDataCnt = totalLength / EACH_CONN_DATA_SIZE;
             int lastConnSize = totalLength % EACH_CONN_DATA_SIZE;
-            byte[] container;
-            byte[] lastContainer;
+            // Containers are reused for every connection event,
+            // because the characteristic value is handed over when the write request is executed.
+            byte[] container = new byte[EACH_CONN_DATA_SIZE];
+            byte[] lastContainer = new byte[lastConnSize];
 
-            int startPt = 0;
+            int startPt = sendConnDataCnt * EACH_CONN_DATA_SIZE;
             int index = 0;
 
-            if (sendConnDataCnt != 0) {
-                startPt = sendConnDataCnt * EACH_CONN_DATA_SIZE;
-                //Log.d(BLE_FOTA_TAG, "Start point: " + startPt);
-            }
-
-            for (int i = 0; i < connDataCnt; i++) {
-                container = new byte[EACH_CONN_DATA_SIZE];
-                System.arraycopy(byteData, startPt, container, 0, EACH_CONN_DATA_SIZE);
-                byteList.add(container);
-                //Log.d(BLE_FOTA_TAG, "Container - array copy routine: " + container[0]);
-                //Log.d(BLE_FOTA_TAG, "Insert data from \"byteData\" to \"bytesList\" - Source array start point: " + startPt);
-                startPt += EACH_CONN_DATA_SIZE;
-            }
-            //Log.d(BLE_FOTA_TAG, "Write characteristic - Make array list: " + connDataCnt + " columns.");
-
-            if (lastConnSize != 0) {
-                lastContainer = new byte[lastConnSize];
-                System.arraycopy(byteData, startPt, lastContainer, 0, lastConnSize);
-                byteList.add(lastContainer);
-                //Log.d(BLE_FOTA_TAG, "Last container - Array copy routine: " + lastContainer[0]);
-                //Log.d(BLE_FOTA_TAG, "Insert data from \"byteData\" to \"byesList\" - Make last column: "
-                //        + lastConnSize + " items.");
-            }
-
-            while (totalLength > 0 && sConnCheck) {
-                if (mContinuousWriteFlag && (totalLength > EACH_CONN_DATA_SIZE)) {
-                    //Log.d(BLE_FOTA_TAG, "Write characteristic when GATT success - Index: "
-                    //        + index + ", Length size: " + totalLength);
-                    mContinuousWriteFlag = false;
-
-                    if (sConnCheck && mBflBluetoothGatt != null && byteList != null) {
-                        container = byteList.get(index);
-                        //Log.d(BLE_FOTA_TAG, "Container [0], [1], [2] value : "
-                        // + container[0] + ", " + container[1] + ", " + container[2]);
-
-                        characteristic.setValue(container);
-                        try {
-                            mBflBluetoothGatt.writeCharacteristic(characteristic);
-                        } catch (NullPointerException e) {
-                            e.printStackTrace();
+            try {
+                while (totalLength > 0 && sConnCheck) {
+                    if (mContinuousWriteFlag && (totalLength > EACH_CONN_DATA_SIZE)) {
+                        //Log.d(BLE_FOTA_TAG, "Write characteristic when GATT success - Index: "
+                        //        + index + ", Length size: " + totalLength);
+                        mContinuousWriteFlag = false;
+
+                        if (!awaitFrame(sendConnDataCnt + index)) {
+                            break;
                         }
-                        //Log.d(BLE_FOTA_TAG, "Write characteristic executed - Write size: " + container.length);
-                    }
 
-                    totalLength -= EACH_CONN_DATA_SIZE;
-                    index++;
-                    sLeftConnCnt--;
-
-                } else if (mContinuousWriteFlag && totalLength < EACH_CONN_DATA_SIZE) {
-                    //Log.d(BLE_FOTA_TAG, "Write characteristic when GATT success - Index: "
-                    //        + index + ", Length size: " + totalLength);
-                    mContinuousWriteFlag = false;
-
-                    if (sConnCheck && mBflBluetoothGatt != null && byteList != null) {
-                        lastContainer = byteList.get(index);
-                        //Log.d(BLE_FOTA_TAG, "Last container [0], [1], [2] value: "
-                        //        + lastContainer[0] + ", " + lastContainer[1] + ", " + lastContainer[2]);
-
-                        characteristic.setValue(lastContainer);
-                        try {
-                            mBflBluetoothGatt.writeCharacteristic(characteristic);
-                        } catch (NullPointerException e) {
-                            e.printStackTrace();
+                        if (sConnCheck && mBflBluetoothGatt != null) {
+                            framedData.position(startPt + (index * EACH_CONN_DATA_SIZE));
+                            framedData.get(container);
+                            //Log.d(BLE_FOTA_TAG, "Container [0], [1], [2] value : "
+                            // + container[0] + ", " + container[1] + ", " + container[2]);
+
+                            characteristic.setValue(container);
+                            try {
+                                mBflBluetoothGatt.writeCharacteristic(characteristic);
+                            } catch (NullPointerException e) {
+                                e.printStackTrace();
+                            }
+                            //Log.d(BLE_FOTA_TAG, "Write characteristic executed - Write size: " + container.length);
                         }
-                        //Log.d(BLE_FOTA_TAG, "Write characteristic executed - Write size: " + lastContainer.length);
-                    }
 
-                    totalLength -= lastConnSize;
-                    sLeftConnCnt--;
-                }
-            }
-            super.run();
-        }
-    }
+                        totalLength -= EACH_CONN_DATA_SIZE;
+                        index++;
+                        sLeftConnCnt--;
 
-    /**
-     * SHA-1 Checksum data.
-     * Input file without sequence number.
-     *
-     * @param binData is firmware data.
-     * @param length is firmware data size.
-     * @return Byte type digest message.
-     * @throws NoSuchAlgorithmException
-     */
-    private byte[] makeChecksum (File binData, long length) throws NoSuchAlgorithmException {
-        MessageDigest messageDigest = MessageDigest.getInstance("SHA1");
-        try {
-            FileInputStream fileInputStream = new FileInputStream(binData);
-            byte[] byteData = new byte[(int) length];
+                    } else if (mContinuousWriteFlag && totalLength < EACH_CONN_DATA_SIZE) {
+                        //Log.d(BLE_FOTA_TAG, "Write characteristic when GATT success - Index: "
+                        //        + index + ", Length size: " + totalLength);
+                        mContinuousWriteFlag = false;
 
-            int nRead = 0;
+                        if (!awaitFrame(sendConnDataCnt + index)) {
+                            break;
+                        }
 
-            try {
-                while ((nRead = fileInputStream.read(byteData)) != -1) {
-                    messageDigest.update(byteData, 0, nRead);
+                        if (sConnCheck && mBflBluetoothGatt != null) {
+                            framedData.position(startPt + (index * EACH_CONN_DATA_SIZE));
+                            framedData.get(lastContainer);
+                            //Log.d(BLE_FOTA_TAG, "Last container [0], [1], [2] value: "
+                            //        + lastContainer[0] + ", " + lastContainer[1] + ", " + lastContainer[2]);
+
+                            characteristic.setValue(lastContainer);
+                            try {
+                                mBflBluetoothGatt.writeCharacteristic(characteristic);
+                            } catch (NullPointerException e) {
+                                e.printStackTrace();
+                            }
+                            //Log.d(BLE_FOTA_TAG, "Write characteristic executed - Write size: " + lastContainer.length);
+                        }
+
+                        totalLength -= lastConnSize;
+                        sLeftConnCnt--;
+                    }
+                }
+            } finally {
+                if (growingImage != null) {
+                    BflFwGrowingImage.release(growingImage);
+                } else {
+                    BflFwImageStore.release(image);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            super.run();
         }
-        byte[] byteMessageDigest = messageDigest.digest();
-        //Log.d(BLE_FOTA_TAG, "Make checksum - Byte message digest size: " + byteMessageDigest.length);
-        return byteMessageDigest;
     }
 }
@@ -254,6 +254,18 @@ public class BflFwUploader {
         sFilePath = path;
     }
 
+    /**
+     * Set the verified image requirement.
+     * If it is set, only the cached firmware verified by the firmware server or the signed manifest is transmitted.
+     * It is always set while the public key of the signed manifest is set.
+     *
+     * @param required is true to refuse unverified firmware data.
+     * @see kr.co.sevencore.blefotalib.BflFwManifest
+     */
+    public void setVerifiedImageRequired(boolean required) {
+        BflFwUploadService.setVerifiedImageRequired(required);
+    }
+
     /**
      * Set the firmware upgrade type.
      *
@@ -339,6 +351,12 @@ public class BflFwUploader {
                     }
                 } else if (BflFwUploadService.ERROR_LOST_DEVICE_INFORMATION.equals(action)) {
 
+                    if (mErrorStateCallback != null) {
+                        mErrorStateCallback.onErrorStateListener(true);
+                    }
+                } else if (BflFwUploadService.ERROR_UNVERIFIED_FIRMWARE.equals(action)) {
+                    Log.e(BLE_FOTA_TAG, "Unverified firmware data is refused.");
+
                     if (mErrorStateCallback != null) {
                         mErrorStateCallback.onErrorStateListener(true);
                     }
@@ -880,14 +898,22 @@ public class BflFwUploader {
     /**
      * Check more data is needed to be transmitted to the target device.
      *
-     * @param filePath is the location that firmware data stored.
+     * @param filePath is the location that firmware data stored, the pipeline path or the bundle path.
      * @param sequenceNumber is amount of data going to be transmitted.
      * @return true: More data is needed to be transmitted.
      *         false: Firmware data transmission finished.
      */
     private boolean checkSequence(String filePath, int sequenceNumber) {
-        File firmwareFile = new File(filePath);
-        long length = firmwareFile.length();
+        // The pipelined firmware is sized before the download is completed.
+        long length;
+
+        if (BflFwGrowingImage.isPipelinePath(filePath)) {
+            length = BflFwGrowingImage.getLength(filePath);
+        } else if (BflFwBundle.isBundlePath(filePath)) {
+            length = BflFwBundle.getLength(filePath);
+        } else {
+            length = new File(filePath).length();
+        }
         int sequence = sequenceNumber;
         int sendSize;
 
@@ -1189,6 +1215,7 @@ public class BflFwUploader {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BflFwUploadService.ERROR_LOST_GATT);
         intentFilter.addAction(BflFwUploadService.ERROR_LOST_DEVICE_INFORMATION);
+        intentFilter.addAction(BflFwUploadService.ERROR_UNVERIFIED_FIRMWARE);
 
         intentFilter.addAction(BflFwUploadService.ACTION_GATT_CONNECTING);
         intentFilter.addAction(BflFwUploadService.ACTION_GATT_CONNECTED);
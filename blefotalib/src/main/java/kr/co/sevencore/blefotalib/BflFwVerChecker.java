@@ -75,8 +75,7 @@ public class BflFwVerChecker extends BroadcastReceiver {
                 // Check firmware download service is running.
                 if (BflUtil.isServiceRunning(context, BflFwDownloadService.class)) {
                     try {
-                        // Unit test mode downloads firmware data all the ways.
-                        // TODO: If you wants to minimize networks use, add routine for checking the firmware data existence.
+                        // The download service finishes with the cached firmware without downloading again.
                         Log.i(BLE_FOTA_TAG, "Firmware is going to be upgraded of downgraded.");
                         BflFwDownloader.sBflDownloadBinder.getFirmwareUrl();
                     } catch (Exception e) {
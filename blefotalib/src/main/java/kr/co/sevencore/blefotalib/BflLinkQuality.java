@@ -0,0 +1,104 @@
+package kr.co.sevencore.blefotalib;
+
+/**
+ * BflLinkQuality.java
+ * BLE FOTA Library link quality estimator of a scanned device.
+ * Raw RSSI readings are noisy, so RSSI is smoothed by exponential moving average.
+ * Advertising rate is estimated from the average gap between advertisements,
+ * and packet loss is estimated by comparing the average gap with the nominal advertising interval.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-11
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflLinkQuality {
+    private final static float RSSI_SMOOTHING = 0.25f;         // Weight of the latest RSSI reading.
+    private final static float GAP_SMOOTHING = 0.1f;           // Weight of the latest advertising gap.
+    private final static float INTERVAL_RECOVERY = 0.01f;      // Rising speed of the nominal interval.
+    private final static long MAX_GAP = 10000;                 // Longer gaps mean the scan was paused.
+
+    private float mRssi;                 // Smoothed RSSI.
+    private float mAverageGap = 0;       // Smoothed gap between advertisements (ms). 0: Unknown.
+    private float mNominalInterval = 0;  // Estimated advertising interval of the device (ms). 0: Unknown.
+    private long mLastSeen = -1;         // Elapsed realtime of the last advertisement.
+
+
+    /**
+     * Update the estimation with an advertisement.
+     *
+     * @param rssi is RSSI value of the advertisement.
+     * @param now is elapsed realtime of the advertisement.
+     */
+    public void update(int rssi, long now) {
+        if (mLastSeen < 0) {
+            mRssi = rssi;
+            mLastSeen = now;
+            return;
+        }
+        mRssi += RSSI_SMOOTHING * (rssi - mRssi);
+
+        final long gap = now - mLastSeen;
+        mLastSeen = now;
+
+        if (gap <= 0 || gap > MAX_GAP) {
+            return;
+        }
+
+        if (mAverageGap == 0) {
+            mAverageGap = gap;
+            mNominalInterval = gap;
+            return;
+        }
+        mAverageGap += GAP_SMOOTHING * (gap - mAverageGap);
+
+        // The shortest gap follows the advertising interval, lost advertisements only make gaps longer.
+        // It rises slowly, so the device changing the advertising interval is followed.
+        if (gap < mNominalInterval) {
+            mNominalInterval = gap;
+        } else {
+            mNominalInterval += INTERVAL_RECOVERY * (gap - mNominalInterval);
+        }
+    }
+
+    /**
+     * Get the smoothed RSSI.
+     *
+     * @return Smoothed RSSI value.
+     */
+    public float getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Get the received advertising rate.
+     *
+     * @return Advertisements per second. 0: Unknown.
+     */
+    public float getAdvertisingRate() {
+        return (mAverageGap > 0) ? (1000f / mAverageGap) : 0;
+    }
+
+    /**
+     * Get the estimated packet loss of advertisements.
+     *
+     * @return Loss ratio from 0 to 1. 0: No loss or unknown.
+     */
+    public float getLossRate() {
+        if (mAverageGap <= 0) {
+            return 0;
+        }
+        return Math.max(0f, Math.min(1f, 1f - (mNominalInterval / mAverageGap)));
+    }
+
+    /**
+     * Get elapsed realtime of the last advertisement.
+     *
+     * @return Elapsed realtime. -1: Never updated.
+     */
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+}
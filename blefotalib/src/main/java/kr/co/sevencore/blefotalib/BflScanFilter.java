@@ -0,0 +1,159 @@
+package kr.co.sevencore.blefotalib;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BflScanFilter.java
+ * BLE FOTA Library scan filter.
+ * Devices are filtered by service UUID, manufacturer specific data prefix & MAC address allowlist.
+ * Every condition which is set has to be matched.
+ *
+ * On API 21 and above, the conditions are offloaded to the Bluetooth controller when the platform supports it.
+ * Scan results are always checked again by software, because the offloaded filter is a hint on some platforms.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-10
+ * @see kr.co.sevencore.blefotalib.BflAdvertisement
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflScanFilter {
+    private final static String BLE_FOTA_TAG = BflScanFilter.class.getSimpleName();
+
+    // Bluetooth controllers have few filter slots. Larger allowlists are checked by software only.
+    private final static int MAX_OFFLOADED_ADDRESS_CNT = 16;
+
+    private UUID mServiceUuid;                  // null: Any service.
+    private int mManufacturerId = -1;           // -1: Any manufacturer specific data.
+    private byte[] mManufacturerDataPrefix;     // null: Any data of the manufacturer.
+    private HashSet<Long> mMacAddresses;        // Packed MAC addresses. null: Any device.
+
+
+    /**
+     * Create the scan filter.
+     *
+     * @param serviceUuid is the advertised service UUID such as BflAttributes.FIRMWARE_UPGRADE_SERVICE. null: Any service.
+     * @param manufacturerId is the company identifier of manufacturer specific data. -1: Any manufacturer.
+     * @param manufacturerDataPrefix is the leading manufacturer specific data except company identifier. null: Any data.
+     * @param macAddresses is MAC address allowlist. null or empty: Any device.
+     */
+    public BflScanFilter(String serviceUuid, int manufacturerId, byte[] manufacturerDataPrefix, String[] macAddresses) {
+        if (serviceUuid != null) {
+            try {
+                mServiceUuid = UUID.fromString(serviceUuid);
+            } catch (IllegalArgumentException e) {
+                Log.e(BLE_FOTA_TAG, "Invalid service UUID: " + serviceUuid);
+                e.printStackTrace();
+            }
+        }
+
+        mManufacturerId = manufacturerId;
+        mManufacturerDataPrefix = (manufacturerId >= 0) ? manufacturerDataPrefix : null;
+
+        if (macAddresses != null && macAddresses.length > 0) {
+            mMacAddresses = new HashSet<Long>();
+
+            for (String macAddress : macAddresses) {
+                long packedAddress = BflUtil.packMacAddress(macAddress);
+
+                if (packedAddress >= 0) {
+                    mMacAddresses.add(packedAddress);
+                } else {
+                    Log.e(BLE_FOTA_TAG, "Invalid MAC address: " + macAddress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the filter has no condition.
+     *
+     * @return true, if every device is accepted.
+     */
+    public boolean isEmpty() {
+        return mServiceUuid == null && mManufacturerId < 0 && mMacAddresses == null;
+    }
+
+    /**
+     * Check the device is in the MAC address allowlist.
+     * It is checked before parsing the advertisement.
+     *
+     * @param packedAddress is the packed MAC address of the device.
+     * @return true, if the device is allowed.
+     */
+    public boolean matchesAddress(long packedAddress) {
+        return mMacAddresses == null || mMacAddresses.contains(packedAddress);
+    }
+
+    /**
+     * Check the advertisement matches service UUID & manufacturer specific data conditions.
+     *
+     * @param advertisement is the parsed advertisement record.
+     * @return true, if the advertisement is accepted.
+     */
+    public boolean matches(BflAdvertisement advertisement) {
+        if (mServiceUuid != null && !advertisement.hasServiceUuid(mServiceUuid)) {
+            return false;
+        }
+        return mManufacturerId < 0 || advertisement.hasManufacturerData(mManufacturerId, mManufacturerDataPrefix);
+    }
+
+    /**
+     * Build the offloaded scan filters.
+     * Conditions in a filter are combined by AND, and filters are combined by OR,
+     * so a filter is built for each allowed MAC address.
+     *
+     * @return The platform scan filters, or null if nothing is offloaded.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public List<ScanFilter> buildScanFilters() {
+        if (isEmpty()) {
+            return null;
+        }
+        List<ScanFilter> scanFilters = new ArrayList<ScanFilter>();
+
+        if (mMacAddresses != null && mMacAddresses.size() <= MAX_OFFLOADED_ADDRESS_CNT) {
+            for (Long packedAddress : mMacAddresses) {
+                scanFilters.add(makeScanFilterBuilder()
+                        .setDeviceAddress(BflUtil.unpackMacAddress(packedAddress))
+                        .build());
+            }
+        } else if (mServiceUuid != null || mManufacturerId >= 0) {
+            scanFilters.add(makeScanFilterBuilder().build());
+        } else {
+            return null;
+        }
+        return scanFilters;
+    }
+
+    /**
+     * Make the scan filter builder including service UUID & manufacturer specific data conditions.
+     *
+     * @return The scan filter builder.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanFilter.Builder makeScanFilterBuilder() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+
+        if (mServiceUuid != null) {
+            builder.setServiceUuid(new ParcelUuid(mServiceUuid));
+        }
+
+        if (mManufacturerId >= 0) {
+            builder.setManufacturerData(mManufacturerId,
+                    (mManufacturerDataPrefix != null) ? mManufacturerDataPrefix : new byte[0]);
+        }
+        return builder;
+    }
+}
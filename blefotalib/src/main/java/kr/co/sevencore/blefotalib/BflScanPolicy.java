@@ -0,0 +1,170 @@
+package kr.co.sevencore.blefotalib;
+
+import java.util.HashSet;
+
+/**
+ * BflScanPolicy.java
+ * BLE FOTA Library scan policy.
+ * A scan is terminated early when every target device is seen, when enough eligible devices are found
+ * or when no new device appears during the idle timeout.
+ * Background scanning is duty-cycled, and the scan window grows while new devices keep appearing
+ * and shrinks back when nothing new is found, so radio time is left for running transfers.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-12
+ * @see kr.co.sevencore.blefotalib.BflDeviceScanService
+ */
+public class BflScanPolicy {
+    private final static String BLE_FOTA_TAG = BflScanPolicy.class.getSimpleName();
+
+    public final static long DEFAULT_MIN_WINDOW = 1000;      // Minimum duty-cycled scan window.
+    public final static long DEFAULT_MAX_WINDOW = 8000;      // Maximum duty-cycled scan window.
+
+    // Early termination conditions.
+    private HashSet<Long> mTargetAddresses;     // Packed MAC addresses. null: No target device.
+    private int mTargetCount = 0;               // Count of eligible devices to be found. 0: Not used.
+    private long mIdleTimeout = 0;              // Period without new device. 0: Not used.
+
+    // Duty cycle conditions.
+    private long mMinWindow = 0;                // 0: Continuous scanning.
+    private long mMaxWindow = 0;
+    private long mScanInterval = 0;             // Pause between scan windows.
+
+    // Progress of the current scan.
+    private HashSet<Long> mSeenAddresses = new HashSet<Long>();
+    private int mSeenTargetCnt = 0;
+    private long mWindow = 0;                   // Current scan window.
+    private boolean mNewDeviceInWindow = false;
+
+
+    /**
+     * Set the early termination conditions.
+     *
+     * @param targetMacAddresses is MAC addresses of the target devices. null or empty: Not used.
+     * @param targetCount is the count of eligible devices to be found. 0: Not used.
+     * @param idleTimeout is the period without new device in milliseconds. 0: Not used.
+     */
+    public synchronized void setEarlyTermination(String[] targetMacAddresses, int targetCount, long idleTimeout) {
+        mTargetAddresses = null;
+
+        if (targetMacAddresses != null && targetMacAddresses.length > 0) {
+            mTargetAddresses = new HashSet<Long>();
+
+            for (String macAddress : targetMacAddresses) {
+                long packedAddress = BflUtil.packMacAddress(macAddress);
+
+                if (packedAddress >= 0) {
+                    mTargetAddresses.add(packedAddress);
+                }
+            }
+        }
+        mTargetCount = Math.max(0, targetCount);
+        mIdleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * Set the duty cycle of background scanning.
+     *
+     * @param minWindow is the minimum scan window in milliseconds. 0: Continuous scanning.
+     * @param maxWindow is the maximum scan window in milliseconds.
+     * @param scanInterval is the pause between scan windows in milliseconds.
+     */
+    public synchronized void setDutyCycle(long minWindow, long maxWindow, long scanInterval) {
+        mMinWindow = Math.max(0, minWindow);
+        mMaxWindow = Math.max(mMinWindow, maxWindow);
+        mScanInterval = Math.max(0, scanInterval);
+        mWindow = mMinWindow;
+    }
+
+    /**
+     * Reset the progress, when a scan is started.
+     */
+    public synchronized void reset() {
+        mSeenAddresses.clear();
+        mSeenTargetCnt = 0;
+        mWindow = mMinWindow;
+        mNewDeviceInWindow = false;
+    }
+
+    /**
+     * Record an eligible device.
+     *
+     * @param packedAddress is the packed MAC address of the device.
+     * @return true, if the device is seen first in the current scan.
+     */
+    public synchronized boolean onDeviceSeen(long packedAddress) {
+        if (!mSeenAddresses.add(packedAddress)) {
+            return false;
+        }
+
+        if (mTargetAddresses != null && mTargetAddresses.contains(packedAddress)) {
+            mSeenTargetCnt++;
+        }
+        mNewDeviceInWindow = true;
+        return true;
+    }
+
+    /**
+     * Check the early termination conditions except the idle timeout.
+     *
+     * @return true, if every target device is seen or enough eligible devices are found.
+     */
+    public synchronized boolean isSatisfied() {
+        if (mTargetAddresses != null && !mTargetAddresses.isEmpty() && mSeenTargetCnt >= mTargetAddresses.size()) {
+            return true;
+        }
+        return mTargetCount > 0 && mSeenAddresses.size() >= mTargetCount;
+    }
+
+    /**
+     * Get the idle timeout.
+     *
+     * @return The period without new device in milliseconds. 0: Not used.
+     */
+    public synchronized long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * Check duty-cycled scanning.
+     *
+     * @return true, if scanning is duty-cycled.
+     */
+    public synchronized boolean isDutyCycled() {
+        return mMinWindow > 0;
+    }
+
+    /**
+     * Get the current scan window.
+     *
+     * @return The scan window in milliseconds.
+     */
+    public synchronized long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Get the pause between scan windows.
+     *
+     * @return The scan interval in milliseconds.
+     */
+    public synchronized long getScanInterval() {
+        return mScanInterval;
+    }
+
+    /**
+     * Adapt the scan window, when a scan window ends.
+     * The window is doubled if a new device was found, otherwise it is halved.
+     */
+    public synchronized void onWindowFinished() {
+        if (mNewDeviceInWindow) {
+            mWindow = Math.min(mMaxWindow, mWindow * 2);
+        } else {
+            mWindow = Math.max(mMinWindow, mWindow / 2);
+        }
+        mNewDeviceInWindow = false;
+    }
+}
@@ -0,0 +1,203 @@
+package kr.co.sevencore.blefotalib;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BflSingleFlight.java
+ * BLE FOTA Library de-duplication of concurrent identical requests.
+ * The first caller of a key runs the request, and later callers of the same key wait for the result
+ * instead of starting another request. The key is released when the request finishes,
+ * so a later request of the key runs again.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-20
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflSingleFlight<T> {
+    private final static String BLE_FOTA_TAG = BflSingleFlight.class.getSimpleName();
+
+    private final HashMap<String, Flight<T>> mFlights = new HashMap<String, Flight<T>>(); // In-flight requests by key.
+
+
+    /**
+     * In-flight request shared by the callers of the same key.
+     */
+    private static class Flight<T> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private T mResult;
+        private Exception mError;
+        private int mWaiterCnt = 0;
+        private final AtomicBoolean mHandOff = new AtomicBoolean(false); // true: A waiter takes over the notification.
+    }
+
+    /**
+     * Result of a request with the role of the caller.
+     */
+    public static class Outcome<T> {
+        private final T mResult;
+        private final boolean mLeader;
+        private final boolean mHandedOff;
+
+        Outcome(T result, boolean leader, boolean handedOff) {
+            mResult = result;
+            mLeader = leader;
+            mHandedOff = handedOff;
+        }
+
+        public T getResult() {
+            return mResult;
+        }
+
+        /**
+         * Check the caller ran the request.
+         *
+         * @return true, if the caller ran the request. false: The caller waited for the request of another caller.
+         */
+        public boolean isLeader() {
+            return mLeader;
+        }
+
+        /**
+         * Check the caller took over the notification from the runner of the request.
+         * Only one waiter of a request takes it over.
+         *
+         * @return true, if the caller has to notify the result in place of the runner.
+         */
+        public boolean isHandedOff() {
+            return mHandedOff;
+        }
+    }
+
+    /**
+     * Run the request, or wait for the in-flight request of the same key.
+     * It blocks the caller, so it is called in a background thread.
+     *
+     * @param key is the identity of the request. e.g. URL, product name & version.
+     * @param call is the request. It is run only by the first caller of the key.
+     * @return The result of the request shared by every caller of the key.
+     * @throws Exception if the request fails or the waiting thread is interrupted.
+     *                   The interrupted waiter leaves the request without stopping it.
+     */
+    public T execute(String key, Callable<T> call) throws Exception {
+        return join(key, call).getResult();
+    }
+
+    /**
+     * Run the request, or wait for the in-flight request of the same key, with the role of the caller.
+     * It blocks the caller, so it is called in a background thread.
+     *
+     * @param key is the identity of the request. e.g. URL, product name & version.
+     * @param call is the request. It is run only by the first caller of the key.
+     * @return The result of the request & the role of the caller.
+     * @throws Exception if the request fails or the waiting thread is interrupted.
+     *                   The interrupted waiter leaves the request without stopping it.
+     */
+    public Outcome<T> join(String key, Callable<T> call) throws Exception {
+        Flight<T> flight;
+        boolean leader = false;
+
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+
+            if (flight == null) {
+                flight = new Flight<T>();
+                mFlights.put(key, flight);
+                leader = true;
+            } else {
+                flight.mWaiterCnt++;
+            }
+        }
+
+        if (!leader) {
+            Log.d(BLE_FOTA_TAG, "Join the in-flight request: " + key);
+
+            try {
+                flight.mDone.await();
+            } catch (InterruptedException e) {
+                // The cancelled caller stops waiting. The request keeps running for the other callers.
+                synchronized (mFlights) {
+                    flight.mWaiterCnt--;
+                }
+                throw e;
+            }
+
+            if (flight.mError != null) {
+                throw flight.mError;
+            }
+            return new Outcome<T>(flight.mResult, false, flight.mHandOff.compareAndSet(true, false));
+        }
+
+        try {
+            flight.mResult = call.call();
+            return new Outcome<T>(flight.mResult, true, false);
+
+        } catch (Exception e) {
+            flight.mError = e;
+            throw e;
+
+        } finally {
+            synchronized (mFlights) {
+                mFlights.remove(key);
+
+                if (flight.mWaiterCnt > 0) {
+                    Log.d(BLE_FOTA_TAG, "Request is shared by " + flight.mWaiterCnt + " waiters: " + key);
+                }
+            }
+            flight.mDone.countDown();
+        }
+    }
+
+    /**
+     * Check other callers are waiting for the request of the key.
+     * The runner of the request keeps running it for them, even if its own caller is cancelled.
+     *
+     * @param key is the identity of the request.
+     * @return true, if the request is in flight & at least one caller is waiting.
+     */
+    public boolean hasWaiters(String key) {
+        synchronized (mFlights) {
+            final Flight<T> flight = mFlights.get(key);
+            return flight != null && flight.mWaiterCnt > 0;
+        }
+    }
+
+    /**
+     * Hand the notification of the request over to one of the waiters.
+     * It is called by the runner of the request which does not notify the result. e.g. A cancelled caller.
+     * The hand-off is dropped with the request, if nobody is waiting.
+     *
+     * @param key is the identity of the request.
+     * @return true, if the request is in flight.
+     */
+    public boolean handOff(String key) {
+        synchronized (mFlights) {
+            final Flight<T> flight = mFlights.get(key);
+
+            if (flight == null) {
+                return false;
+            }
+            flight.mHandOff.set(true);
+            return true;
+        }
+    }
+
+    /**
+     * Check the request of the key is running.
+     *
+     * @param key is the identity of the request.
+     * @return true, if the request is in flight.
+     */
+    public boolean isInFlight(String key) {
+        synchronized (mFlights) {
+            return mFlights.containsKey(key);
+        }
+    }
+}
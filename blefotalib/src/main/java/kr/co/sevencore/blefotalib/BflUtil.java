@@ -87,11 +87,25 @@ public class BflUtil {
      * @return the information of update type.
      */
     public static int compareVersion(String firmwareVersion, String firmwareNewVersion) {
+        Log.d(BLE_FOTA_TAG, "current version: " + firmwareVersion + ", new version: " + firmwareNewVersion);
+        return compareVersionQuietly(firmwareVersion, firmwareNewVersion);
+    }
+
+    /**
+     * Compare version information without logging.
+     * It is used in the scan callback, which is called for every advertisement.
+     *
+     * @param firmwareVersion is current firmware version of the target device.
+     * @param firmwareNewVersion is new firmware version from the server.
+     * @return the information of update type.
+     * @throws NumberFormatException if a version level is not a number.
+     * @throws ArrayIndexOutOfBoundsException if a version has less than 3 levels.
+     */
+    static int compareVersionQuietly(String firmwareVersion, String firmwareNewVersion) {
         String[] currentVersionHierarchy = firmwareVersion.split("\\-");
         String[] newVersionHierarchy = firmwareNewVersion.split("\\-");
 
         if (!currentVersionHierarchy[0].equals(newVersionHierarchy[0])) {
-            Log.d(BLE_FOTA_TAG, "current version hierarchy: " + currentVersionHierarchy[0] + ", new version: " + newVersionHierarchy[0]);
             if (Integer.parseInt(currentVersionHierarchy[0]) < Integer.parseInt(newVersionHierarchy[0])) {
                 return BflCodeList.UpgradeVersionTypeCode.FIRMWARE_MAJOR_UPGRADE.getCode();
 
@@ -138,4 +152,134 @@ public class BflUtil {
         Log.d(BLE_FOTA_TAG, "BLE FOTA service is NOT running.");
         return false;
     }
+
+    /**
+     * Get the count of connection events to transmit the firmware data.
+     *
+     * @param length is the firmware data size without sequence information.
+     * @return The count of connection events.
+     */
+    public static int getFrameCount(long length) {
+        return (int) ((length + BflFwUploadService.PURE_EACH_CONN_DATA_SIZE - 1) /
+                BflFwUploadService.PURE_EACH_CONN_DATA_SIZE);
+    }
+
+    /**
+     * Convert byte data into a hex string.
+     *
+     * @param bytes is byte data such as a digest message.
+     * @return Lower case hex string.
+     */
+    public static String toHexString(byte[] bytes) {
+        final char[] hexDigits = "0123456789abcdef".toCharArray();
+        char[] hexChars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hexChars[i * 2] = hexDigits[(bytes[i] >> 4) & 0x0F];
+            hexChars[i * 2 + 1] = hexDigits[bytes[i] & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Convert a hex string into byte data.
+     *
+     * @param hexString is the hex string such as a signature.
+     * @return Byte data, or null if the string is not a hex string.
+     */
+    public static byte[] fromHexString(String hexString) {
+        if (hexString == null || hexString.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hexString.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hexString.charAt(i * 2), 16);
+            final int low = Character.digit(hexString.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Pack the firmware version "AA-BB-CC" into int value. Each element takes a byte.
+     *
+     * @param version is the firmware version.
+     * @return The packed version, or -1 if the version is not valid.
+     */
+    public static int packVersion(String version) {
+        if (version == null) {
+            return -1;
+        }
+        String[] versionHierarchy = version.split("\\-");
+
+        if (versionHierarchy.length != 3) {
+            return -1;
+        }
+        int packedVersion = 0;
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                int number = Integer.parseInt(versionHierarchy[i]);
+
+                if (number < 0 || number > 99) {
+                    return -1;
+                }
+                packedVersion = (packedVersion << 8) | number;
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return packedVersion;
+    }
+
+    /**
+     * Pack MAC address string into the lower 48 bits of long value.
+     *
+     * @param macAddress is MAC address such as "00:11:22:AA:BB:CC".
+     * @return The packed MAC address, or -1 if the MAC address is not valid.
+     */
+    public static long packMacAddress(String macAddress) {
+        if (macAddress == null || macAddress.length() != 17) {
+            return -1;
+        }
+        long packedAddress = 0;
+
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(macAddress.charAt(i), 16);
+            int low = Character.digit(macAddress.charAt(i + 1), 16);
+
+            if (high < 0 || low < 0 || (i < 15 && macAddress.charAt(i + 2) != ':')) {
+                return -1;
+            }
+            packedAddress = (packedAddress << 8) | (high << 4) | low;
+        }
+        return packedAddress;
+    }
+
+    /**
+     * Unpack MAC address from the packed long value.
+     *
+     * @param packedAddress is the packed MAC address.
+     * @return MAC address string in upper case.
+     */
+    public static String unpackMacAddress(long packedAddress) {
+        final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+        char[] macChars = new char[17];
+
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) ((packedAddress >> ((5 - i) * 8)) & 0xFF);
+            macChars[i * 3] = hexDigits[octet >> 4];
+            macChars[i * 3 + 1] = hexDigits[octet & 0x0F];
+
+            if (i < 5) {
+                macChars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(macChars);
+    }
 }
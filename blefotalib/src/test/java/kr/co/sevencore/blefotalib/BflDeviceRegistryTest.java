@@ -0,0 +1,127 @@
+package kr.co.sevencore.blefotalib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * BflDeviceRegistryTest.java
+ * Unit tests of the open addressing table & the insertion order of BflDeviceRegistry.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-13
+ * @see kr.co.sevencore.blefotalib.BflDeviceRegistry
+ */
+public class BflDeviceRegistryTest {
+    private BflDeviceRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new BflDeviceRegistry();
+    }
+
+    @Test
+    public void addedDevicesAreFoundByAddress() {
+        for (long address = 1; address <= 1000; address++) {
+            assertEquals(address - 1, mRegistry.add(address, address));
+        }
+        assertEquals(1000, mRegistry.size());
+
+        for (long address = 1; address <= 1000; address++) {
+            assertEquals(address - 1, mRegistry.indexOf(address));
+            assertEquals(address, mRegistry.getLastSeen((int) address - 1));
+        }
+        assertEquals(-1, mRegistry.indexOf(1001));
+    }
+
+    @Test
+    public void removeKeepsInsertionOrder() {
+        for (long address = 1; address <= 5; address++) {
+            mRegistry.add(address, 0);
+            mRegistry.setName((int) address - 1, "Device" + address);
+        }
+        mRegistry.remove(1);
+
+        assertEquals(4, mRegistry.size());
+        assertEquals(1, mRegistry.getAddress(0));
+        assertEquals(3, mRegistry.getAddress(1));
+        assertEquals(4, mRegistry.getAddress(2));
+        assertEquals(5, mRegistry.getAddress(3));
+        assertEquals("Device3", mRegistry.getName(1));
+        assertEquals(-1, mRegistry.indexOf(2));
+
+        for (int position = 0; position < mRegistry.size(); position++) {
+            assertEquals(position, mRegistry.indexOf(mRegistry.getAddress(position)));
+        }
+    }
+
+    @Test
+    public void backwardShiftDeleteKeepsProbeSequences() {
+        // Many devices collide in a small table, so deleted slots are in the middle of probe sequences.
+        for (long address = 0; address < 48; address++) {
+            mRegistry.add(address << 40, 0);
+        }
+
+        for (long address = 0; address < 48; address += 3) {
+            mRegistry.remove(mRegistry.indexOf(address << 40));
+        }
+        assertEquals(32, mRegistry.size());
+
+        for (long address = 0; address < 48; address++) {
+            final int position = mRegistry.indexOf(address << 40);
+
+            if (address % 3 == 0) {
+                assertEquals(-1, position);
+            } else {
+                assertEquals(address << 40, mRegistry.getAddress(position));
+            }
+        }
+    }
+
+    @Test
+    public void expireRemovesOldDevicesInOrder() {
+        for (long address = 1; address <= 6; address++) {
+            mRegistry.add(address, (address % 2 == 0) ? 1000 : 0);
+        }
+        assertEquals(3, mRegistry.expire(1500, 1000));
+
+        assertEquals(3, mRegistry.size());
+        assertEquals(2, mRegistry.getAddress(0));
+        assertEquals(4, mRegistry.getAddress(1));
+        assertEquals(6, mRegistry.getAddress(2));
+        assertEquals(-1, mRegistry.indexOf(1));
+        assertEquals(2, mRegistry.indexOf(6));
+    }
+
+    @Test
+    public void oldestDeviceIsEvictedWhenFull() {
+        mRegistry.setMaxDevices(3);
+        mRegistry.add(1, 300);
+        mRegistry.add(2, 100);
+        mRegistry.add(3, 200);
+        mRegistry.add(4, 400);
+
+        assertEquals(3, mRegistry.size());
+        assertEquals(-1, mRegistry.indexOf(2));
+        assertEquals(1, mRegistry.getAddress(0));
+        assertEquals(3, mRegistry.getAddress(1));
+        assertEquals(4, mRegistry.getAddress(2));
+    }
+
+    @Test
+    public void clearRemovesEveryDevice() {
+        mRegistry.add(1, 0);
+        mRegistry.setName(0, "Device1");
+        mRegistry.clear();
+
+        assertEquals(0, mRegistry.size());
+        assertEquals(-1, mRegistry.indexOf(1));
+        assertEquals(0, mRegistry.add(1, 0));
+        assertNull(mRegistry.getName(0));
+    }
+}
@@ -0,0 +1,96 @@
+package kr.co.sevencore.blefotalib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BflDoneFilterTest.java
+ * Unit tests of the Bloom filter & the exact set of BflDoneFilter.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-14
+ * @see kr.co.sevencore.blefotalib.BflDoneFilter
+ */
+public class BflDoneFilterTest {
+
+    private static String makeMacAddress(int number) {
+        return BflUtil.unpackMacAddress(0x001122000000L | number);
+    }
+
+    @Test
+    public void addedDevicesAreDone() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", 100);
+
+        for (int i = 0; i < 100; i++) {
+            doneFilter.add(makeMacAddress(i));
+        }
+        assertEquals(100, doneFilter.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(doneFilter.contains(0x001122000000L | i));
+        }
+    }
+
+    @Test
+    public void otherDevicesAreNotDone() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", 100);
+
+        for (int i = 0; i < 100; i++) {
+            doneFilter.add(makeMacAddress(i));
+        }
+
+        // Bloom filter false positives are confirmed by the exact set.
+        for (int i = 100; i < 10000; i++) {
+            assertFalse(doneFilter.contains(0x001122000000L | i));
+        }
+    }
+
+    @Test
+    public void macAddressIsCaseInsensitive() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", BflDoneFilter.DEFAULT_EXPECTED_DEVICES);
+
+        doneFilter.add("aa:bb:cc:dd:ee:ff");
+        assertTrue(doneFilter.contains(BflUtil.packMacAddress("AA:BB:CC:DD:EE:FF")));
+    }
+
+    @Test
+    public void invalidMacAddressIsIgnored() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", 10);
+
+        doneFilter.add("AA:BB:CC");
+        doneFilter.add(null);
+        assertEquals(0, doneFilter.size());
+    }
+
+    @Test
+    public void devicesAreDoneOnlyForTheTargetVersion() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", 10);
+        BflDoneFilter nextFilter = new BflDoneFilter("01-02-04", 10);
+        final String macAddress = makeMacAddress(1);
+
+        doneFilter.add(macAddress);
+        assertTrue(doneFilter.contains(BflUtil.packMacAddress(macAddress)));
+        assertFalse(nextFilter.contains(BflUtil.packMacAddress(macAddress)));
+    }
+
+    @Test
+    public void clearedDevicesAreNotDone() {
+        BflDoneFilter doneFilter = new BflDoneFilter("01-02-03", 10);
+
+        for (int i = 0; i < 10; i++) {
+            doneFilter.add(makeMacAddress(i));
+        }
+        doneFilter.clear();
+        assertEquals(0, doneFilter.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(doneFilter.contains(0x001122000000L | i));
+        }
+    }
+}
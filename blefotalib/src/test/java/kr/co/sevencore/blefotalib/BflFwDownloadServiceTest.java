@@ -0,0 +1,54 @@
+package kr.co.sevencore.blefotalib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * BflFwDownloadServiceTest.java
+ * Unit tests of Content-Range parsing of partial firmware downloads.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-19
+ * @see kr.co.sevencore.blefotalib.BflFwDownloadService
+ */
+public class BflFwDownloadServiceTest {
+
+    @Test
+    public void contentRangeIsParsed() {
+        assertArrayEquals(new long[] {100, 199, 1000}, BflFwDownloadService.parseContentRange("bytes 100-199/1000"));
+        assertArrayEquals(new long[] {0, 0, 1}, BflFwDownloadService.parseContentRange("bytes 0-0/1"));
+    }
+
+    @Test
+    public void largeContentRangeIsParsed() {
+        assertArrayEquals(new long[] {4294967296L, 8589934591L, 8589934592L},
+                BflFwDownloadService.parseContentRange("bytes 4294967296-8589934591/8589934592"));
+    }
+
+    @Test
+    public void unknownTotalIsMinusOne() {
+        assertArrayEquals(new long[] {100, 199, -1}, BflFwDownloadService.parseContentRange("bytes 100-199/*"));
+    }
+
+    @Test
+    public void spacesAroundNumbersAreAllowed() {
+        assertArrayEquals(new long[] {100, 199, 1000}, BflFwDownloadService.parseContentRange("bytes  100 - 199 / 1000"));
+    }
+
+    @Test
+    public void invalidContentRangeIsNull() {
+        assertNull(BflFwDownloadService.parseContentRange(null));
+        assertNull(BflFwDownloadService.parseContentRange(""));
+        assertNull(BflFwDownloadService.parseContentRange("items 100-199/1000"));
+        assertNull(BflFwDownloadService.parseContentRange("bytes */1000"));
+        assertNull(BflFwDownloadService.parseContentRange("bytes 100-199"));
+        assertNull(BflFwDownloadService.parseContentRange("bytes 100/199-1000"));
+        assertNull(BflFwDownloadService.parseContentRange("bytes a-199/1000"));
+        assertNull(BflFwDownloadService.parseContentRange("bytes 100-199/x"));
+    }
+}
@@ -0,0 +1,116 @@
+package kr.co.sevencore.blefotalib;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BflFwManifestTest.java
+ * Unit tests of the chunk verification of BflFwManifest.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-28
+ * @see kr.co.sevencore.blefotalib.BflFwManifest
+ */
+public class BflFwManifestTest {
+    private final static int CHUNK_SIZE = 16;
+
+    private static String sha256(byte[] data, int offset, int length) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        messageDigest.update(data, offset, length);
+        return BflUtil.toHexString(messageDigest.digest());
+    }
+
+    private static byte[] makeImage(int size) {
+        byte[] image = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            image[i] = (byte) (i * 31 + 7);
+        }
+        return image;
+    }
+
+    private static BflFwManifest makeManifest(byte[] image) throws Exception {
+        List<String> chunkHashes = new ArrayList<String>();
+
+        for (int start = 0; start < image.length; start += CHUNK_SIZE) {
+            chunkHashes.add(sha256(image, start, Math.min(CHUNK_SIZE, image.length - start)));
+        }
+        return new BflFwManifest(image.length, sha256(image, 0, image.length), CHUNK_SIZE, chunkHashes);
+    }
+
+    @Test
+    public void intactImageIsVerifiedAcrossUnalignedUpdates() throws Exception {
+        final byte[] image = makeImage(CHUNK_SIZE * 4 + 5);
+        BflFwManifest.ChunkVerifier chunkVerifier = makeManifest(image).newChunkVerifier();
+
+        // Updates are not aligned to chunks.
+        for (int offset = 0; offset < image.length; offset += 7) {
+            chunkVerifier.update(image, offset, Math.min(7, image.length - offset));
+        }
+        assertEquals(image.length, chunkVerifier.getVerifiedLength());
+        assertEquals(0, chunkVerifier.getBadChunkCount());
+        assertTrue(chunkVerifier.finish().isEmpty());
+    }
+
+    @Test
+    public void verifiedLengthStopsAtTheFirstCorruptedChunk() throws Exception {
+        final byte[] image = makeImage(CHUNK_SIZE * 4);
+        BflFwManifest.ChunkVerifier chunkVerifier = makeManifest(image).newChunkVerifier();
+        byte[] received = image.clone();
+
+        received[CHUNK_SIZE + 3] ^= 0x01;
+        chunkVerifier.update(received, 0, received.length);
+
+        assertEquals(CHUNK_SIZE, chunkVerifier.getVerifiedLength());
+        assertEquals(1, chunkVerifier.getBadChunkCount());
+        assertEquals(Arrays.asList(1), chunkVerifier.finish());
+    }
+
+    @Test
+    public void missingChunksAreReportedByFinish() throws Exception {
+        final byte[] image = makeImage(CHUNK_SIZE * 3 + 1);
+        BflFwManifest.ChunkVerifier chunkVerifier = makeManifest(image).newChunkVerifier();
+
+        chunkVerifier.update(image, 0, CHUNK_SIZE + 4);
+
+        assertEquals(CHUNK_SIZE, chunkVerifier.getVerifiedLength());
+        assertEquals(Arrays.asList(1, 2, 3), chunkVerifier.finish());
+    }
+
+    @Test
+    public void resetRestartsFromTheFirstByte() throws Exception {
+        final byte[] image = makeImage(CHUNK_SIZE * 2);
+        BflFwManifest.ChunkVerifier chunkVerifier = makeManifest(image).newChunkVerifier();
+
+        chunkVerifier.update(makeImage(CHUNK_SIZE * 2 + 1), 1, CHUNK_SIZE * 2);
+        assertEquals(2, chunkVerifier.getBadChunkCount());
+
+        chunkVerifier.reset();
+        chunkVerifier.update(image, 0, image.length);
+        assertEquals(image.length, chunkVerifier.getVerifiedLength());
+        assertTrue(chunkVerifier.finish().isEmpty());
+    }
+
+    @Test
+    public void chunkIsValidOnlyWithTheExactLength() throws Exception {
+        final byte[] image = makeImage(CHUNK_SIZE * 2 + 3);
+        BflFwManifest manifest = makeManifest(image);
+        byte[] lastChunk = Arrays.copyOfRange(image, CHUNK_SIZE * 2, image.length);
+
+        assertEquals(3, manifest.getChunkLength(2));
+        assertTrue(manifest.isChunkValid(2, lastChunk, lastChunk.length));
+        assertFalse(manifest.isChunkValid(2, lastChunk, lastChunk.length - 1));
+        assertFalse(manifest.isChunkValid(1, lastChunk, lastChunk.length));
+    }
+}
@@ -0,0 +1,102 @@
+package kr.co.sevencore.blefotalib;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BflSingleFlightTest.java
+ * Unit tests of the request sharing & the notification hand-off of BflSingleFlight.
+ *
+ * 2015 SEVENCORE Co., Ltd.
+ *
+ * @author Jungwoo Park
+ * @version 1.0.0
+ * @since 2015-08-20
+ * @see kr.co.sevencore.blefotalib.BflSingleFlight
+ */
+public class BflSingleFlightTest {
+    private final static String KEY = "product/1.0.0";
+
+    /**
+     * Start a waiter of the key after the leader is in flight.
+     */
+    private static Thread startWaiter(final BflSingleFlight<String> singleFlight,
+                                      final AtomicReference<BflSingleFlight.Outcome<String>> outcome) {
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outcome.set(singleFlight.join(KEY, new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return "waiter";
+                        }
+                    }));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        waiter.start();
+        return waiter;
+    }
+
+    @Test
+    public void waiterSharesResultAndTakesHandOff() throws Exception {
+        final BflSingleFlight<String> singleFlight = new BflSingleFlight<String>();
+        final AtomicReference<BflSingleFlight.Outcome<String>> waiterOutcome =
+                new AtomicReference<BflSingleFlight.Outcome<String>>();
+        final Thread[] waiter = new Thread[1];
+
+        BflSingleFlight.Outcome<String> leaderOutcome = singleFlight.join(KEY, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                waiter[0] = startWaiter(singleFlight, waiterOutcome);
+
+                while (!singleFlight.hasWaiters(KEY)) {
+                    Thread.sleep(1);
+                }
+                assertTrue(singleFlight.handOff(KEY));
+                return "leader";
+            }
+        });
+        waiter[0].join();
+
+        assertTrue(leaderOutcome.isLeader());
+        assertFalse(leaderOutcome.isHandedOff());
+        assertEquals("leader", waiterOutcome.get().getResult());
+        assertFalse(waiterOutcome.get().isLeader());
+        assertTrue(waiterOutcome.get().isHandedOff());
+    }
+
+    @Test
+    public void handOffIsDroppedWithFlight() throws Exception {
+        final BflSingleFlight<String> singleFlight = new BflSingleFlight<String>();
+
+        assertFalse(singleFlight.handOff(KEY));
+        singleFlight.join(KEY, new Callable<String>() {
+            @Override
+            public String call() {
+                singleFlight.handOff(KEY);
+                return "first";
+            }
+        });
+        assertFalse(singleFlight.isInFlight(KEY));
+
+        BflSingleFlight.Outcome<String> outcome = singleFlight.join(KEY, new Callable<String>() {
+            @Override
+            public String call() {
+                return "second";
+            }
+        });
+        assertTrue(outcome.isLeader());
+        assertFalse(outcome.isHandedOff());
+        assertEquals("second", outcome.getResult());
+    }
+}